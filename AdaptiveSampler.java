@@ -0,0 +1,194 @@
+package application;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Pixel-aware adaptive sampler. It starts from a coarse uniform grid and bisects an interval
+ * while the curve's midpoint is further than the tolerance (in pixels) from the straight line
+ * the renderer would draw. Intervals where the curve becomes undefined are bisected to find the
+ * boundary. An interval that is still a step of more than the viewport height once it is
+ * narrower than a pixel, and whose step does not shrink when bisected, is treated as a
+ * discontinuity: the curve is split there instead of being joined by a false vertical line. Stretches lying wholly above or below the viewport are
+ * not refined. The total number of points is capped by the pixel width.
+ */
+public class AdaptiveSampler {
+	/** Default maximum distance, in pixels, between the curve and the drawn line. */
+	public static final double DEFAULT_TOLERANCE = 0.5;
+	/** Coarse grid intervals per pixel of width. */
+	private static final double COARSE_PER_PIXEL = 1.0 / 8;
+	private static final int MIN_COARSE = 16;
+	/** Points allowed per pixel of width. */
+	private static final int POINTS_PER_PIXEL = 4;
+	/** Intervals are never bisected below this fraction of a pixel. */
+	private static final double MIN_WIDTH_PIXELS = 1.0 / 64;
+	/** A sub-pixel step is a jump if one half of it holds more than this fraction of it. */
+	private static final double JUMP_RATIO = 0.9;
+
+	private final double _tolerance;
+
+	public AdaptiveSampler () {
+		this(DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * @param tolerance the maximum distance, in pixels, between the curve and the drawn line
+	 */
+	public AdaptiveSampler (double tolerance) {
+		_tolerance = tolerance;
+	}
+
+	/**
+	 * Samples a function over a viewport.
+	 * @param f the function to sample
+	 * @param minX the left edge of the viewport
+	 * @param maxX the right edge of the viewport
+	 * @param minY the bottom edge of the viewport
+	 * @param maxY the top edge of the viewport
+	 * @param width the viewport width in pixels
+	 * @param height the viewport height in pixels
+	 * @return the sampled curve
+	 */
+	public SampledCurve sample (DoubleUnaryOperator f, double minX, double maxX, double minY, double maxY, int width, int height) {
+		return sample(f, minX, maxX, (maxX - minX) / width, (maxY - minY) / height, minY, maxY, height);
+	}
+
+	/**
+	 * Samples a function over an x-range at a given pixel scale.
+	 * @param f the function to sample
+	 * @param minX the left end of the range
+	 * @param maxX the right end of the range
+	 * @param xPerPixel the width of one pixel in x units
+	 * @param yPerPixel the height of one pixel in y units
+	 * @param minY values below this are off screen; use negative infinity if unknown
+	 * @param maxY values above this are off screen; use positive infinity if unknown
+	 * @param jumpPixels a sub-pixel step larger than this many pixels splits the curve
+	 * @return the sampled curve
+	 */
+	SampledCurve sample (DoubleUnaryOperator f, double minX, double maxX, double xPerPixel, double yPerPixel,
+			double minY, double maxY, double jumpPixels) {
+		return sample(new DoubleUnaryOperator[] { f }, minX, maxX, xPerPixel, yPerPixel, minY, maxY, jumpPixels)[0];
+	}
+
+	/**
+	 * Samples several functions over the same x-range. The coarse grid is built once and all
+	 * functions are evaluated over it in one fused pass, one block of x-values at a time, so
+	 * each block is still in cache for every function. Each function is then refined on its own.
+	 * @param fs the functions to sample
+	 * @param minX the left end of the range
+	 * @param maxX the right end of the range
+	 * @param xPerPixel the width of one pixel in x units
+	 * @param yPerPixel the height of one pixel in y units
+	 * @param minY values below this are off screen; use negative infinity if unknown
+	 * @param maxY values above this are off screen; use positive infinity if unknown
+	 * @param jumpPixels a sub-pixel step larger than this many pixels splits the curve
+	 * @return the sampled curve of each function, in order
+	 */
+	SampledCurve[] sample (DoubleUnaryOperator[] fs, double minX, double maxX, double xPerPixel, double yPerPixel,
+			double minY, double maxY, double jumpPixels) {
+		final double width = (maxX - minX) / xPerPixel;
+		final int coarse = Math.max(MIN_COARSE, (int) Math.ceil(width * COARSE_PER_PIXEL));
+		final double[] xs = new double[coarse + 1];
+		final double[][] ys = new double[fs.length][coarse + 1];
+		for (int i = 0; i <= coarse; i++) {
+			xs[i] = minX + (maxX - minX) * i / coarse;
+		}
+		final CompiledExpression.Evaluator[] evaluators = new CompiledExpression.Evaluator[fs.length];
+		for (int k = 0; k < fs.length; k++) {
+			if (fs[k] instanceof CompiledExpression) {
+				evaluators[k] = ((CompiledExpression) fs[k]).newEvaluator();
+			}
+		}
+		for (int from = 0; from <= coarse; from += CompiledExpression.BLOCK) {
+			final int n = Math.min(CompiledExpression.BLOCK, coarse + 1 - from);
+			for (int k = 0; k < fs.length; k++) {
+				if (evaluators[k] != null) {
+					evaluators[k].evaluate(xs, ys[k], from, n);
+				} else {
+					for (int i = from; i < from + n; i++) {
+						ys[k][i] = fs[k].applyAsDouble(xs[i]);
+					}
+				}
+			}
+		}
+		final SampledCurve[] curves = new SampledCurve[fs.length];
+		for (int k = 0; k < fs.length; k++) {
+			final Run run = new Run(fs[k], xPerPixel, yPerPixel, minY, maxY, jumpPixels, (long) Math.ceil(POINTS_PER_PIXEL * width));
+			final double[] y = ys[k];
+			run.curve.countEvaluations(coarse + 1);
+			run.budget -= coarse + 1;
+			run.curve.add(xs[0], y[0]);
+			for (int i = 0; i < coarse; i++) {
+				run.refine(xs[i], y[i], xs[i + 1], y[i + 1]);
+			}
+			curves[k] = run.curve.build();
+		}
+		return curves;
+	}
+
+	/**
+	 * State for one sample call.
+	 */
+	private final class Run {
+		final DoubleUnaryOperator f;
+		final double xPerPixel, yPerPixel, minY, maxY, jumpPixels;
+		final SampledCurve.Builder curve = new SampledCurve.Builder();
+		long budget;
+
+		Run (DoubleUnaryOperator f, double xPerPixel, double yPerPixel, double minY, double maxY, double jumpPixels, long budget) {
+			this.f = f;
+			this.xPerPixel = xPerPixel;
+			this.yPerPixel = yPerPixel;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.jumpPixels = jumpPixels;
+			this.budget = budget;
+		}
+
+		/**
+		 * Whether a line between two values lies entirely above or entirely below the viewport.
+		 */
+		boolean offscreen (double y1, double y2) {
+			return (y1 > maxY && y2 > maxY) || (y1 < minY && y2 < minY);
+		}
+
+		/**
+		 * Tells a discontinuity from a steep but continuous stretch. Bisecting a continuous curve
+		 * roughly halves the step, while at a jump or pole one half keeps (or exceeds) all of it.
+		 */
+		boolean isJump (double a, double fa, double b, double fb) {
+			final double fm = f.applyAsDouble(0.5 * (a + b));
+			curve.countEvaluations(1);
+			final double step = Math.abs(fb - fa);
+			return !Double.isFinite(fm) || Math.max(Math.abs(fm - fa), Math.abs(fb - fm)) > JUMP_RATIO * step;
+		}
+
+		/**
+		 * Emits the points after a up to and including b, bisecting as needed. The point at a
+		 * has already been emitted.
+		 */
+		void refine (double a, double fa, double b, double fb) {
+			final boolean finiteA = Double.isFinite(fa), finiteB = Double.isFinite(fb);
+			if (!finiteA && !finiteB) {
+				curve.add(b, fb);
+				return;
+			}
+			final boolean wide = (b - a) / xPerPixel > MIN_WIDTH_PIXELS;
+			if (wide && budget > 0) {
+				final double m = 0.5 * (a + b);
+				final double fm = f.applyAsDouble(m);
+				budget--;
+				curve.countEvaluations(1);
+				if (finiteA != finiteB || !Double.isFinite(fm)
+						|| (Math.abs(fm - 0.5 * (fa + fb)) / yPerPixel > _tolerance && !(offscreen(fa, fm) && offscreen(fm, fb)))) {
+					refine(a, fa, m, fm);
+					refine(m, fm, b, fb);
+					return;
+				}
+			} else if (finiteA && finiteB && Math.abs(fb - fa) / yPerPixel > jumpPixels && !offscreen(fa, fb)
+					&& isJump(a, fa, b, fb)) {
+				curve.split();
+			}
+			curve.add(b, fb);
+		}
+	}
+}
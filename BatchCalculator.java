@@ -0,0 +1,299 @@
+package application;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless batch mode: samples the expressions listed in a spec file over evenly spaced grids and
+ * streams the results to a CSV or binary file. Nothing here touches JavaFX.
+ * <p>
+ * Each non-blank spec line that does not start with # reads
+ * <pre>name minX maxX count expression</pre>
+ * where the expression is the rest of the line. Values are computed CHUNK points at a time with a
+ * ParallelSampler and written out before the next chunk, so memory use does not grow with the
+ * point count. The default sampler splits each chunk into about TASKS_PER_THREAD tasks per worker
+ * so every core gets work, including on the short last chunk of a curve.
+ * <p>
+ * CSV output has the header name,x,y and one row per point. Binary output is little-endian:
+ * the magic bytes GCB1, an int32 curve count, then per curve an int32 name length, the UTF-8
+ * name, float64 minX, float64 maxX, int64 count and count float64 values; the i-th x is
+ * minX + (maxX - minX) * i / (count - 1). Binary output is written through FileChannel.map
+ * windows of at most WINDOW_BYTES.
+ */
+public class BatchCalculator {
+	/** Points evaluated and written per step. */
+	static final int CHUNK = 1 << 16;
+	/** Tasks per worker thread that the default sampler splits a full chunk into. */
+	static final int TASKS_PER_THREAD = 4;
+	/** Largest region of the binary output mapped at once. */
+	static final long WINDOW_BYTES = 64L << 20;
+	private static final byte[] MAGIC = "GCB1".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * One curve to sample.
+	 */
+	static final class Spec {
+		final String name;
+		final double minX, maxX;
+		final long count;
+		final CompiledExpression expression;
+
+		Spec (String name, double minX, double maxX, long count, CompiledExpression expression) {
+			this.name = name;
+			this.minX = minX;
+			this.maxX = maxX;
+			this.count = count;
+			this.expression = expression;
+		}
+
+		double x (long i) {
+			return minX + (maxX - minX) * i / Math.max(1, count - 1);
+		}
+	}
+
+	private final ExpressionParser _parser;
+	private final ParallelSampler _sampler;
+
+	public BatchCalculator (ExpressionParser parser, ParallelSampler sampler) {
+		_parser = parser;
+		_sampler = sampler;
+	}
+
+	/**
+	 * Uses the common pool, with a threshold that splits a chunk into TASKS_PER_THREAD tasks per worker.
+	 */
+	public BatchCalculator () {
+		this(new SimpleExpressionParser(), new ParallelSampler(ForkJoinPool.commonPool(),
+				threshold(ForkJoinPool.commonPool().getParallelism())));
+	}
+
+	/**
+	 * Finds the sampler threshold that splits a full chunk into TASKS_PER_THREAD tasks per worker.
+	 * @param parallelism the number of worker threads
+	 * @return the largest chunk a task evaluates without further splitting
+	 */
+	static int threshold (int parallelism) {
+		return Math.max(CompiledExpression.BLOCK, CHUNK / (TASKS_PER_THREAD * Math.max(1, parallelism)));
+	}
+
+	/**
+	 * Reads a spec file.
+	 * @param file the spec file
+	 * @return the curves it lists, in order
+	 * @throws IOException if the file cannot be read
+	 * @throws ExpressionParseException if a line is malformed; the message names the line
+	 */
+	List<Spec> readSpecs (Path file) throws IOException, ExpressionParseException {
+		final List<Spec> specs = new ArrayList<Spec>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			for (int number = 1; (line = reader.readLine()) != null; number++) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] fields = line.split("\\s+", 5);
+				if (fields.length < 5) {
+					throw new ExpressionParseException("Line " + number + ": expected name minX maxX count expression");
+				}
+				try {
+					final long count = Long.parseLong(fields[3]);
+					if (count < 1) {
+						throw new ExpressionParseException("Line " + number + ": count must be positive");
+					}
+					specs.add(new Spec(fields[0], Double.parseDouble(fields[1]), Double.parseDouble(fields[2]), count,
+							ExpressionCompiler.compile(_parser.parse(fields[4]))));
+				} catch (NumberFormatException nfe) {
+					throw new ExpressionParseException("Line " + number + ": " + nfe.getMessage());
+				} catch (ExpressionParseException epe) {
+					throw new ExpressionParseException("Line " + number + ": " + epe.getMessage(), epe.getPosition());
+				}
+			}
+		}
+		return specs;
+	}
+
+	/**
+	 * Samples every curve and writes it as CSV.
+	 * @param specs the curves to sample
+	 * @param file the output file, replaced if it exists
+	 * @throws IOException if the file cannot be written
+	 */
+	void writeCsv (List<Spec> specs, Path file) throws IOException {
+		final double[] xs = new double[CHUNK], ys = new double[CHUNK];
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+		final StringBuilder row = new StringBuilder(64);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			put(channel, buffer, row.append("name,x,y\n"));
+			for (Spec spec : specs) {
+				for (long from = 0; from < spec.count; from += CHUNK) {
+					final int n = evaluate(spec, from, xs, ys);
+					for (int i = 0; i < n; i++) {
+						row.setLength(0);
+						put(channel, buffer, row.append(spec.name).append(',').append(xs[i]).append(',').append(ys[i]).append('\n'));
+					}
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Appends an ASCII row to the buffer, draining the buffer to the channel when it is full.
+	 */
+	private static void put (FileChannel channel, ByteBuffer buffer, CharSequence row) throws IOException {
+		if (buffer.remaining() < row.length() * 3) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+		for (int i = 0; i < row.length(); i++) {
+			final char c = row.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else {
+				buffer.put(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * Samples every curve and writes it in the binary format through mapped windows.
+	 * @param specs the curves to sample
+	 * @param file the output file, replaced if it exists
+	 * @throws IOException if the file cannot be written
+	 */
+	void writeBinary (List<Spec> specs, Path file) throws IOException {
+		final double[] xs = new double[CHUNK], ys = new double[CHUNK];
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final MappedOutput out = new MappedOutput(channel);
+			out.ensure(MAGIC.length + 4);
+			out.window.put(MAGIC).putInt(specs.size());
+			for (Spec spec : specs) {
+				final byte[] name = spec.name.getBytes(StandardCharsets.UTF_8);
+				out.ensure(4 + name.length + 8 + 8 + 8);
+				out.window.putInt(name.length).put(name).putDouble(spec.minX).putDouble(spec.maxX).putLong(spec.count);
+				for (long from = 0; from < spec.count; from += CHUNK) {
+					final int n = evaluate(spec, from, xs, ys);
+					for (int i = 0; i < n; ) {
+						out.ensure(8);
+						final int run = Math.min(n - i, out.window.remaining() / 8);
+						out.window.asDoubleBuffer().put(ys, i, run);
+						out.window.position(out.window.position() + 8 * run);
+						i += run;
+					}
+				}
+			}
+			out.finish();
+		}
+	}
+
+	/**
+	 * Evaluates one chunk of a curve.
+	 * @return the number of points in the chunk
+	 */
+	private int evaluate (Spec spec, long from, double[] xs, double[] ys) {
+		final int n = (int) Math.min(xs.length, spec.count - from);
+		for (int i = 0; i < n; i++) {
+			xs[i] = spec.x(from + i);
+		}
+		_sampler.evaluate(spec.expression, xs, ys, 0, n);
+		return n;
+	}
+
+	/**
+	 * Sequential writer over consecutive mapped windows of a file.
+	 */
+	private static final class MappedOutput {
+		final FileChannel channel;
+		MappedByteBuffer window;
+		long windowStart;
+
+		MappedOutput (FileChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Makes sure the current window has room for at least the given number of bytes,
+		 * mapping the next window at the write position if not.
+		 */
+		void ensure (int bytes) throws IOException {
+			if (window != null && window.remaining() >= bytes) {
+				return;
+			}
+			final long position = window == null ? 0 : windowStart + window.position();
+			if (window != null) {
+				window.force();
+			}
+			window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(bytes, WINDOW_BYTES));
+			window.order(ByteOrder.LITTLE_ENDIAN);
+			windowStart = position;
+		}
+
+		/**
+		 * Flushes the last window and cuts the file to the bytes actually written.
+		 */
+		void finish () throws IOException {
+			if (window != null) {
+				window.force();
+				channel.truncate(windowStart + window.position());
+			}
+		}
+	}
+
+	/**
+	 * Runs a batch: BatchCalculator [-csv | -binary] spec-file output-file. Without a flag, an
+	 * output name ending in .csv selects CSV and anything else selects binary.
+	 * @param args the command-line arguments
+	 */
+	public static void main (String[] args) throws IOException {
+		boolean csv = args.length == 2 && args[1].toLowerCase().endsWith(".csv");
+		int first = 0;
+		if (args.length == 3 && (args[0].equals("-csv") || args[0].equals("-binary"))) {
+			csv = args[0].equals("-csv");
+			first = 1;
+		} else if (args.length != 2) {
+			System.err.println("usage: BatchCalculator [-csv | -binary] spec-file output-file");
+			System.exit(2);
+		}
+		final BatchCalculator batch = new BatchCalculator();
+		final List<Spec> specs;
+		try {
+			specs = batch.readSpecs(Paths.get(args[first]));
+		} catch (ExpressionParseException epe) {
+			System.err.println(epe.getMessage());
+			System.exit(1);
+			return;
+		}
+		final long start = System.nanoTime();
+		if (csv) {
+			batch.writeCsv(specs, Paths.get(args[first + 1]));
+		} else {
+			batch.writeBinary(specs, Paths.get(args[first + 1]));
+		}
+		long points = 0;
+		for (Spec spec : specs) {
+			points += spec.count;
+		}
+		System.out.printf("%d curves, %d points in %.1f ms%n", specs.size(), points, (System.nanoTime() - start) / 1e6);
+	}
+}
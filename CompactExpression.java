@@ -0,0 +1,602 @@
+package application;
+
+import static application.ExpressionCompiler.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structure-of-arrays form of an expression tree. Node i of an n-node expression is ops[i], with
+ * one int operand, and nodes are stored in post-order, so the root is node n - 1, the last child of
+ * a node is the node just before it, and every subtree is a contiguous range ending at its root.
+ * The operand of a binary node is the index of its left child; that of a literal indexes the
+ * constant pool and that of a parameter the name table. The whole expression is four arrays, about
+ * 5 bytes per node plus 8 per literal, against well over 100 for a ParsedExpression node with its
+ * child list and name.
+ * <p>
+ * Evaluation, convertToString and differentiate work on the arrays directly, iteratively, so deep
+ * expressions do not overflow the call stack. They give the same results as the same operations
+ * on the tree. Literals are kept as doubles, with the opcode recording whether the name was
+ * written as Double.toString prints it (2.0, as the parser does) or as an integer (2, as the
+ * differentiation rules do); other spellings come back in the first form. Subtrees that a tree
+ * shares between parents, as ParsedExpression.differentiate does, are stored once per use.
+ * <p>
+ * A compact expression is immutable and can be shared between threads.
+ */
+public final class CompactExpression {
+	/**
+	 * A literal whose name is written as an integer; OP_CONST is one written as Double.toString
+	 * does. The other opcodes are ExpressionCompiler's.
+	 */
+	static final byte OP_INTEGER = 10;
+	/** Estimated object layout, in bytes, on a 64-bit JVM with compressed references. */
+	private static final int HEADER = 12, ARRAY_HEADER = 16, REFERENCE = 4;
+	/** Capacity of an ArrayList after its first add. */
+	private static final int LIST_CAPACITY = 10;
+
+	private static final int DERIVE = 0, COPY = 1, OPERATOR = 2, CONSTANT = 3, LITERAL = 4;
+	/** In a rule, the left (or only) child. */
+	private static final int A = -1;
+	/** In a rule, the right child. */
+	private static final int B = -2;
+	/** Differentiation rules, the same as ParsedExpression's: (task, argument) pairs in post-order. */
+	private static final int[] RULE_X = { CONSTANT, 1 };
+	private static final int[] RULE_ADD = { DERIVE, A, DERIVE, B, OPERATOR, OP_ADD };
+	private static final int[] RULE_SUB = { DERIVE, A, DERIVE, B, OPERATOR, OP_SUB };
+	private static final int[] RULE_MUL = { DERIVE, A, COPY, B, OPERATOR, OP_MUL, COPY, A, DERIVE, B, OPERATOR, OP_MUL, OPERATOR, OP_ADD };
+	private static final int[] RULE_DIV = { DERIVE, A, COPY, B, OPERATOR, OP_MUL, COPY, A, DERIVE, B, OPERATOR, OP_MUL, OPERATOR, OP_SUB,
+			COPY, B, CONSTANT, 2, OPERATOR, OP_POW, OPERATOR, OP_DIV };
+	private static final int[] RULE_CONSTANT_BASE = { DERIVE, B, COPY, A, COPY, B, OPERATOR, OP_POW, OPERATOR, OP_MUL,
+			COPY, A, OPERATOR, OP_LOG, OPERATOR, OP_MUL };
+	private static final int[] RULE_CONSTANT_EXPONENT = { DERIVE, A, COPY, A, COPY, B, CONSTANT, 1, OPERATOR, OP_SUB, OPERATOR, OP_POW,
+			OPERATOR, OP_MUL, COPY, B, OPERATOR, OP_MUL };
+	private static final int[] RULE_GROUP = { DERIVE, A };
+	private static final int[] RULE_ZERO = { CONSTANT, 0 };
+	/** Rules of the FunctionRegistry functions by opcode, compiled from their derivative rules. */
+	private static final int[][] FUNCTION_RULES = new int[128][];
+	/** Literals of the function rules, written as Double.toString does; a LITERAL task indexes them. */
+	private static final double[] RULE_LITERALS;
+
+	static {
+		final List<Double> literals = new ArrayList<Double>();
+		for (FunctionRegistry.Function function : FunctionRegistry.getFunctions()) {
+			FUNCTION_RULES[function.getOpcode()] = compileRule(function.getDerivativeTemplate(), literals);
+		}
+		RULE_LITERALS = new double[literals.size()];
+		for (int i = 0; i < RULE_LITERALS.length; i++) {
+			RULE_LITERALS[i] = literals.get(i);
+		}
+	}
+
+	private final byte[] _ops;
+	private final int[] _operands;
+	private final double[] _constants;
+	private final String[] _names;
+	private final int _maxStack;
+
+	private CompactExpression (byte[] ops, int[] operands, double[] constants, String[] names) {
+		_ops = ops;
+		_operands = operands;
+		_constants = constants;
+		_names = names;
+		int depth = 0, maxDepth = 0;
+		for (byte op : ops) {
+			depth += 1 - arity(op);
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		_maxStack = maxDepth;
+	}
+
+	/**
+	 * Converts an expression tree.
+	 * @param expression the root of the tree
+	 * @return the compact form
+	 * @throws UnsupportedOperationException if an operator node has the wrong number of operands
+	 */
+	public static CompactExpression of (Expression expression) {
+		final Builder builder = new Builder(new String[0]);
+		final Deque<Expression> nodes = new ArrayDeque<Expression>();
+		final Deque<int[]> visited = new ArrayDeque<int[]>();
+		nodes.push(expression);
+		visited.push(new int[1]);
+		while (!nodes.isEmpty()) {
+			final Expression node = nodes.peek();
+			final List<Expression> children = node.getChildren();
+			final int[] next = visited.peek();
+			if (next[0] < children.size()) {
+				nodes.push(children.get(next[0]++));
+				visited.push(new int[1]);
+				continue;
+			}
+			nodes.pop();
+			visited.pop();
+			final String name = node.getName();
+			final byte op = resolve(name);
+			if (children.size() != arity(op)) {
+				throw new UnsupportedOperationException("Operator " + name + " expects " + arity(op) + " operand(s)");
+			}
+			if (op == OP_CONST) {
+				final double value = Double.parseDouble(name);
+				final boolean integer = !name.equals(Double.toString(value)) && name.equals(format(value));
+				builder.constant(value, integer);
+			} else if (op == OP_PARAM) {
+				builder.parameter(name);
+			} else {
+				builder.operator(op);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Rebuilds the expression as a tree of ParsedExpression nodes.
+	 * @return the root of the new tree
+	 */
+	public Expression toExpression () {
+		final Expression[] stack = new Expression[Math.max(1, _maxStack)];
+		int sp = 0;
+		for (int i = 0; i < _ops.length; i++) {
+			final Expression node = new ParsedExpression(getName(i));
+			final int arity = arity(_ops[i]);
+			for (int c = sp - arity; c < sp; c++) {
+				node.addSubexpression(stack[c]);
+			}
+			sp -= arity;
+			stack[sp++] = node;
+		}
+		return stack[0];
+	}
+
+	/**
+	 * Getter for the number of nodes
+	 * @return the node count
+	 */
+	public int size () {
+		return _ops.length;
+	}
+
+	/**
+	 * Getter for a node's name, as ParsedExpression would have it
+	 * @param node the node index
+	 * @return the operator, x, the parameter name or the literal
+	 */
+	public String getName (int node) {
+		switch (_ops[node]) {
+		case OP_CONST:
+			return Double.toString(_constants[_operands[node]]);
+		case OP_INTEGER:
+			return format(_constants[_operands[node]]);
+		case OP_X:
+			return "x";
+		case OP_PARAM:
+			return _names[_operands[node]];
+		case OP_ADD:
+			return "+";
+		case OP_SUB:
+			return "-";
+		case OP_MUL:
+			return "*";
+		case OP_DIV:
+			return "/";
+		case OP_POW:
+			return "^";
+		case OP_GROUP:
+			return "()";
+		default:
+			return FunctionRegistry.get(_ops[node]).getName();
+		}
+	}
+
+	/**
+	 * Getter for a node's children
+	 * @param node the node index
+	 * @return the indices of its children, left to right
+	 */
+	public int[] getChildren (int node) {
+		switch (arity(_ops[node])) {
+		case 0:
+			return new int[0];
+		case 1:
+			return new int[] { node - 1 };
+		default:
+			return new int[] { _operands[node], node - 1 };
+		}
+	}
+
+	/**
+	 * Given the value of the independent variable x, compute the value of this expression.
+	 * Parameters are 0, as in ParsedExpression.evaluate.
+	 * @param x the value of the independent variable x
+	 * @return the value of this expression.
+	 */
+	public double evaluate (double x) {
+		return run(x, new double[Math.max(1, _maxStack)]);
+	}
+
+	/**
+	 * Evaluates this expression at every x in xs, writing the i-th result to out[i].
+	 * @param xs the values of the independent variable x
+	 * @param out receives the value of this expression at each x; at least as long as xs
+	 */
+	public void evaluate (double[] xs, double[] out) {
+		if (out.length < xs.length) {
+			throw new IllegalArgumentException("Output holds " + out.length + " values, need " + xs.length);
+		}
+		final double[] stack = new double[Math.max(1, _maxStack)];
+		for (int i = 0; i < xs.length; i++) {
+			out[i] = run(xs[i], stack);
+		}
+	}
+
+	/**
+	 * Post-order is postfix order, so evaluation is one pass over the nodes with a value stack.
+	 */
+	private double run (double x, double[] stack) {
+		final byte[] ops = _ops;
+		int sp = 0;
+		for (int i = 0; i < ops.length; i++) {
+			switch (ops[i]) {
+			case OP_CONST:
+			case OP_INTEGER:
+				stack[sp++] = _constants[_operands[i]];
+				break;
+			case OP_X:
+				stack[sp++] = x;
+				break;
+			case OP_PARAM:
+				stack[sp++] = 0;
+				break;
+			case OP_ADD:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] + stack[sp];
+				break;
+			case OP_SUB:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] - stack[sp];
+				break;
+			case OP_MUL:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] * stack[sp];
+				break;
+			case OP_DIV:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] / stack[sp];
+				break;
+			case OP_POW:
+				sp--;
+				stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+				break;
+			case OP_GROUP:
+				break;
+			default:
+				stack[sp - 1] = FunctionRegistry.get(ops[i]).apply(stack[sp - 1]);
+				break;
+			}
+		}
+		return stack[0];
+	}
+
+	/**
+	 * Creates a String representation of this expression with a given starting indent level,
+	 * in the same layout as ParsedExpression.convertToString.
+	 * @param indentLevel how many tab characters should appear at the beginning of each line.
+	 * @return the String representing this expression.
+	 */
+	public String convertToString (int indentLevel) {
+		final StringBuilder s = new StringBuilder(_ops.length * 4);
+		final int[] nodes = new int[_ops.length], depths = new int[_ops.length];
+		int top = 0;
+		nodes[top] = _ops.length - 1;
+		depths[top++] = indentLevel;
+		while (top > 0) {
+			top--;
+			final int node = nodes[top], depth = depths[top];
+			for (int i = 0; i < depth; i++) {
+				s.append('\t');
+			}
+			s.append(getName(node)).append('\n');
+			final int arity = arity(_ops[node]);
+			if (arity > 0) {
+				nodes[top] = node - 1;
+				depths[top++] = depth + 1;
+			}
+			if (arity > 1) {
+				nodes[top] = _operands[node];
+				depths[top++] = depth + 1;
+			}
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Differentiates with the rules of ParsedExpression.differentiate, building the result
+	 * straight into arrays: subtrees the rules reuse are copied as contiguous ranges.
+	 * @return the derivative
+	 */
+	public CompactExpression differentiate () {
+		final Builder out = new Builder(_names);
+		int[] kinds = new int[16], args = new int[16];
+		kinds[0] = DERIVE;
+		args[0] = _ops.length - 1;
+		int top = 1;
+		while (top > 0) {
+			top--;
+			final int kind = kinds[top], arg = args[top];
+			if (kind == COPY) {
+				out.copy(this, arg);
+			} else if (kind == OPERATOR) {
+				out.operator((byte) arg);
+			} else if (kind == CONSTANT) {
+				out.constant(arg, true);
+			} else if (kind == LITERAL) {
+				out.constant(RULE_LITERALS[arg], false);
+			} else {
+				final int[] rule = rule(arg);
+				if (top + rule.length / 2 > kinds.length) {
+					kinds = Arrays.copyOf(kinds, Math.max(kinds.length * 2, top + rule.length / 2));
+					args = Arrays.copyOf(args, kinds.length);
+				}
+				final int a = arity(_ops[arg]) == 2 ? _operands[arg] : arg - 1, b = arg - 1;
+				for (int r = rule.length - 2; r >= 0; r -= 2) {
+					final int value = rule[r + 1];
+					kinds[top] = rule[r];
+					args[top++] = rule[r] == DERIVE || rule[r] == COPY ? (value == A ? a : b) : value;
+				}
+			}
+		}
+		return out.build();
+	}
+
+	/**
+	 * Picks the differentiation rule for a node.
+	 */
+	private int[] rule (int node) {
+		switch (_ops[node]) {
+		case OP_X:
+			return RULE_X;
+		case OP_ADD:
+			return RULE_ADD;
+		case OP_SUB:
+			return RULE_SUB;
+		case OP_MUL:
+			return RULE_MUL;
+		case OP_DIV:
+			return RULE_DIV;
+		case OP_POW:
+			if (isLiteral(_ops[_operands[node]])) {
+				return RULE_CONSTANT_BASE;
+			}
+			return isLiteral(_ops[node - 1]) ? RULE_CONSTANT_EXPONENT : RULE_ZERO;
+		case OP_GROUP:
+			return RULE_GROUP;
+		default:
+			return _ops[node] >= OP_FUNCTION ? FUNCTION_RULES[_ops[node]] : RULE_ZERO;
+		}
+	}
+
+	/**
+	 * Finds where a node's subtree starts: at its leftmost leaf.
+	 */
+	private int start (int node) {
+		while (true) {
+			final int arity = arity(_ops[node]);
+			if (arity == 0) {
+				return node;
+			}
+			node = arity == 2 ? _operands[node] : node - 1;
+		}
+	}
+
+	/**
+	 * Estimates the memory held by the arrays, not counting parameter name strings, which are
+	 * shared with the tree.
+	 * @return the size in bytes
+	 */
+	public long getByteSize () {
+		return align(HEADER + 4 * REFERENCE + 4) + array(_ops.length, 1) + array(_operands.length, 4)
+				+ array(_constants.length, 8) + array(_names.length, REFERENCE);
+	}
+
+	/**
+	 * Estimates the memory held by an expression tree of ParsedExpression nodes: each node, its
+	 * child list with the backing array, and its name string. Objects that several nodes share
+	 * are counted once.
+	 * @param expression the root of the tree
+	 * @return the size in bytes
+	 */
+	public static long estimateTreeBytes (Expression expression) {
+		final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		final Deque<Expression> pending = new ArrayDeque<Expression>();
+		pending.push(expression);
+		long bytes = 0;
+		while (!pending.isEmpty()) {
+			final Expression node = pending.pop();
+			if (!seen.add(node)) {
+				continue;
+			}
+			final List<Expression> children = node.getChildren();
+			bytes += align(HEADER + 3 * REFERENCE);
+			bytes += align(HEADER + 4 + 4 + REFERENCE) + (children.isEmpty() ? 0 : array(Math.max(LIST_CAPACITY, children.size()), REFERENCE));
+			if (seen.add(node.getName())) {
+				bytes += align(HEADER + REFERENCE + 4 + 1 + 1) + array(node.getName().length(), 1);
+			}
+			for (Expression child : children) {
+				pending.push(child);
+			}
+		}
+		return bytes;
+	}
+
+	private static long array (int length, int elementBytes) {
+		return align(ARRAY_HEADER + (long) length * elementBytes);
+	}
+
+	private static long align (long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Resolves the opcode for a node name, applying the same rules as ParsedExpression.evaluate.
+	 */
+	private static byte resolve (String name) {
+		final byte op = ExpressionCompiler.resolve(name);
+		return op == OP_PARAM && ParsedExpression.isNumber(name) ? OP_CONST : op;
+	}
+
+	private static int arity (byte op) {
+		return isLiteral(op) ? 0 : ExpressionCompiler.arity(op);
+	}
+
+	/**
+	 * Compiles a derivative rule, a tree in u and d, into (task, argument) pairs in post-order:
+	 * u copies the operand, d derives it, and literals and operators are emitted as they are.
+	 */
+	private static int[] compileRule (Expression template, List<Double> literals) {
+		final List<Integer> rule = new ArrayList<Integer>();
+		final Deque<Expression> nodes = new ArrayDeque<Expression>();
+		final Deque<int[]> visited = new ArrayDeque<int[]>();
+		nodes.push(template);
+		visited.push(new int[1]);
+		while (!nodes.isEmpty()) {
+			final Expression node = nodes.peek();
+			final List<Expression> children = node.getChildren();
+			final int[] next = visited.peek();
+			if (next[0] < children.size()) {
+				nodes.push(children.get(next[0]++));
+				visited.push(new int[1]);
+				continue;
+			}
+			nodes.pop();
+			visited.pop();
+			final String name = node.getName();
+			final byte op = resolve(name);
+			if (op == OP_CONST) {
+				rule.add(LITERAL);
+				rule.add(literals.size());
+				literals.add(Double.parseDouble(name));
+			} else if (op == OP_PARAM) {
+				if (!name.equals("u") && !name.equals("d")) {
+					throw new IllegalStateException("Unknown name " + name + " in a derivative rule");
+				}
+				rule.add(name.equals("u") ? COPY : DERIVE);
+				rule.add(A);
+			} else {
+				rule.add(OPERATOR);
+				rule.add((int) op);
+			}
+		}
+		final int[] compiled = new int[rule.size()];
+		for (int i = 0; i < compiled.length; i++) {
+			compiled[i] = rule.get(i);
+		}
+		return compiled;
+	}
+
+	private static boolean isLiteral (byte op) {
+		return op == OP_CONST || op == OP_INTEGER;
+	}
+
+	/**
+	 * Writes an integral value without a fraction, the way the differentiation rules name literals.
+	 */
+	private static String format (double value) {
+		return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+	}
+
+	/**
+	 * Appends nodes in post-order, tracking the roots of the finished subtrees that are waiting
+	 * to become operands.
+	 */
+	private static final class Builder {
+		private byte[] _ops = new byte[16];
+		private int[] _operands = new int[16];
+		private int _size;
+		private double[] _constants = new double[8];
+		private int _constantCount;
+		private final Map<String, Integer> _names = new LinkedHashMap<String, Integer>();
+		private int[] _roots = new int[16];
+		private int _depth;
+
+		Builder (String[] names) {
+			for (String name : names) {
+				_names.put(name, _names.size());
+			}
+		}
+
+		void constant (double value, boolean integer) {
+			push(append(integer ? OP_INTEGER : OP_CONST, addConstant(value)));
+		}
+
+		void parameter (String name) {
+			Integer index = _names.get(name);
+			if (index == null) {
+				index = _names.size();
+				_names.put(name, index);
+			}
+			push(append(OP_PARAM, index));
+		}
+
+		void operator (byte op) {
+			final int arity = arity(op);
+			_depth -= arity;
+			push(append(op, arity == 2 ? _roots[_depth] : -1));
+		}
+
+		/**
+		 * Appends a copy of one of source's subtrees. The name tables must be the same.
+		 */
+		void copy (CompactExpression source, int node) {
+			final int start = source.start(node), base = _size;
+			for (int i = start; i <= node; i++) {
+				final byte op = source._ops[i];
+				final int operand = source._operands[i];
+				if (isLiteral(op)) {
+					append(op, addConstant(source._constants[operand]));
+				} else if (arity(op) == 2) {
+					append(op, operand - start + base);
+				} else {
+					append(op, operand);
+				}
+			}
+			push(_size - 1);
+		}
+
+		private int addConstant (double value) {
+			if (_constantCount == _constants.length) {
+				_constants = Arrays.copyOf(_constants, _constantCount * 2);
+			}
+			_constants[_constantCount] = value;
+			return _constantCount++;
+		}
+
+		private int append (byte op, int operand) {
+			if (_size == _ops.length) {
+				_ops = Arrays.copyOf(_ops, _size * 2);
+				_operands = Arrays.copyOf(_operands, _size * 2);
+			}
+			_ops[_size] = op;
+			_operands[_size] = operand;
+			return _size++;
+		}
+
+		private void push (int root) {
+			if (_depth == _roots.length) {
+				_roots = Arrays.copyOf(_roots, _depth * 2);
+			}
+			_roots[_depth++] = root;
+		}
+
+		CompactExpression build () {
+			return new CompactExpression(Arrays.copyOf(_ops, _size), Arrays.copyOf(_operands, _size),
+					Arrays.copyOf(_constants, _constantCount), _names.keySet().toArray(new String[0]));
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package application;
+
+import static application.ExpressionCompiler.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Immutable postfix program produced by ExpressionCompiler. Literals are parsed once into
+ * a constant pool and evaluation runs over a primitive stack, so evaluate does not allocate.
+ * <p>
+ * The batch form runs the program one instruction at a time over blocks of x-values,
+ * keeping one scratch column per stack slot. Each instruction is then a plain loop over
+ * primitive arrays that C2 can unroll and auto-vectorize. Batch results are bit-for-bit
+ * identical to the scalar path: both apply the same IEEE operations and the same Math
+ * calls in the same order. A function is one call to its FunctionRegistry batch kernel per
+ * block, a loop over the column with the Math call inlined, so dispatching through the
+ * registry costs once per block and not once per value.
+ * <p>
+ * Parameters are bound with withParameters, which returns a new expression sharing this one's
+ * program. Only the parameter programs are re-run, filling the constant slots that stand for
+ * the x-free subtrees using parameters, so rebinding costs time in the size of those subtrees
+ * and not of the whole expression. Unbound parameters are 0.
+ */
+public final class CompiledExpression implements DoubleUnaryOperator {
+	/** Number of x-values processed per pass over the program; keeps the columns in L1/L2. */
+	static final int BLOCK = 256;
+
+	private final byte[] _code;
+	private final int[] _args;
+	private final double[] _constants;
+	private final int _maxStack;
+	private final String[] _parameterNames;
+	private final double[] _parameters;
+	private final ParameterProgram[] _programs;
+	private final ThreadLocal<Evaluator> _evaluators = ThreadLocal.withInitial(this::newEvaluator);
+
+	/**
+	 * @param constants the constant pool; the slots of the parameter programs are filled in here
+	 */
+	CompiledExpression (byte[] code, int[] args, double[] constants, int maxStack,
+			String[] parameterNames, double[] parameters, ParameterProgram[] programs) {
+		_code = code;
+		_args = args;
+		_constants = constants;
+		_maxStack = maxStack;
+		_parameterNames = parameterNames;
+		_parameters = parameters;
+		_programs = programs;
+		for (ParameterProgram program : programs) {
+			constants[program.slot] = program.evaluate(parameters);
+		}
+	}
+
+	/**
+	 * Getter for the parameter names
+	 * @return the names, in order of first appearance
+	 */
+	public List<String> getParameterNames () {
+		return Collections.unmodifiableList(Arrays.asList(_parameterNames));
+	}
+
+	/**
+	 * Getter for the bound parameter values
+	 * @return a copy of the values, in the order of getParameterNames()
+	 */
+	public double[] getParameters () {
+		return _parameters.clone();
+	}
+
+	/**
+	 * Binds new parameter values. The program is shared; only the constant slots fed by the
+	 * parameter programs are recomputed.
+	 * @param values one value per parameter, in the order of getParameterNames()
+	 * @return the expression with the parameters bound
+	 */
+	public CompiledExpression withParameters (double... values) {
+		if (values.length != _parameters.length) {
+			throw new IllegalArgumentException("Expected " + _parameters.length + " parameter values, got " + values.length);
+		}
+		return new CompiledExpression(_code, _args, _constants.clone(), _maxStack, _parameterNames, values.clone(), _programs);
+	}
+
+	/**
+	 * Binds one parameter, keeping the others.
+	 * @param name the parameter name
+	 * @param value the new value
+	 * @return the expression with the parameter bound
+	 */
+	public CompiledExpression withParameter (String name, double value) {
+		final int index = Arrays.asList(_parameterNames).indexOf(name);
+		if (index < 0) {
+			throw new IllegalArgumentException("Unknown parameter " + name);
+		}
+		final double[] values = _parameters.clone();
+		values[index] = value;
+		return withParameters(values);
+	}
+
+	/**
+	 * Given the value of the independent variable x, compute the value of this expression.
+	 * Uses a stack owned by the calling thread, so a compiled expression can be shared.
+	 * @param x the value of the independent variable x
+	 * @return the value of this expression.
+	 */
+	public double evaluate (double x) {
+		return _evaluators.get().evaluate(x);
+	}
+
+	/**
+	 * Same as evaluate(double), so a compiled expression can stand in for generated code.
+	 * @param x the value of the independent variable x
+	 * @return the value of this expression.
+	 */
+	@Override
+	public double applyAsDouble (double x) {
+		return evaluate(x);
+	}
+
+	/**
+	 * Evaluates this expression at every x in xs, writing the i-th result to out[i].
+	 * Uses scratch columns owned by the calling thread.
+	 * @param xs the values of the independent variable x
+	 * @param out receives the value of this expression at each x; at least as long as xs
+	 */
+	public void evaluate (double[] xs, double[] out) {
+		if (out.length < xs.length) {
+			throw new IllegalArgumentException("Output holds " + out.length + " values, need " + xs.length);
+		}
+		_evaluators.get().evaluate(xs, out, 0, xs.length);
+	}
+
+	/**
+	 * Creates an evaluator with its own stack. The evaluator must only be used by one thread at a time.
+	 * @return a new evaluator for this program
+	 */
+	public Evaluator newEvaluator () {
+		return new Evaluator();
+	}
+
+	/**
+	 * Getter for the program length
+	 * @return the number of instructions in the program
+	 */
+	public int size () {
+		return _code.length;
+	}
+
+	/**
+	 * Getter for the deepest stack the program needs
+	 * @return the maximum stack depth
+	 */
+	public int getMaxStack () {
+		return _maxStack;
+	}
+
+	/**
+	 * Getter for the opcodes. The array is shared and must not be modified.
+	 * @return the opcodes in postfix order
+	 */
+	byte[] getCode () {
+		return _code;
+	}
+
+	/**
+	 * Getter for the instruction operands. The array is shared and must not be modified.
+	 * @return the constant pool index of each OP_CONST instruction, 0 for the others
+	 */
+	int[] getArgs () {
+		return _args;
+	}
+
+	/**
+	 * Getter for the constant pool. The array is shared and must not be modified.
+	 * @return the pre-parsed literals
+	 */
+	double[] getConstants () {
+		return _constants;
+	}
+
+	/**
+	 * Runs the program over a caller-provided stack.
+	 * @param x the value of the independent variable x
+	 * @param stack scratch space of at least getMaxStack() entries
+	 * @return the value of this expression
+	 */
+	private double run (double x, double[] stack) {
+		final byte[] code = _code;
+		final int[] args = _args;
+		final double[] constants = _constants;
+		int sp = 0;
+		for (int pc = 0; pc < code.length; pc++) {
+			switch (code[pc]) {
+			case OP_CONST:
+				stack[sp++] = constants[args[pc]];
+				break;
+			case OP_X:
+				stack[sp++] = x;
+				break;
+			case OP_ADD:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] + stack[sp];
+				break;
+			case OP_SUB:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] - stack[sp];
+				break;
+			case OP_MUL:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] * stack[sp];
+				break;
+			case OP_DIV:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] / stack[sp];
+				break;
+			case OP_POW:
+				sp--;
+				stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+				break;
+			default:
+				stack[sp - 1] = FunctionRegistry.get(code[pc]).apply(stack[sp - 1]);
+				break;
+			}
+		}
+		return stack[0];
+	}
+
+	/**
+	 * Runs the program over one block of x-values. A stack slot holding a value that does not
+	 * depend on x is kept as a scalar and only spread into its column when combined with one
+	 * that does.
+	 * @param xs the values of x
+	 * @param out receives the results
+	 * @param from index of the first x in the block
+	 * @param n number of values in the block, at most BLOCK
+	 * @param columns scratch columns, one per stack slot
+	 * @param scalars the value of each stack slot that is currently a scalar
+	 * @param isScalar whether each stack slot is currently a scalar
+	 */
+	private void runBlock (double[] xs, double[] out, int from, int n,
+			double[][] columns, double[] scalars, boolean[] isScalar) {
+		final byte[] code = _code;
+		final int[] args = _args;
+		int sp = 0;
+		for (int pc = 0; pc < code.length; pc++) {
+			final byte op = code[pc];
+			if (op == OP_CONST) {
+				scalars[sp] = _constants[args[pc]];
+				isScalar[sp++] = true;
+				continue;
+			}
+			if (op == OP_X) {
+				System.arraycopy(xs, from, columns[sp], 0, n);
+				isScalar[sp++] = false;
+				continue;
+			}
+			if (op >= OP_FUNCTION) {
+				final int a = sp - 1;
+				if (isScalar[a]) {
+					scalars[a] = FunctionRegistry.get(op).apply(scalars[a]);
+				} else {
+					FunctionRegistry.get(op).apply(columns[a], n);
+				}
+				continue;
+			}
+			sp--;
+			final int a = sp - 1, b = sp;
+			if (isScalar[a] && isScalar[b]) {
+				scalars[a] = apply(op, scalars[a], scalars[b]);
+				continue;
+			}
+			if (isScalar[a]) {
+				fill(columns[a], n, scalars[a]);
+				isScalar[a] = false;
+			}
+			if (isScalar[b]) {
+				fill(columns[b], n, scalars[b]);
+			}
+			final double[] l = columns[a], r = columns[b];
+			switch (op) {
+			case OP_ADD:
+				for (int i = 0; i < n; i++) {
+					l[i] = l[i] + r[i];
+				}
+				break;
+			case OP_SUB:
+				for (int i = 0; i < n; i++) {
+					l[i] = l[i] - r[i];
+				}
+				break;
+			case OP_MUL:
+				for (int i = 0; i < n; i++) {
+					l[i] = l[i] * r[i];
+				}
+				break;
+			case OP_DIV:
+				for (int i = 0; i < n; i++) {
+					l[i] = l[i] / r[i];
+				}
+				break;
+			case OP_POW:
+				for (int i = 0; i < n; i++) {
+					l[i] = Math.pow(l[i], r[i]);
+				}
+				break;
+			}
+		}
+		if (isScalar[0]) {
+			fill(out, from, from + n, scalars[0]);
+		} else {
+			System.arraycopy(columns[0], 0, out, from, n);
+		}
+	}
+
+	/**
+	 * Applies a binary opcode to two scalars.
+	 * @param op the opcode
+	 * @param l the left operand
+	 * @param r the right operand
+	 * @return the result
+	 */
+	private static double apply (byte op, double l, double r) {
+		switch (op) {
+		case OP_ADD:
+			return l + r;
+		case OP_SUB:
+			return l - r;
+		case OP_MUL:
+			return l * r;
+		case OP_DIV:
+			return l / r;
+		default:
+			return Math.pow(l, r);
+		}
+	}
+
+	private static void fill (double[] column, int n, double value) {
+		fill(column, 0, n, value);
+	}
+
+	private static void fill (double[] column, int from, int to, double value) {
+		for (int i = from; i < to; i++) {
+			column[i] = value;
+		}
+	}
+
+	/**
+	 * A postfix program over parameters and constants only, for one x-free subtree. Its
+	 * result is stored in constant slot slot of the main program.
+	 */
+	static final class ParameterProgram {
+		final int slot;
+		private final byte[] _code;
+		private final int[] _args;
+		private final double[] _constants;
+
+		/**
+		 * @param slot the constant pool index the result goes to
+		 * @param code the opcodes; no OP_X
+		 * @param args the constant index of each OP_CONST and parameter index of each OP_PARAM
+		 * @param constants the constants the program reads
+		 */
+		ParameterProgram (int slot, byte[] code, int[] args, double[] constants) {
+			this.slot = slot;
+			_code = code;
+			_args = args;
+			_constants = constants;
+		}
+
+		double evaluate (double[] parameters) {
+			final double[] stack = new double[_code.length];
+			int sp = 0;
+			for (int pc = 0; pc < _code.length; pc++) {
+				final byte op = _code[pc];
+				if (op == OP_CONST) {
+					stack[sp++] = _constants[_args[pc]];
+				} else if (op == OP_PARAM) {
+					stack[sp++] = parameters[_args[pc]];
+				} else if (op >= OP_FUNCTION) {
+					stack[sp - 1] = FunctionRegistry.get(op).apply(stack[sp - 1]);
+				} else {
+					sp--;
+					stack[sp - 1] = apply(op, stack[sp - 1], stack[sp]);
+				}
+			}
+			return stack[0];
+		}
+	}
+
+	/**
+	 * Thread-confined evaluator that owns its stack.
+	 */
+	public final class Evaluator {
+		private final double[] _stack = new double[Math.max(1, _maxStack)];
+		private double[][] _columns;
+		private double[] _scalars;
+		private boolean[] _isScalar;
+
+		private Evaluator () {
+		}
+
+		/**
+		 * Given the value of the independent variable x, compute the value of this expression.
+		 * @param x the value of the independent variable x
+		 * @return the value of this expression.
+		 */
+		public double evaluate (double x) {
+			return run(x, _stack);
+		}
+
+		/**
+		 * Evaluates this expression for xs[offset] through xs[offset + length - 1],
+		 * writing each result to the same index of out.
+		 * @param xs the values of the independent variable x
+		 * @param out receives the value of this expression at each x
+		 * @param offset the first index to evaluate
+		 * @param length how many values to evaluate
+		 */
+		public void evaluate (double[] xs, double[] out, int offset, int length) {
+			if (_columns == null) {
+				final int slots = Math.max(1, _maxStack);
+				_columns = new double[slots][BLOCK];
+				_scalars = new double[slots];
+				_isScalar = new boolean[slots];
+			}
+			final int end = offset + length;
+			for (int from = offset; from < end; from += BLOCK) {
+				runBlock(xs, out, from, Math.min(BLOCK, end - from), _columns, _scalars, _isScalar);
+			}
+		}
+	}
+}
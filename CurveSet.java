@@ -0,0 +1,314 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The functions plotted together, each with its own tile caches. Every update compares each
+ * function with what was sampled for it before: only a function whose text, parameter values
+ * or derivative flag changed gets new caches, so editing one function re-samples only that
+ * curve. All visible curves (and derivatives) are then sampled over the viewport together,
+ * sharing one fused pass per tile among the curves that miss it. Functions can also have their
+ * roots, poles and extrema located by a FeatureFinder; those are kept until the function or the
+ * x-range of the viewport changes. Likewise a function's integral over a chosen x-range is kept
+ * until the function or the range changes.
+ * <p>
+ * A curve set is not thread-safe; it is meant to be owned by the plot worker thread.
+ */
+public class CurveSet {
+	/**
+	 * One function as the user entered it.
+	 */
+	public static final class Function {
+		final int id;
+		final String text;
+		final boolean visible, derivative, features;
+		final double integralFrom, integralTo;
+
+		/**
+		 * @param id identifies the function across updates
+		 * @param text the expression text
+		 * @param visible whether the curve is drawn
+		 * @param derivative whether its derivative is drawn too
+		 * @param features whether its roots, poles and extrema are located
+		 * @param integralFrom the lower limit of its integral, NaN for none
+		 * @param integralTo the upper limit of its integral, NaN for none
+		 */
+		public Function (int id, String text, boolean visible, boolean derivative, boolean features, double integralFrom,
+				double integralTo) {
+			this.id = id;
+			this.text = text;
+			this.visible = visible;
+			this.derivative = derivative;
+			this.features = features;
+			this.integralFrom = integralFrom;
+			this.integralTo = integralTo;
+		}
+
+		public Function (int id, String text, boolean visible, boolean derivative, boolean features) {
+			this(id, text, visible, derivative, features, Double.NaN, Double.NaN);
+		}
+	}
+
+	/**
+	 * The outcome for one function: its curves, or why it could not be plotted.
+	 */
+	public static final class Result {
+		private final int _id;
+		private SampledCurve _curve, _derivative;
+		private List<FeatureFinder.Feature> _features = Collections.emptyList();
+		private Integrator.Result _integral;
+		private Exception _error;
+
+		Result (int id) {
+			_id = id;
+		}
+
+		public int getId () {
+			return _id;
+		}
+
+		/**
+		 * Getter for the sampled curve
+		 * @return the curve, or null if the function is hidden or invalid
+		 */
+		public SampledCurve getCurve () {
+			return _curve;
+		}
+
+		/**
+		 * Getter for the sampled derivative
+		 * @return the derivative, or null if it is not shown
+		 */
+		public SampledCurve getDerivative () {
+			return _derivative;
+		}
+
+		/**
+		 * Getter for the located roots, poles and extrema
+		 * @return the features in increasing x, empty if they were not asked for
+		 */
+		public List<FeatureFinder.Feature> getFeatures () {
+			return _features;
+		}
+
+		/**
+		 * Getter for the integral over the function's chosen x-range
+		 * @return the integral, or null if it was not asked for
+		 */
+		public Integrator.Result getIntegral () {
+			return _integral;
+		}
+
+		/**
+		 * Getter for the parse, compile, feature or integration error
+		 * @return the error, or null if the function is valid
+		 */
+		public Exception getError () {
+			return _error;
+		}
+	}
+
+	/**
+	 * What was last sampled for a function.
+	 */
+	private static final class State {
+		ExpressionCache.Entry entry;
+		CompiledExpression function;
+		SampleTileCache tiles, derivativeTiles;
+		FeatureFinder finder;
+		List<FeatureFinder.Feature> features;
+		double featureMinX, featureMaxX, featureTolerance;
+		Integrator.Result integral;
+		double integralFrom, integralTo;
+	}
+
+	/** Feature search tolerance, as a fraction of a pixel. */
+	private static final double FEATURE_PIXELS = 1.0 / 8;
+
+	private final ExpressionCache _cache;
+	private final AdaptiveSampler _sampler;
+	private final Integrator _integrator = new Integrator();
+	private final Map<Integer, State> _states = new HashMap<Integer, State>();
+	private List<String> _parameterNames = new ArrayList<String>();
+	private long _resampledCount;
+
+	public CurveSet (ExpressionCache cache, AdaptiveSampler sampler) {
+		_cache = cache;
+		_sampler = sampler;
+	}
+
+	/**
+	 * Brings every function up to date and samples the visible ones over a viewport, locating the
+	 * features of those that ask for them and integrating those given limits. A function that
+	 * fails any of these gets an error result; the others are still plotted.
+	 * @param functions the functions, in drawing order; functions no longer listed are forgotten
+	 * @param parameters the parameter values by name
+	 * @param parameterDefault the value of a parameter missing from parameters
+	 * @param minX the left edge of the viewport
+	 * @param maxX the right edge of the viewport
+	 * @param minY the bottom edge of the viewport
+	 * @param maxY the top edge of the viewport
+	 * @param width the viewport width in pixels
+	 * @param height the viewport height in pixels
+	 * @return one result per function, in order
+	 */
+	public List<Result> sample (List<Function> functions, Map<String, Double> parameters, double parameterDefault,
+			double minX, double maxX, double minY, double maxY, int width, int height) {
+		final long start = System.nanoTime();
+		final List<Result> results = new ArrayList<Result>(functions.size());
+		final List<SampleTileCache> caches = new ArrayList<SampleTileCache>();
+		final Set<Integer> ids = new HashSet<Integer>();
+		final Set<String> names = new LinkedHashSet<String>();
+		for (Function function : functions) {
+			ids.add(function.id);
+			final Result result = new Result(function.id);
+			results.add(result);
+			try {
+				final State state = update(function, parameters, parameterDefault);
+				names.addAll(state.function.getParameterNames());
+				if (function.visible) {
+					caches.add(state.tiles);
+					if (function.derivative) {
+						caches.add(state.derivativeTiles);
+					}
+				}
+			} catch (ExpressionParseException | UnsupportedOperationException e) {
+				result._error = e;
+				_states.remove(function.id);
+			}
+		}
+		_states.keySet().retainAll(ids);
+		_parameterNames = new ArrayList<String>(names);
+		final SampledCurve[] curves = SampleTileCache.sample(caches.toArray(new SampleTileCache[0]), minX, maxX, minY, maxY, width, height);
+		long samples = 0, evaluations = 0;
+		for (SampledCurve curve : curves) {
+			samples += curve.getPointCount();
+			evaluations += curve.getEvaluations();
+		}
+		Metrics.plotted(functions.size(), samples, evaluations, System.nanoTime() - start);
+		int next = 0;
+		for (int i = 0; i < functions.size(); i++) {
+			final Function function = functions.get(i);
+			final Result result = results.get(i);
+			if (result._error == null && function.visible) {
+				final SampledCurve curve = curves[next++];
+				final SampledCurve derivative = function.derivative ? curves[next++] : null;
+				try {
+					if (function.features) {
+						result._features = features(_states.get(function.id), parameters, parameterDefault,
+								minX, maxX, (maxX - minX) / width * FEATURE_PIXELS);
+					}
+					if (!Double.isNaN(function.integralFrom) && !Double.isNaN(function.integralTo)) {
+						result._integral = integral(_states.get(function.id), function.integralFrom, function.integralTo);
+					}
+					result._curve = curve;
+					result._derivative = derivative;
+				} catch (RuntimeException e) {
+					result._features = Collections.emptyList();
+					result._integral = null;
+					result._error = e;
+					_states.remove(function.id);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Points a function's caches at its current text and parameter values, replacing only what changed.
+	 */
+	private State update (Function function, Map<String, Double> parameters, double parameterDefault) throws ExpressionParseException {
+		final ExpressionCache.Entry entry = _cache.lookup(function.text);
+		final CompiledExpression compiled = entry.getCompiled();
+		final double[] values = values(compiled, parameters, parameterDefault);
+		State state = _states.get(function.id);
+		if (state == null) {
+			state = new State();
+			_states.put(function.id, state);
+		}
+		if (state.entry != entry || !Arrays.equals(values, state.function.getParameters())) {
+			state.entry = entry;
+			state.function = compiled.withParameters(values);
+			state.tiles = new SampleTileCache(state.function, _sampler);
+			state.derivativeTiles = null;
+			state.finder = null;
+			state.features = null;
+			state.integral = null;
+			_resampledCount++;
+		}
+		if (function.derivative && state.derivativeTiles == null) {
+			final DoubleUnaryOperator derivative = new TaylorEvaluator(state.function, 1).derivative(1);
+			state.derivativeTiles = new SampleTileCache(derivative, _sampler);
+		}
+		return state;
+	}
+
+	/**
+	 * Locates a function's features over [minX, maxX], reusing the last result for the same range.
+	 * The derivative is the simplified one from differentiate(), bound to the same parameters.
+	 */
+	private List<FeatureFinder.Feature> features (State state, Map<String, Double> parameters, double parameterDefault,
+			double minX, double maxX, double tolerance) {
+		if (state.features != null && state.featureMinX == minX && state.featureMaxX == maxX && state.featureTolerance == tolerance) {
+			return state.features;
+		}
+		if (state.finder == null) {
+			final CompiledExpression derivative = state.entry.getCompiledDerivative();
+			state.finder = new FeatureFinder(state.function, derivative.withParameters(values(derivative, parameters, parameterDefault)));
+		}
+		state.features = state.finder.find(minX, maxX, tolerance);
+		state.featureMinX = minX;
+		state.featureMaxX = maxX;
+		state.featureTolerance = tolerance;
+		return state.features;
+	}
+
+	/**
+	 * Integrates a function from one x to another, reusing the last result for the same limits.
+	 */
+	private Integrator.Result integral (State state, double from, double to) {
+		if (state.integral == null || state.integralFrom != from || state.integralTo != to) {
+			state.integral = _integrator.integrate(state.function, from, to, 0, Integrator.DEFAULT_TOLERANCE);
+			state.integralFrom = from;
+			state.integralTo = to;
+		}
+		return state.integral;
+	}
+
+	/**
+	 * Looks up the value of each of an expression's parameters.
+	 */
+	static double[] values (CompiledExpression compiled, Map<String, Double> parameters, double parameterDefault) {
+		final List<String> names = compiled.getParameterNames();
+		final double[] values = new double[names.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = parameters.getOrDefault(names.get(i), parameterDefault);
+		}
+		return values;
+	}
+
+	/**
+	 * Getter for the parameters used by the valid functions of the last sample call
+	 * @return the parameter names, in order of first appearance
+	 */
+	public List<String> getParameterNames () {
+		return _parameterNames;
+	}
+
+	/**
+	 * Getter for how many times a function's curve was invalidated because it changed
+	 * @return the number of invalidations
+	 */
+	public long getResampledCount () {
+		return _resampledCount;
+	}
+}
@@ -0,0 +1,205 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merges concurrent evaluations of the same compiled expression, with the same parameter
+ * values, into one columnar evaluation. There is no batching window: the first caller for an
+ * expression evaluates at once, and callers arriving meanwhile queue up. When it finishes, the
+ * first queued caller runs everything queued so far as one batch, bounded by MAX_BATCH values,
+ * and so on until the queue is empty. An idle expression therefore costs no extra latency, and a
+ * busy one is evaluated in as few passes as there are arrival waves. Every caller runs at most
+ * one batch, which always includes its own values.
+ */
+final class EvaluationBatcher {
+	/** Most x-values gathered into one batch; a batch always takes at least one request. */
+	static final int MAX_BATCH = 1 << 20;
+
+	private final ConcurrentHashMap<Key, Lane> _lanes = new ConcurrentHashMap<Key, Lane>();
+	private final LongAdder _requests = new LongAdder(), _batches = new LongAdder();
+
+	/** What identifies a batchable evaluation: the program and the bound parameter values. */
+	private static final class Key {
+		final CompiledExpression program;
+		final double[] parameters;
+
+		Key (CompiledExpression program, double[] parameters) {
+			this.program = program;
+			this.parameters = parameters;
+		}
+
+		@Override
+		public boolean equals (Object o) {
+			return o instanceof Key && ((Key) o).program == program && Arrays.equals(((Key) o).parameters, parameters);
+		}
+
+		@Override
+		public int hashCode () {
+			return System.identityHashCode(program) * 31 + Arrays.hashCode(parameters);
+		}
+	}
+
+	/** Callers waiting on one key. Only touched inside ConcurrentHashMap.compute for its key. */
+	private static final class Lane {
+		final List<Pending> queue = new ArrayList<Pending>();
+	}
+
+	/** One caller's values, and its result once the batch holding it has run. */
+	private static final class Pending {
+		final double[] xs;
+		double[] ys;
+		Throwable error;
+		boolean done, lead;
+
+		Pending (double[] xs) {
+			this.xs = xs;
+		}
+
+		synchronized void await () {
+			boolean interrupted = false;
+			while (!done && !lead) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized void promote () {
+			lead = true;
+			notifyAll();
+		}
+
+		synchronized void complete (double[] ys, Throwable error) {
+			this.ys = ys;
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Evaluates an expression at every x, sharing the pass with concurrent callers.
+	 * @param program the compiled expression; callers are only merged if they pass the same instance
+	 * @param parameters the parameter values, in the order of program.getParameterNames()
+	 * @param xs the values of the independent variable x; must not be modified until this returns
+	 * @return the value of the expression at each x
+	 * @throws RuntimeException or Error, whatever the batch holding this call threw; every caller
+	 * in the batch gets it
+	 */
+	double[] evaluate (CompiledExpression program, double[] parameters, double[] xs) {
+		_requests.increment();
+		final Key key = new Key(program, parameters.clone());
+		final Pending mine = new Pending(xs);
+		_lanes.compute(key, (k, lane) -> {
+			if (lane == null) {
+				lane = new Lane();
+				mine.lead = true;
+			}
+			lane.queue.add(mine);
+			return lane;
+		});
+		mine.await();
+		if (!mine.done) {
+			run(key);
+		}
+		if (mine.error instanceof RuntimeException) {
+			throw (RuntimeException) mine.error;
+		}
+		if (mine.error != null) {
+			throw (Error) mine.error;
+		}
+		return mine.ys;
+	}
+
+	/**
+	 * Runs the queued head of a lane as one batch, then hands the lane to the next queued caller
+	 * or removes it.
+	 */
+	private void run (Key key) {
+		final List<Pending> batch = new ArrayList<Pending>();
+		_lanes.compute(key, (k, lane) -> {
+			int total = 0;
+			while (!lane.queue.isEmpty() && (batch.isEmpty() || total + lane.queue.get(0).xs.length <= MAX_BATCH)) {
+				final Pending next = lane.queue.remove(0);
+				total += next.xs.length;
+				batch.add(next);
+			}
+			return lane;
+		});
+		_batches.increment();
+		double[][] results = null;
+		Throwable error = null;
+		try {
+			results = evaluate(key, batch);
+		} catch (RuntimeException | Error e) {
+			error = e;
+		} finally {
+			final Pending[] next = new Pending[1];
+			_lanes.compute(key, (k, lane) -> {
+				if (lane.queue.isEmpty()) {
+					return null;
+				}
+				next[0] = lane.queue.get(0);
+				return lane;
+			});
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).complete(results == null ? null : results[i], error);
+			}
+			if (next[0] != null) {
+				next[0].promote();
+			}
+		}
+	}
+
+	private static double[][] evaluate (Key key, List<Pending> batch) {
+		final CompiledExpression bound = key.program.withParameters(key.parameters);
+		final double[][] results = new double[batch.size()][];
+		if (batch.size() == 1) {
+			results[0] = new double[batch.get(0).xs.length];
+			bound.evaluate(batch.get(0).xs, results[0]);
+			return results;
+		}
+		int total = 0;
+		for (Pending p : batch) {
+			total += p.xs.length;
+		}
+		final double[] xs = new double[total], ys = new double[total];
+		int offset = 0;
+		for (Pending p : batch) {
+			System.arraycopy(p.xs, 0, xs, offset, p.xs.length);
+			offset += p.xs.length;
+		}
+		bound.evaluate(xs, ys);
+		offset = 0;
+		for (int i = 0; i < results.length; i++) {
+			results[i] = Arrays.copyOfRange(ys, offset, offset + batch.get(i).xs.length);
+			offset += results[i].length;
+		}
+		return results;
+	}
+
+	/**
+	 * Getter for the number of evaluate calls so far
+	 * @return the request count
+	 */
+	long getRequestCount () {
+		return _requests.sum();
+	}
+
+	/**
+	 * Getter for the number of columnar passes run so far; at most the request count
+	 * @return the batch count
+	 */
+	long getBatchCount () {
+		return _batches.sum();
+	}
+}
@@ -0,0 +1,447 @@
+package application;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP service exposing the parser and evaluator to other tools, on the JDK's
+ * com.sun.net.httpserver. Nothing here touches JavaFX. Every endpoint takes a POST whose body is
+ * JSON, or the binary format below if the Content-Type is application/octet-stream; the response
+ * uses the format of the request.
+ * <ul>
+ * <li>/parse {expression} returns {tree, nodes, parameters}: the tree as convertToString(0)
+ * prints it, its node count and its parameter names.</li>
+ * <li>/evaluate {expression, parameters, minX, maxX, count} returns {ys}, the values on count
+ * evenly spaced points from minX to maxX. JSON requests may pass an array xs instead of the
+ * grid. Concurrent requests for the same expression and parameters share one columnar pass
+ * through an EvaluationBatcher.</li>
+ * <li>/differentiate {expression} returns {derivative, nodes}: the simplified derivative.</li>
+ * <li>/sample {expression, parameters, minX, maxX, minY, maxY, width, height} returns
+ * {evaluations, segments: [{xs, ys}]}, the adaptively sampled curve of the viewport.</li>
+ * </ul>
+ * parameters is an optional object of name to value; unbound parameters are 0. Non-finite
+ * values are written as null in JSON.
+ * <p>
+ * Binary bodies are little-endian, like BatchCalculator output. A string is an int32 byte length
+ * followed by UTF-8 bytes. A request is the expression string, an int32 parameter count and per
+ * parameter a name string and a float64 value, followed by the endpoint's fields in the order
+ * listed above as float64 or int32 (count, width and height). Responses are:
+ * /parse: tree string, int32 nodes, int32 parameter count, name strings;
+ * /evaluate: int32 count, count float64 values;
+ * /differentiate: derivative string, int32 nodes;
+ * /sample: int64 evaluations, int32 segment count, per segment int32 n, n float64 x, n float64 y.
+ * <p>
+ * Errors answer 400 with {error, position} (position -1 when unknown), or the message as plain
+ * text and an X-Error-Position header for binary requests. Parsed trees and compiled programs
+ * come from a shared ExpressionCache; neither evaluation nor differentiation modifies a tree,
+ * and compiled expressions evaluate on per-thread stacks, so one parsed expression serves all
+ * request threads. Requests run on a fixed pool of daemon threads.
+ */
+public final class EvaluationServer {
+	public static final int DEFAULT_PORT = 8080;
+	/** Most points one /evaluate request may ask for. */
+	static final int MAX_POINTS = 1 << 22;
+	/** Largest accepted viewport side for /sample, in pixels. */
+	static final int MAX_PIXELS = 1 << 14;
+	/** Largest accepted request body. */
+	static final int MAX_BODY = 64 << 20;
+	static final int CACHE_SIZE = 1024;
+	private static final String JSON_TYPE = "application/json", BINARY_TYPE = "application/octet-stream";
+
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final ExpressionCache _cache = ExpressionCache.byEntryCount(new SimpleExpressionParser(), CACHE_SIZE);
+	private final EvaluationBatcher _batcher = new EvaluationBatcher();
+	private final AdaptiveSampler _sampler = new AdaptiveSampler();
+
+	/** One endpoint: turns a decoded request into a reply. */
+	private interface Endpoint {
+		Reply handle (Request request) throws ExpressionParseException;
+	}
+
+	/** A response body, in both formats. */
+	private interface Reply {
+		Object toJson ();
+
+		ByteBuffer toBinary ();
+	}
+
+	/**
+	 * Decoded request body. JSON fields are read by name; binary fields are read in the order the
+	 * endpoint asks for them.
+	 */
+	private static final class Request {
+		final String expression;
+		final Map<String, Double> parameters;
+		final Map<?, ?> json;
+		final ByteBuffer binary;
+
+		Request (byte[] body, boolean isBinary) {
+			if (isBinary) {
+				json = null;
+				binary = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+				expression = readString(binary);
+				final int count = binary.getInt();
+				if (count < 0 || count > binary.remaining()) {
+					throw new IllegalArgumentException("Bad parameter count " + count);
+				}
+				parameters = new LinkedHashMap<String, Double>();
+				for (int i = 0; i < count; i++) {
+					parameters.put(readString(binary), binary.getDouble());
+				}
+				return;
+			}
+			binary = null;
+			final Object value = Json.parse(new String(body, StandardCharsets.UTF_8));
+			if (!(value instanceof Map)) {
+				throw new IllegalArgumentException("Expected a JSON object");
+			}
+			json = (Map<?, ?>) value;
+			if (!(json.get("expression") instanceof String)) {
+				throw new IllegalArgumentException("Missing expression");
+			}
+			expression = (String) json.get("expression");
+			parameters = new LinkedHashMap<String, Double>();
+			final Object given = json.get("parameters");
+			if (given instanceof Map) {
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) given).entrySet()) {
+					if (!(entry.getValue() instanceof Double)) {
+						throw new IllegalArgumentException("Parameter " + entry.getKey() + " is not a number");
+					}
+					parameters.put(String.valueOf(entry.getKey()), (Double) entry.getValue());
+				}
+			} else if (given != null) {
+				throw new IllegalArgumentException("parameters must be an object");
+			}
+		}
+
+		double getDouble (String name) {
+			if (binary != null) {
+				return binary.getDouble();
+			}
+			final Object value = json.get(name);
+			if (!(value instanceof Double)) {
+				throw new IllegalArgumentException("Missing number " + name);
+			}
+			return (Double) value;
+		}
+
+		int getInt (String name, int min, int max) {
+			final double value = binary != null ? binary.getInt() : getDouble(name);
+			if (!(value >= min && value <= max) || value != Math.rint(value)) {
+				throw new IllegalArgumentException(name + " must be an integer from " + min + " to " + max);
+			}
+			return (int) value;
+		}
+	}
+
+	/**
+	 * Creates a server; call start() to accept requests.
+	 * @param address the address to listen on; port 0 picks a free port
+	 * @param threads the number of request threads
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public EvaluationServer (InetSocketAddress address, int threads) throws IOException {
+		final AtomicInteger count = new AtomicInteger();
+		_executor = Executors.newFixedThreadPool(threads, r -> {
+			final Thread thread = new Thread(r, "evaluation-http-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		_server = HttpServer.create(address, 0);
+		_server.setExecutor(_executor);
+		_server.createContext("/parse", exchange -> handle(exchange, this::parse));
+		_server.createContext("/evaluate", exchange -> handle(exchange, this::evaluate));
+		_server.createContext("/differentiate", exchange -> handle(exchange, this::differentiate));
+		_server.createContext("/sample", exchange -> handle(exchange, this::sample));
+	}
+
+	public void start () {
+		_server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits for running ones and releases the threads.
+	 * @param delaySeconds the longest time to wait for running requests
+	 */
+	public void stop (int delaySeconds) {
+		_server.stop(delaySeconds);
+		_executor.shutdown();
+		try {
+			_executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Getter for the bound address
+	 * @return the address, with the actual port
+	 */
+	public InetSocketAddress getAddress () {
+		return _server.getAddress();
+	}
+
+	/**
+	 * Getter for the batcher behind /evaluate, to read its request and batch counts
+	 * @return the batcher
+	 */
+	EvaluationBatcher getBatcher () {
+		return _batcher;
+	}
+
+	private void handle (HttpExchange exchange, Endpoint endpoint) throws IOException {
+		try (exchange) {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			final String type = exchange.getRequestHeaders().getFirst("Content-Type");
+			final boolean isBinary = type != null && type.startsWith(BINARY_TYPE);
+			final byte[] body;
+			try (InputStream in = exchange.getRequestBody()) {
+				body = in.readNBytes(MAX_BODY + 1);
+			}
+			if (body.length > MAX_BODY) {
+				exchange.sendResponseHeaders(413, -1);
+				return;
+			}
+			Reply reply;
+			try {
+				reply = endpoint.handle(new Request(body, isBinary));
+			} catch (ExpressionParseException epe) {
+				sendError(exchange, isBinary, epe.getMessage(), epe.getPosition());
+				return;
+			} catch (IllegalArgumentException | UnsupportedOperationException | BufferUnderflowException e) {
+				sendError(exchange, isBinary, e.getMessage() == null ? "Truncated request" : e.getMessage(), -1);
+				return;
+			}
+			if (isBinary) {
+				final ByteBuffer out = reply.toBinary();
+				send(exchange, 200, BINARY_TYPE, out.array(), out.position());
+			} else {
+				final byte[] out = Json.toString(reply.toJson()).getBytes(StandardCharsets.UTF_8);
+				send(exchange, 200, JSON_TYPE, out, out.length);
+			}
+		}
+	}
+
+	private static void sendError (HttpExchange exchange, boolean isBinary, String message, int position) throws IOException {
+		final byte[] out;
+		if (isBinary) {
+			exchange.getResponseHeaders().set("X-Error-Position", Integer.toString(position));
+			out = message.getBytes(StandardCharsets.UTF_8);
+			send(exchange, 400, "text/plain; charset=utf-8", out, out.length);
+		} else {
+			final Map<String, Object> error = new LinkedHashMap<String, Object>();
+			error.put("error", message);
+			error.put("position", position);
+			out = Json.toString(error).getBytes(StandardCharsets.UTF_8);
+			send(exchange, 400, JSON_TYPE, out, out.length);
+		}
+	}
+
+	private static void send (HttpExchange exchange, int status, String type, byte[] body, int length) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body, 0, length);
+		}
+	}
+
+	private Reply parse (Request request) throws ExpressionParseException {
+		final ExpressionCache.Entry entry = _cache.lookup(request.expression);
+		final String tree = entry.getExpression().convertToString(0);
+		final long nodes = ExpressionCache.countNodes(entry.getExpression());
+		final List<String> names = entry.getCompiled().getParameterNames();
+		return new Reply() {
+			@Override
+			public Object toJson () {
+				final Map<String, Object> json = new LinkedHashMap<String, Object>();
+				json.put("tree", tree);
+				json.put("nodes", nodes);
+				json.put("parameters", names);
+				return json;
+			}
+
+			@Override
+			public ByteBuffer toBinary () {
+				final List<byte[]> strings = new ArrayList<byte[]>();
+				int size = 8;
+				for (String name : names) {
+					strings.add(name.getBytes(StandardCharsets.UTF_8));
+					size += 4 + strings.get(strings.size() - 1).length;
+				}
+				final byte[] text = tree.getBytes(StandardCharsets.UTF_8);
+				final ByteBuffer out = allocate(size + 4 + text.length);
+				out.putInt(text.length).put(text);
+				out.putInt((int) nodes);
+				out.putInt(strings.size());
+				for (byte[] name : strings) {
+					out.putInt(name.length).put(name);
+				}
+				return out;
+			}
+		};
+	}
+
+	private Reply evaluate (Request request) throws ExpressionParseException {
+		final ExpressionCache.Entry entry = _cache.lookup(request.expression);
+		final double[] xs;
+		if (request.json != null && request.json.get("xs") instanceof List) {
+			final List<?> given = (List<?>) request.json.get("xs");
+			if (given.size() > MAX_POINTS) {
+				throw new IllegalArgumentException("At most " + MAX_POINTS + " points");
+			}
+			xs = new double[given.size()];
+			for (int i = 0; i < xs.length; i++) {
+				if (!(given.get(i) instanceof Double)) {
+					throw new IllegalArgumentException("xs[" + i + "] is not a number");
+				}
+				xs[i] = (Double) given.get(i);
+			}
+		} else {
+			final double minX = request.getDouble("minX"), maxX = request.getDouble("maxX");
+			final int count = request.getInt("count", 1, MAX_POINTS);
+			xs = new double[count];
+			for (int i = 0; i < count; i++) {
+				xs[i] = count == 1 ? minX : minX + (maxX - minX) * i / (count - 1);
+			}
+		}
+		final CompiledExpression program = entry.getCompiled();
+		final double[] ys = _batcher.evaluate(program, CurveSet.values(program, request.parameters, 0), xs);
+		return new Reply() {
+			@Override
+			public Object toJson () {
+				return Collections.singletonMap("ys", ys);
+			}
+
+			@Override
+			public ByteBuffer toBinary () {
+				final ByteBuffer out = allocate(4 + 8 * ys.length);
+				out.putInt(ys.length);
+				for (double y : ys) {
+					out.putDouble(y);
+				}
+				return out;
+			}
+		};
+	}
+
+	private Reply differentiate (Request request) throws ExpressionParseException {
+		final Expression derivative = _cache.lookup(request.expression).getDerivative();
+		final String text = derivative.convertToString(0);
+		final long nodes = ExpressionCache.countNodes(derivative);
+		return new Reply() {
+			@Override
+			public Object toJson () {
+				final Map<String, Object> json = new LinkedHashMap<String, Object>();
+				json.put("derivative", text);
+				json.put("nodes", nodes);
+				return json;
+			}
+
+			@Override
+			public ByteBuffer toBinary () {
+				final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+				final ByteBuffer out = allocate(8 + bytes.length);
+				out.putInt(bytes.length).put(bytes);
+				out.putInt((int) nodes);
+				return out;
+			}
+		};
+	}
+
+	private Reply sample (Request request) throws ExpressionParseException {
+		final ExpressionCache.Entry entry = _cache.lookup(request.expression);
+		final double minX = request.getDouble("minX"), maxX = request.getDouble("maxX");
+		final double minY = request.getDouble("minY"), maxY = request.getDouble("maxY");
+		final int width = request.getInt("width", 1, MAX_PIXELS), height = request.getInt("height", 1, MAX_PIXELS);
+		if (!(minX < maxX) || !(minY < maxY) || Double.isInfinite(maxX - minX) || Double.isInfinite(maxY - minY)) {
+			throw new IllegalArgumentException("The viewport must be finite and non-empty");
+		}
+		final CompiledExpression program = entry.getCompiled();
+		final SampledCurve curve = _sampler.sample(program.withParameters(CurveSet.values(program, request.parameters, 0)),
+				minX, maxX, minY, maxY, width, height);
+		return new Reply() {
+			@Override
+			public Object toJson () {
+				final List<Object> segments = new ArrayList<Object>();
+				for (int s = 0; s < curve.getSegmentCount(); s++) {
+					final Map<String, Object> segment = new LinkedHashMap<String, Object>();
+					segment.put("xs", curve.getXs(s));
+					segment.put("ys", curve.getYs(s));
+					segments.add(segment);
+				}
+				final Map<String, Object> json = new LinkedHashMap<String, Object>();
+				json.put("evaluations", curve.getEvaluations());
+				json.put("segments", segments);
+				return json;
+			}
+
+			@Override
+			public ByteBuffer toBinary () {
+				final ByteBuffer out = allocate(12 + 4 * curve.getSegmentCount() + 16 * curve.getPointCount());
+				out.putLong(curve.getEvaluations());
+				out.putInt(curve.getSegmentCount());
+				for (int s = 0; s < curve.getSegmentCount(); s++) {
+					final double[] xs = curve.getXs(s), ys = curve.getYs(s);
+					out.putInt(xs.length);
+					for (double x : xs) {
+						out.putDouble(x);
+					}
+					for (double y : ys) {
+						out.putDouble(y);
+					}
+				}
+				return out;
+			}
+		};
+	}
+
+	private static ByteBuffer allocate (int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static String readString (ByteBuffer in) {
+		final int length = in.getInt();
+		if (length < 0 || length > in.remaining()) {
+			throw new IllegalArgumentException("Bad string length " + length);
+		}
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Runs the service: EvaluationServer [port [threads]]. Without arguments it listens on
+	 * DEFAULT_PORT with one thread per processor.
+	 * @param args the command-line arguments
+	 */
+	public static void main (String[] args) throws IOException {
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		final EvaluationServer server = new EvaluationServer(new InetSocketAddress(port), threads);
+		server.start();
+		System.out.println("Listening on " + server.getAddress());
+	}
+}
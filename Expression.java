@@ -32,6 +32,32 @@ interface Expression {
 	 */
 	public double evaluate (double x);
 
+	/**
+	 * Evaluates this expression at every x in xs, writing the i-th result to out[i].
+	 * Implementations may evaluate one operator at a time over the whole array, but the
+	 * results must match calling evaluate(double) on each element.
+	 * @param xs the values of the independent variable x
+	 * @param out receives the value of this expression at each x; at least as long as xs
+	 */
+	default void evaluate (double[] xs, double[] out) {
+		if (out.length < xs.length) {
+			throw new IllegalArgumentException("Output holds " + out.length + " values, need " + xs.length);
+		}
+		for (int i = 0; i < xs.length; i++) {
+			out[i] = evaluate(xs[i]);
+		}
+	}
+
+	/**
+	 * Computes an interval guaranteed to contain the value of this expression at every x in the
+	 * given interval where it is defined. See IntervalEvaluator for the domain rules.
+	 * @param x the values of the independent variable x
+	 * @return an enclosure of the values, or Interval.EMPTY if the expression is undefined on all of x
+	 */
+	default Interval evaluate (Interval x) {
+		return new IntervalEvaluator(ExpressionCompiler.compile(this)).evaluate(x);
+	}
+
 	/**
 	 * Produce a new, fully independent (i.e., there should be no shared subtrees) Expression
 	 * representing the derivative of this expression.
@@ -0,0 +1,256 @@
+package application;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe, size-bounded LRU cache in front of an ExpressionParser. Source text is normalized
+ * by trimming it, and each entry holds the parsed tree, its compiled program and, once asked for,
+ * its simplified derivative. Cached trees are shared between callers and must not be modified;
+ * use deepCopy() to get a private tree.
+ */
+public class ExpressionCache implements ExpressionParser {
+	private final ExpressionParser _parser;
+	private final long _maxWeight;
+	private final boolean _weighByNodes;
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long _weight;
+	private long _hits, _misses, _evictions;
+
+	/**
+	 * @param parser the parser to use on a miss
+	 * @param maxWeight the largest total weight kept before least recently used entries are evicted
+	 * @param weighByNodes true to weigh each entry by the node count of its tree and, once built, its
+	 * derivative, false to weigh each entry as 1
+	 */
+	public ExpressionCache (ExpressionParser parser, long maxWeight, boolean weighByNodes) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+		}
+		_parser = parser;
+		_maxWeight = maxWeight;
+		_weighByNodes = weighByNodes;
+	}
+
+	/**
+	 * Creates a cache that keeps at most maxEntries expressions.
+	 * @param parser the parser to use on a miss
+	 * @param maxEntries the maximum number of entries
+	 * @return the cache
+	 */
+	public static ExpressionCache byEntryCount (ExpressionParser parser, int maxEntries) {
+		return new ExpressionCache(parser, maxEntries, false);
+	}
+
+	/**
+	 * Creates a cache that keeps at most maxNodes tree nodes across all entries, counting the
+	 * derivatives built so far.
+	 * @param parser the parser to use on a miss
+	 * @param maxNodes the maximum total node count
+	 * @return the cache
+	 */
+	public static ExpressionCache byNodeWeight (ExpressionParser parser, long maxNodes) {
+		return new ExpressionCache(parser, maxNodes, true);
+	}
+
+	/**
+	 * Returns the cached tree for str, parsing it on a miss.
+	 * @param str the string to parse into an expression tree
+	 * @return the shared expression tree
+	 */
+	@Override
+	public Expression parse (String str) throws ExpressionParseException {
+		return lookup(str).getExpression();
+	}
+
+	/**
+	 * Returns the cache entry for str, parsing and compiling it on a miss. The parse runs outside
+	 * the lock; if two threads miss on the same text at once, the first entry stored wins.
+	 * @param str the expression source text
+	 * @return the entry holding the parsed, compiled and differentiated forms
+	 * @throws ExpressionParseException if str cannot be parsed; failures are not cached
+	 */
+	public Entry lookup (String str) throws ExpressionParseException {
+		final String key = normalize(str);
+		synchronized (this) {
+			final Entry entry = _entries.get(key);
+			if (entry != null) {
+				_hits++;
+				return entry;
+			}
+			_misses++;
+		}
+		final long start = System.nanoTime();
+		final Expression expression = _parser.parse(str);
+		Metrics.parsed(str.length(), expression, System.nanoTime() - start);
+		final Entry created = new Entry(this, key, expression, _weighByNodes ? countNodes(expression) : 1);
+		synchronized (this) {
+			final Entry raced = _entries.get(key);
+			if (raced != null) {
+				return raced;
+			}
+			_entries.put(key, created);
+			_weight += created._weight;
+			evict();
+		}
+		return created;
+	}
+
+	/**
+	 * Removes least recently used entries until the total weight fits. The newest entry is
+	 * always kept, even if it alone is over the limit.
+	 */
+	private void evict () {
+		final Iterator<Entry> it = _entries.values().iterator();
+		while (_weight > _maxWeight && _entries.size() > 1) {
+			final Entry eldest = it.next();
+			it.remove();
+			_weight -= eldest._weight;
+			_evictions++;
+		}
+	}
+
+	/**
+	 * Adds the nodes of an entry's new derivative to its weight, evicting least recently used
+	 * entries if it is still cached.
+	 */
+	private synchronized void grow (Entry entry, long nodes) {
+		entry._weight += nodes;
+		if (_entries.get(entry._key) == entry) {
+			_weight += nodes;
+			evict();
+		}
+	}
+
+	/**
+	 * Removes every entry. Statistics are kept.
+	 */
+	public synchronized void clear () {
+		_entries.clear();
+		_weight = 0;
+	}
+
+	public synchronized int size () {
+		return _entries.size();
+	}
+
+	public synchronized long getWeight () {
+		return _weight;
+	}
+
+	public synchronized long getHitCount () {
+		return _hits;
+	}
+
+	public synchronized long getMissCount () {
+		return _misses;
+	}
+
+	public synchronized long getEvictionCount () {
+		return _evictions;
+	}
+
+	/**
+	 * Getter for the hit rate
+	 * @return hits divided by lookups, or 0 if there were no lookups
+	 */
+	public synchronized double getHitRate () {
+		final long lookups = _hits + _misses;
+		return lookups == 0 ? 0 : (double) _hits / lookups;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return "ExpressionCache[size=" + _entries.size() + ", weight=" + _weight + "/" + _maxWeight
+				+ ", hits=" + _hits + ", misses=" + _misses + ", evictions=" + _evictions + "]";
+	}
+
+	/**
+	 * Normalizes source text into a cache key by trimming it. Whitespace inside the text separates
+	 * tokens, so "1 2" (an error) and "12" (a number) must not share a key.
+	 * @param str the expression source text
+	 * @return the key
+	 */
+	public static String normalize (String str) {
+		return str.trim();
+	}
+
+	/**
+	 * Counts the nodes of a tree without recursion.
+	 * @param expression the root of the tree
+	 * @return the number of nodes
+	 */
+	static long countNodes (Expression expression) {
+		final Deque<Expression> pending = new ArrayDeque<Expression>();
+		pending.push(expression);
+		long count = 0;
+		while (!pending.isEmpty()) {
+			final Expression node = pending.pop();
+			count++;
+			for (Expression child : node.getChildren()) {
+				pending.push(child);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * One cached expression. The compiled form is built with the entry; the derivative and its
+	 * compiled form are built the first time they are asked for.
+	 */
+	public static final class Entry {
+		private final ExpressionCache _cache;
+		private final String _key;
+		private final Expression _expression;
+		private final CompiledExpression _compiled;
+		/** Guarded by the cache. */
+		private long _weight;
+		private Expression _derivative;
+		private CompiledExpression _compiledDerivative;
+
+		private Entry (ExpressionCache cache, String key, Expression expression, long weight) {
+			_cache = cache;
+			_key = key;
+			_expression = expression;
+			_compiled = ExpressionCompiler.compile(expression);
+			_weight = weight;
+		}
+
+		public Expression getExpression () {
+			return _expression;
+		}
+
+		public CompiledExpression getCompiled () {
+			return _compiled;
+		}
+
+		/**
+		 * Returns the simplified derivative. The expression is simplified first as well, which folds
+		 * constant exponents such as x^(3-1) so differentiate has less to expand. In a cache
+		 * weighed by nodes, the derivative's nodes are added to the entry's weight.
+		 * @return the simplified derivative
+		 */
+		public synchronized Expression getDerivative () {
+			if (_derivative == null) {
+				final long start = System.nanoTime();
+				final ExpressionSimplifier simplifier = new ExpressionSimplifier();
+				_derivative = simplifier.simplify(simplifier.simplify(_expression).differentiate());
+				Metrics.differentiated(_expression, _derivative, System.nanoTime() - start);
+				if (_cache._weighByNodes) {
+					_cache.grow(this, countNodes(_derivative));
+				}
+			}
+			return _derivative;
+		}
+
+		public synchronized CompiledExpression getCompiledDerivative () {
+			if (_compiledDerivative == null) {
+				_compiledDerivative = ExpressionCompiler.compile(getDerivative());
+			}
+			return _compiledDerivative;
+		}
+	}
+}
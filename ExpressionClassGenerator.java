@@ -0,0 +1,252 @@
+package application;
+
+import static application.ExpressionCompiler.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Generates a hidden class implementing DoubleUnaryOperator whose applyAsDouble method is the
+ * compiled program as straight-line bytecode: dload/ldc2_w for operands, dadd/dsub/dmul/ddiv
+ * for arithmetic, invokestatic Math.pow, and invokestatic of the Math method behind each
+ * FunctionRegistry function. C2 can then inline and register-allocate the whole formula, so a
+ * function costs what it would in hand-written Java. Hidden classes are defined without STRONG, so a generated class is
+ * unloaded once the operator is no longer reachable.
+ */
+public final class ExpressionClassGenerator {
+	/**
+	 * HotSpot refuses to JIT methods longer than this many bytes of bytecode (HugeMethodLimit),
+	 * so larger programs run faster in CompiledExpression's interpreter loop.
+	 */
+	static final int MAX_CODE_LENGTH = 8000;
+
+	private static final String CLASS_NAME = "application/GeneratedExpression";
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private ExpressionClassGenerator () {
+	}
+
+	/**
+	 * Compiles the expression and generates a class for it.
+	 * @param expression the expression to generate code for
+	 * @return the generated operator, or the compiled interpreter if the expression is too large
+	 */
+	public static DoubleUnaryOperator generate (Expression expression) {
+		return generate(ExpressionCompiler.compile(expression));
+	}
+
+	/**
+	 * Generates a class for an already compiled expression.
+	 * @param compiled the compiled program
+	 * @return the generated operator, or compiled itself if the program is too large for one method
+	 */
+	public static DoubleUnaryOperator generate (CompiledExpression compiled) {
+		final byte[] classFile = assemble(compiled);
+		if (classFile == null) {
+			return compiled;
+		}
+		try {
+			final MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(classFile, true);
+			return (DoubleUnaryOperator) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable t) {
+			if (t instanceof Error && !(t instanceof LinkageError)) {
+				throw (Error) t;
+			}
+			return compiled;
+		}
+	}
+
+	/**
+	 * Writes the class file for a compiled program.
+	 * @param compiled the compiled program
+	 * @return the class file bytes, or null if the program does not fit in one JIT-able method
+	 */
+	static byte[] assemble (CompiledExpression compiled) {
+		final byte[] code = compiled.getCode();
+		final int[] args = compiled.getArgs();
+		final double[] constants = compiled.getConstants();
+		final ConstantPool pool = new ConstantPool();
+		final int thisClass = pool.classRef(CLASS_NAME);
+		final int superClass = pool.classRef("java/lang/Object");
+		final int iface = pool.classRef("java/util/function/DoubleUnaryOperator");
+		final int objectInit = pool.methodRef(superClass, "<init>", "()V");
+		final int math = pool.classRef("java/lang/Math");
+		final int pow = pool.methodRef(math, "pow", "(DD)D");
+		final int initName = pool.utf8("<init>"), initType = pool.utf8("()V");
+		final int applyName = pool.utf8("applyAsDouble"), applyType = pool.utf8("(D)D");
+		final int codeAttribute = pool.utf8("Code");
+
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (int pc = 0; pc < code.length; pc++) {
+			switch (code[pc]) {
+			case OP_CONST:
+				final double value = constants[args[pc]];
+				if (Double.doubleToRawLongBits(value) == 0L) {
+					body.write(0x0e); // dconst_0
+				} else if (value == 1.0) {
+					body.write(0x0f); // dconst_1
+				} else {
+					writeIndexed(body, 0x14, pool.doubleConstant(value)); // ldc2_w
+				}
+				break;
+			case OP_X:
+				body.write(0x27); // dload_1
+				break;
+			case OP_ADD:
+				body.write(0x63); // dadd
+				break;
+			case OP_SUB:
+				body.write(0x67); // dsub
+				break;
+			case OP_MUL:
+				body.write(0x6b); // dmul
+				break;
+			case OP_DIV:
+				body.write(0x6f); // ddiv
+				break;
+			case OP_POW:
+				writeIndexed(body, 0xb8, pow); // invokestatic
+				break;
+			default:
+				final int function = pool.methodRef(math, FunctionRegistry.get(code[pc]).getMethod(), "(D)D");
+				writeIndexed(body, 0xb8, function); // invokestatic
+				break;
+			}
+			if (body.size() > MAX_CODE_LENGTH || pool.size() > 0xffff) {
+				return null;
+			}
+		}
+		body.write(0xaf); // dreturn
+		final int maxStack = 2 * Math.max(1, compiled.getMaxStack());
+		if (maxStack > 0xffff) {
+			return null;
+		}
+
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xcafebabe);
+			out.writeShort(0);
+			out.writeShort(55); // Java 11, the first version hidden classes accept
+			pool.write(out);
+			out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(iface);
+			out.writeShort(0); // fields
+			out.writeShort(2); // methods
+
+			out.writeShort(0x0001);
+			out.writeShort(initName);
+			out.writeShort(initType);
+			writeCode(out, codeAttribute, 1, 1, new byte[] {
+				0x2a, // aload_0
+				(byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, // invokespecial Object.<init>
+				(byte) 0xb1 // return
+			});
+
+			out.writeShort(0x0011); // ACC_PUBLIC | ACC_FINAL
+			out.writeShort(applyName);
+			out.writeShort(applyType);
+			writeCode(out, codeAttribute, maxStack, 3, body.toByteArray());
+
+			out.writeShort(0); // class attributes
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeIndexed (ByteArrayOutputStream body, int opcode, int index) {
+		body.write(opcode);
+		body.write(index >> 8);
+		body.write(index);
+	}
+
+	private static void writeCode (DataOutputStream out, int codeAttribute, int maxStack, int maxLocals, byte[] code) throws IOException {
+		out.writeShort(1);
+		out.writeShort(codeAttribute);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // code attributes
+	}
+
+	/**
+	 * Class file constant pool that de-duplicates its entries.
+	 */
+	private static final class ConstantPool {
+		private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+		private final DataOutputStream _out = new DataOutputStream(_bytes);
+		private final Map<Object, Integer> _entries = new HashMap<Object, Integer>();
+		private int _next = 1;
+
+		int size () {
+			return _next;
+		}
+
+		int utf8 (String value) {
+			return entry("U" + value, 1, 1, out -> out.writeUTF(value));
+		}
+
+		int classRef (String internalName) {
+			final int name = utf8(internalName);
+			return entry("C" + internalName, 7, 1, out -> out.writeShort(name));
+		}
+
+		int methodRef (int owner, String name, String descriptor) {
+			final int nameIndex = utf8(name), typeIndex = utf8(descriptor);
+			final int nameAndType = entry("N" + name + descriptor, 12, 1, out -> {
+				out.writeShort(nameIndex);
+				out.writeShort(typeIndex);
+			});
+			return entry("M" + owner + "." + name + descriptor, 10, 1, out -> {
+				out.writeShort(owner);
+				out.writeShort(nameAndType);
+			});
+		}
+
+		int doubleConstant (double value) {
+			final long bits = Double.doubleToRawLongBits(value);
+			return entry(bits, 6, 2, out -> out.writeLong(bits));
+		}
+
+		private int entry (Object key, int tag, int slots, Body body) {
+			final Integer existing = _entries.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			final int index = _next;
+			try {
+				_out.writeByte(tag);
+				body.write(_out);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			_next += slots;
+			_entries.put(key, index);
+			return index;
+		}
+
+		void write (DataOutputStream out) throws IOException {
+			_out.flush();
+			out.writeShort(_next);
+			_bytes.writeTo(out);
+		}
+
+		private interface Body {
+			void write (DataOutputStream out) throws IOException;
+		}
+	}
+}
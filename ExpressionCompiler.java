@@ -0,0 +1,331 @@
+package application;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flattens an expression tree into a postfix program that can be evaluated
+ * without walking the tree, comparing names or re-parsing literals.
+ * <p>
+ * Names other than x, the operators and the FunctionRegistry functions are parameters. Every
+ * largest subtree that does not depend on x is taken out of the program: without parameters it
+ * is folded into one constant, and with parameters it becomes a small parameter program whose
+ * result fills a constant slot whenever the parameters are rebound. The folding applies the same operations in the same
+ * order, so results are unchanged.
+ */
+public final class ExpressionCompiler {
+	static final byte OP_CONST = 0;
+	static final byte OP_X = 1;
+	static final byte OP_ADD = 2;
+	static final byte OP_SUB = 3;
+	static final byte OP_MUL = 4;
+	static final byte OP_DIV = 5;
+	static final byte OP_POW = 6;
+	/** Pushes a parameter value; only occurs in parameter programs. */
+	static final byte OP_PARAM = 8;
+	/** A parenthesized group; never emitted, since its operand stands for it. */
+	static final byte OP_GROUP = 9;
+	/** The first FunctionRegistry opcode; every opcode from here on calls a registered function. */
+	static final byte OP_FUNCTION = 16;
+	/** The natural logarithm, the first registered function. */
+	static final byte OP_LOG = OP_FUNCTION;
+
+	private ExpressionCompiler () {
+	}
+
+	/**
+	 * Compiles the given expression tree. Operator semantics are resolved here, once.
+	 * @param expression the root of the tree to compile
+	 * @return the compiled form of the expression
+	 * @throws UnsupportedOperationException if an operator node is missing operands
+	 */
+	public static CompiledExpression compile (Expression expression) {
+		final Emitter emitter = new Emitter();
+		final Deque<Frame> pending = new ArrayDeque<Frame>();
+		pending.push(new Frame(expression));
+		while (!pending.isEmpty()) {
+			final Frame frame = pending.peek();
+			final Expression node = frame.node;
+			final List<Expression> children = node.getChildren();
+			final byte op = frame.op;
+			if (frame.next < frame.arity) {
+				pending.push(new Frame(children.get(frame.next++)));
+				continue;
+			}
+			pending.pop();
+			if (op == OP_CONST) {
+				emitter.emitConstant(frame.constant);
+			} else if (op == OP_PARAM) {
+				emitter.emitParameter(node.getName());
+			} else if (op != OP_GROUP) {
+				emitter.emit(op);
+			}
+		}
+		return emitter.finish();
+	}
+
+	/**
+	 * Resolves the opcode for a node name that is not a literal, applying the same rules as
+	 * ParsedExpression.evaluate. Any other name is a parameter, which evaluates to 0 until it is
+	 * bound. Operators resolve through a string switch and functions through the registry's hash
+	 * map, so this is O(1) in the number of known names.
+	 * @param name the name of the node
+	 * @return the opcode, OP_GROUP for a parenthesized group
+	 */
+	static byte resolve (String name) {
+		switch (name) {
+		case "x":
+			return OP_X;
+		case "+":
+			return OP_ADD;
+		case "-":
+			return OP_SUB;
+		case "*":
+			return OP_MUL;
+		case "/":
+			return OP_DIV;
+		case "^":
+			return OP_POW;
+		case "()":
+			return OP_GROUP;
+		default:
+			final FunctionRegistry.Function function = FunctionRegistry.lookup(name);
+			return function == null ? OP_PARAM : function.getOpcode();
+		}
+	}
+
+	/**
+	 * Returns how many operands an opcode pops off the stack.
+	 * @param op the opcode
+	 * @return the number of operands
+	 */
+	static int arity (byte op) {
+		switch (op) {
+		case OP_CONST:
+		case OP_X:
+		case OP_PARAM:
+			return 0;
+		case OP_GROUP:
+			return 1;
+		default:
+			return op >= OP_FUNCTION ? FunctionRegistry.get(op).getArity() : 2;
+		}
+	}
+
+	/**
+	 * A node waiting on the traversal stack, along with how many of its children were visited.
+	 */
+	private static final class Frame {
+		final Expression node;
+		final byte op;
+		final int arity;
+		final double constant;
+		int next;
+
+		Frame (Expression node) {
+			this.node = node;
+			final String name = node.getName();
+			double value = 0;
+			byte resolved = resolve(name);
+			if (resolved == OP_PARAM) {
+				try {
+					value = Double.parseDouble(name);
+					resolved = OP_CONST;
+				} catch (NumberFormatException e) {
+					// a parameter
+				}
+			}
+			op = resolved;
+			constant = value;
+			arity = arity(op);
+			if (node.getChildren().size() < arity) {
+				throw new UnsupportedOperationException("Operator " + name + " expects " + arity + " operand(s)");
+			}
+		}
+	}
+
+	/**
+	 * Accumulates the program and constant pool while tracking the stack depth.
+	 */
+	private static final class Emitter {
+		private final ByteList _code = new ByteList();
+		private final List<Integer> _args = new ArrayList<Integer>();
+		private final List<Double> _constants = new ArrayList<Double>();
+		private final Map<Double, Integer> _constantIndex = new HashMap<Double, Integer>();
+		private final Map<String, Integer> _parameters = new LinkedHashMap<String, Integer>();
+		private int _depth, _maxDepth;
+
+		void emitConstant (double value) {
+			Integer index = _constantIndex.get(value);
+			if (index == null) {
+				index = _constants.size();
+				_constants.add(value);
+				_constantIndex.put(value, index);
+			}
+			_code.add(OP_CONST);
+			_args.add(index);
+			push(1);
+		}
+
+		/**
+		 * Emits a constant with its own pool entry, which a parameter program overwrites.
+		 * @return the pool index of the slot
+		 */
+		int emitSlot () {
+			final int index = _constants.size();
+			_constants.add(0.0);
+			_code.add(OP_CONST);
+			_args.add(index);
+			push(1);
+			return index;
+		}
+
+		void emitParameter (String name) {
+			Integer index = _parameters.get(name);
+			if (index == null) {
+				index = _parameters.size();
+				_parameters.put(name, index);
+			}
+			_code.add(OP_PARAM);
+			_args.add(index);
+			push(1);
+		}
+
+		void emit (byte op) {
+			_code.add(op);
+			_args.add(0);
+			push(1 - arity(op));
+		}
+
+		private void push (int delta) {
+			_depth += delta;
+			_maxDepth = Math.max(_maxDepth, _depth);
+		}
+
+		private int[] args () {
+			final int[] args = new int[_args.size()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = _args.get(i);
+			}
+			return args;
+		}
+
+		private double[] constants () {
+			final double[] constants = new double[_constants.size()];
+			for (int i = 0; i < constants.length; i++) {
+				constants[i] = _constants.get(i);
+			}
+			return constants;
+		}
+
+		/**
+		 * Moves every largest x-free subtree of the emitted program out of it. In postfix order,
+		 * an x-free value on the stack is largest once an x-dependent value is pushed above it
+		 * or it becomes an operand of an x-dependent operation, so one pass over the program
+		 * finds them all.
+		 * @return the compiled expression
+		 */
+		CompiledExpression finish () {
+			final byte[] code = _code.toArray();
+			final int[] args = args();
+			final double[] constants = constants();
+			final String[] names = _parameters.keySet().toArray(new String[0]);
+			final Emitter main = new Emitter();
+			final List<CompiledExpression.ParameterProgram> programs = new ArrayList<CompiledExpression.ParameterProgram>();
+			// Per stack entry: where its code starts, whether it depends on x, whether it uses a parameter
+			final int[] starts = new int[code.length + 1];
+			final boolean[] dependsOnX = new boolean[code.length + 1], usesParameter = new boolean[code.length + 1];
+			int sp = 0, free = 0;
+			for (int pc = 0; pc < code.length; pc++) {
+				final byte op = code[pc];
+				final int arity = arity(op);
+				if (arity == 0) {
+					if (op == OP_X) {
+						for (int e = free; e < sp; e++) {
+							hoist(code, args, constants, starts[e], e + 1 < sp ? starts[e + 1] : pc, usesParameter[e], main, programs);
+						}
+						main.emit(OP_X);
+						free = sp + 1;
+					}
+					starts[sp] = pc;
+					dependsOnX[sp] = op == OP_X;
+					usesParameter[sp] = op == OP_PARAM;
+					sp++;
+					continue;
+				}
+				final int first = sp - arity;
+				boolean x = false, parameter = false;
+				for (int e = first; e < sp; e++) {
+					x |= dependsOnX[e];
+					parameter |= usesParameter[e];
+				}
+				if (x) {
+					for (int e = Math.max(first, free); e < sp; e++) {
+						hoist(code, args, constants, starts[e], e + 1 < sp ? starts[e + 1] : pc, usesParameter[e], main, programs);
+					}
+					main.emit(op);
+					free = first + 1;
+				}
+				sp = first + 1;
+				dependsOnX[first] = x;
+				usesParameter[first] = parameter;
+			}
+			if (sp == 1 && !dependsOnX[0]) {
+				hoist(code, args, constants, starts[0], code.length, usesParameter[0], main, programs);
+			}
+			final CompiledExpression.ParameterProgram[] compiledPrograms = programs.toArray(new CompiledExpression.ParameterProgram[0]);
+			return new CompiledExpression(main._code.toArray(), main.args(), main.constants(), main._maxDepth,
+					names, new double[names.length], compiledPrograms);
+		}
+
+		/**
+		 * Emits an x-free stretch of the program into the main program as a single constant.
+		 */
+		private static void hoist (byte[] code, int[] args, double[] constants, int from, int to, boolean usesParameter,
+				Emitter main, List<CompiledExpression.ParameterProgram> programs) {
+			if (to - from == 1 && code[from] == OP_CONST) {
+				main.emitConstant(constants[args[from]]);
+				return;
+			}
+			final byte[] subCode = Arrays.copyOfRange(code, from, to);
+			final int[] subArgs = Arrays.copyOfRange(args, from, to);
+			final double[] subConstants = new double[to - from];
+			for (int i = 0; i < subCode.length; i++) {
+				if (subCode[i] == OP_CONST) {
+					subConstants[i] = constants[subArgs[i]];
+					subArgs[i] = i;
+				}
+			}
+			if (usesParameter) {
+				programs.add(new CompiledExpression.ParameterProgram(main.emitSlot(), subCode, subArgs, subConstants));
+			} else {
+				main.emitConstant(new CompiledExpression.ParameterProgram(-1, subCode, subArgs, subConstants).evaluate(new double[0]));
+			}
+		}
+	}
+
+	/**
+	 * Minimal growable byte array, to avoid boxing every opcode.
+	 */
+	private static final class ByteList {
+		private byte[] _data = new byte[16];
+		private int _size;
+
+		void add (byte b) {
+			if (_size == _data.length) {
+				_data = Arrays.copyOf(_data, _size * 2);
+			}
+			_data[_size++] = b;
+		}
+
+		byte[] toArray () {
+			return Arrays.copyOf(_data, _size);
+		}
+	}
+}
@@ -0,0 +1,535 @@
+package application;
+
+import static application.ExpressionCompiler.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash-consed expression representation. Every node is immutable and interned, so structurally
+ * equal subexpressions built through the same ExpressionDag are one shared object. Derivatives are
+ * memoized per node, and evaluation computes every shared subexpression once per x.
+ * <p>
+ * The node constructors fold constant operands and apply the identities x+0, x*1, x*0, x^1 and
+ * x^0. Without them the 0 and 1 terms produced by differentiation would keep repeated derivatives
+ * from sharing structure. As with any such rewrite, 0*f is 0 even where f is NaN or infinite.
+ */
+public final class ExpressionDag {
+	private final Map<Node, Node> _nodes = new ConcurrentHashMap<Node, Node>();
+	private final Node _zero, _one, _x;
+
+	public ExpressionDag () {
+		_zero = constant(0);
+		_one = constant(1);
+		_x = intern(new Node(this, OP_X, null, null, 0));
+	}
+
+	/**
+	 * Getter for the number of interned nodes
+	 * @return how many distinct nodes this DAG has created
+	 */
+	public int size () {
+		return _nodes.size();
+	}
+
+	public Node variable () {
+		return _x;
+	}
+
+	public Node constant (double value) {
+		return intern(new Node(this, OP_CONST, null, null, value));
+	}
+
+	public Node add (Node a, Node b) {
+		if (isConstant(a) && isConstant(b)) {
+			return constant(a._value + b._value);
+		}
+		if (a == _zero) {
+			return b;
+		}
+		if (b == _zero) {
+			return a;
+		}
+		return intern(new Node(this, OP_ADD, a, b, 0));
+	}
+
+	public Node subtract (Node a, Node b) {
+		if (isConstant(a) && isConstant(b)) {
+			return constant(a._value - b._value);
+		}
+		if (b == _zero) {
+			return a;
+		}
+		return intern(new Node(this, OP_SUB, a, b, 0));
+	}
+
+	public Node multiply (Node a, Node b) {
+		if (isConstant(a) && isConstant(b)) {
+			return constant(a._value * b._value);
+		}
+		if (a == _zero || b == _zero) {
+			return _zero;
+		}
+		if (a == _one) {
+			return b;
+		}
+		if (b == _one) {
+			return a;
+		}
+		return intern(new Node(this, OP_MUL, a, b, 0));
+	}
+
+	public Node divide (Node a, Node b) {
+		if (isConstant(a) && isConstant(b)) {
+			return constant(a._value / b._value);
+		}
+		if (a == _zero) {
+			return _zero;
+		}
+		if (b == _one) {
+			return a;
+		}
+		return intern(new Node(this, OP_DIV, a, b, 0));
+	}
+
+	public Node power (Node a, Node b) {
+		if (isConstant(a) && isConstant(b)) {
+			return constant(Math.pow(a._value, b._value));
+		}
+		if (b == _zero) {
+			return _one;
+		}
+		if (b == _one) {
+			return a;
+		}
+		return intern(new Node(this, OP_POW, a, b, 0));
+	}
+
+	public Node log (Node a) {
+		return function(FunctionRegistry.get(OP_LOG), a);
+	}
+
+	/**
+	 * Applies a registered function, folding it if the operand is constant.
+	 * @param function the function
+	 * @param a the operand
+	 * @return the interned call
+	 */
+	public Node function (FunctionRegistry.Function function, Node a) {
+		if (isConstant(a)) {
+			return constant(function.apply(a._value));
+		}
+		return intern(new Node(this, function.getOpcode(), a, null, 0));
+	}
+
+	/**
+	 * Converts an expression tree into this DAG, sharing every repeated subtree.
+	 * Parenthesized groups are dropped and unknown names become the constant 0, as in evaluate.
+	 * The node constructors' identities apply, so the result can differ from the tree wherever a
+	 * subexpression multiplied or divided by 0 is NaN or infinite.
+	 * @param expression the root of the tree
+	 * @return the interned node for the whole tree
+	 */
+	public Node fromExpression (Expression expression) {
+		return fromExpression(expression, null, null);
+	}
+
+	/**
+	 * Converts a tree in which the names u and d, if u is given, stand for two existing nodes.
+	 * This is how a function's derivative rule is applied.
+	 */
+	private Node fromExpression (Expression expression, Node u, Node du) {
+		final Deque<Expression> pending = new ArrayDeque<Expression>();
+		final Deque<Node> built = new ArrayDeque<Node>();
+		final Map<Expression, Boolean> expanded = new IdentityHashMap<Expression, Boolean>();
+		pending.push(expression);
+		while (!pending.isEmpty()) {
+			final Expression node = pending.peek();
+			final List<Expression> children = node.getChildren();
+			if (expanded.put(node, Boolean.TRUE) == null && !children.isEmpty()) {
+				for (int i = children.size() - 1; i >= 0; i--) {
+					pending.push(children.get(i));
+				}
+				continue;
+			}
+			pending.pop();
+			expanded.remove(node);
+			built.push(build(node, built, u, du));
+		}
+		return built.pop();
+	}
+
+	/**
+	 * Builds one node from its already converted children, which are on top of the built stack.
+	 */
+	private Node build (Expression node, Deque<Node> built, Node u, Node du) {
+		final String name = node.getName();
+		final int arity = node.getChildren().size();
+		final Node[] operands = new Node[arity];
+		for (int i = arity - 1; i >= 0; i--) {
+			operands[i] = built.pop();
+		}
+		try {
+			return constant(Double.parseDouble(name));
+		} catch (NumberFormatException e) {
+			// not a literal
+		}
+		if (name.equals("x")) {
+			return _x;
+		}
+		if (name.equals("()") && arity >= 1) {
+			return operands[0];
+		}
+		if (u != null && (name.equals("u") || name.equals("d"))) {
+			return name.equals("u") ? u : du;
+		}
+		final FunctionRegistry.Function function = FunctionRegistry.lookup(name);
+		if (function != null && arity >= 1) {
+			return function(function, operands[0]);
+		}
+		if (arity >= 2) {
+			switch (name) {
+			case "+":
+				return add(operands[0], operands[1]);
+			case "-":
+				return subtract(operands[0], operands[1]);
+			case "*":
+				return multiply(operands[0], operands[1]);
+			case "/":
+				return divide(operands[0], operands[1]);
+			case "^":
+				return power(operands[0], operands[1]);
+			}
+		}
+		return _zero;
+	}
+
+	private Node intern (Node candidate) {
+		final Node existing = _nodes.putIfAbsent(candidate, candidate);
+		return existing == null ? candidate : existing;
+	}
+
+	private static boolean isConstant (Node node) {
+		return node._op == OP_CONST;
+	}
+
+	/**
+	 * An immutable, interned node. Two nodes of the same DAG are structurally equal exactly when
+	 * they are the same object.
+	 */
+	public static final class Node {
+		private final ExpressionDag _dag;
+		private final byte _op;
+		private final Node _left, _right;
+		private final double _value;
+		private final int _hash;
+		private volatile Node _derivative;
+		private volatile Program _program;
+
+		private Node (ExpressionDag dag, byte op, Node left, Node right, double value) {
+			_dag = dag;
+			_op = op;
+			_left = left;
+			_right = right;
+			_value = value;
+			int hash = op;
+			hash = 31 * hash + System.identityHashCode(left);
+			hash = 31 * hash + System.identityHashCode(right);
+			hash = 31 * hash + Double.hashCode(value);
+			_hash = hash;
+		}
+
+		@Override
+		public int hashCode () {
+			return _hash;
+		}
+
+		/**
+		 * Structural equality for interning. Children are already interned, so they compare by identity.
+		 */
+		@Override
+		public boolean equals (Object o) {
+			if (!(o instanceof Node)) {
+				return false;
+			}
+			final Node other = (Node) o;
+			return _op == other._op && _left == other._left && _right == other._right
+					&& Double.doubleToLongBits(_value) == Double.doubleToLongBits(other._value);
+		}
+
+		/**
+		 * Returns the derivative of this node, computing it once and sharing it afterwards.
+		 * @return the derivative, interned in the same DAG
+		 */
+		public Node differentiate () {
+			Node derivative = _derivative;
+			if (derivative == null) {
+				derivative = computeDerivative();
+				_derivative = derivative;
+			}
+			return derivative;
+		}
+
+		/**
+		 * Returns the nth derivative of this node.
+		 * @param n how many times to differentiate
+		 * @return the nth derivative
+		 */
+		public Node differentiate (int n) {
+			Node node = this;
+			for (int i = 0; i < n; i++) {
+				node = node.differentiate();
+			}
+			return node;
+		}
+
+		private Node computeDerivative () {
+			final ExpressionDag d = _dag;
+			switch (_op) {
+			case OP_X:
+				return d._one;
+			case OP_ADD:
+				return d.add(_left.differentiate(), _right.differentiate());
+			case OP_SUB:
+				return d.subtract(_left.differentiate(), _right.differentiate());
+			case OP_MUL:
+				return d.add(d.multiply(_left.differentiate(), _right), d.multiply(_left, _right.differentiate()));
+			case OP_DIV:
+				return d.divide(
+						d.subtract(d.multiply(_left.differentiate(), _right), d.multiply(_left, _right.differentiate())),
+						d.power(_right, d.constant(2)));
+			case OP_POW:
+				if (isConstant(_right)) {
+					// c * g^(c-1) * g'
+					return d.multiply(d.multiply(_right, d.power(_left, d.constant(_right._value - 1))), _left.differentiate());
+				}
+				if (isConstant(_left)) {
+					// g^h * log(g) * h'
+					return d.multiply(d.multiply(this, d.log(_left)), _right.differentiate());
+				}
+				// g^h * (h' * log(g) + h * g' / g)
+				return d.multiply(this, d.add(d.multiply(_right.differentiate(), d.log(_left)),
+						d.divide(d.multiply(_right, _left.differentiate()), _left)));
+			default:
+				if (_op >= OP_FUNCTION) {
+					return d.fromExpression(FunctionRegistry.get(_op).getDerivativeTemplate(), _left, _left.differentiate());
+				}
+				return d._zero;
+			}
+		}
+
+		/**
+		 * Evaluates this node, computing every shared subexpression once. This is not a drop-in
+		 * replacement for Expression.evaluate: because x*0 and 0/x were folded to 0 when the
+		 * nodes were built, the result is 0 where the tree gives NaN, e.g. for sqrt(sqrt(-x)*0)
+		 * at x > 0. Use ExpressionCompiler on the tree when those values matter.
+		 * @param x the value of the independent variable x
+		 * @return the value of this expression
+		 */
+		public double evaluate (double x) {
+			return compile().evaluate(x);
+		}
+
+		/**
+		 * Returns the straight-line program for this node, building it on first use. Its
+		 * values are those of evaluate, and so can differ from the tree it was built from
+		 * wherever a subexpression is NaN or infinite.
+		 * @return the program
+		 */
+		public Program compile () {
+			Program program = _program;
+			if (program == null) {
+				program = new Program(this);
+				_program = program;
+			}
+			return program;
+		}
+
+		/**
+		 * Counts the distinct nodes reachable from this one.
+		 * @return the size of this DAG
+		 */
+		public int countNodes () {
+			return compile().size();
+		}
+
+		/**
+		 * Counts the nodes this expression would have as a tree with no sharing.
+		 * @return the expanded tree size, as a double because it can overflow a long
+		 */
+		public double countTreeNodes () {
+			final Program program = compile();
+			final double[] sizes = new double[program.size()];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = 1;
+				if (program._left[i] >= 0) {
+					sizes[i] += sizes[program._left[i]];
+				}
+				if (program._right[i] >= 0) {
+					sizes[i] += sizes[program._right[i]];
+				}
+			}
+			return sizes[sizes.length - 1];
+		}
+
+		/**
+		 * Expands this node into an independent ParsedExpression tree. The tree can be
+		 * exponentially larger than the DAG; check countTreeNodes() first for large derivatives.
+		 * @return the expression tree
+		 */
+		public Expression toExpression () {
+			final ParsedExpression node;
+			switch (_op) {
+			case OP_CONST:
+				return new ParsedExpression(Double.toString(_value));
+			case OP_X:
+				return new ParsedExpression("x");
+			default:
+				if (_op >= OP_FUNCTION) {
+					node = new ParsedExpression(FunctionRegistry.get(_op).getName());
+					node.addSubexpression(_left.toExpression());
+					return node;
+				}
+				node = new ParsedExpression(symbol(_op));
+				node.addSubexpression(_left.toExpression());
+				node.addSubexpression(_right.toExpression());
+				return node;
+			}
+		}
+
+		@Override
+		public String toString () {
+			switch (_op) {
+			case OP_CONST:
+				return Double.toString(_value);
+			case OP_X:
+				return "x";
+			default:
+				if (_op >= OP_FUNCTION) {
+					return FunctionRegistry.get(_op).getName() + "(" + _left + ")";
+				}
+				return "(" + _left + symbol(_op) + _right + ")";
+			}
+		}
+
+		private static String symbol (byte op) {
+			switch (op) {
+			case OP_ADD:
+				return "+";
+			case OP_SUB:
+				return "-";
+			case OP_MUL:
+				return "*";
+			case OP_DIV:
+				return "/";
+			default:
+				return "^";
+			}
+		}
+	}
+
+	/**
+	 * Straight-line program over a DAG in topological order. Each distinct node gets one register,
+	 * so a shared subexpression is computed once per x. The root is the last register.
+	 */
+	public static final class Program {
+		private final byte[] _ops;
+		private final int[] _left, _right;
+		private final double[] _values;
+		private final ThreadLocal<double[]> _registers;
+
+		private Program (Node root) {
+			final List<Node> order = new ArrayList<Node>();
+			final Map<Node, Integer> slots = new IdentityHashMap<Node, Integer>();
+			final Deque<Node> pending = new ArrayDeque<Node>();
+			pending.push(root);
+			while (!pending.isEmpty()) {
+				final Node node = pending.peek();
+				if (slots.containsKey(node)) {
+					pending.pop();
+					continue;
+				}
+				boolean ready = true;
+				if (node._right != null && !slots.containsKey(node._right)) {
+					pending.push(node._right);
+					ready = false;
+				}
+				if (node._left != null && !slots.containsKey(node._left)) {
+					pending.push(node._left);
+					ready = false;
+				}
+				if (ready) {
+					pending.pop();
+					slots.put(node, order.size());
+					order.add(node);
+				}
+			}
+			final int n = order.size();
+			_ops = new byte[n];
+			_left = new int[n];
+			_right = new int[n];
+			_values = new double[n];
+			for (int i = 0; i < n; i++) {
+				final Node node = order.get(i);
+				_ops[i] = node._op;
+				_left[i] = node._left == null ? -1 : slots.get(node._left);
+				_right[i] = node._right == null ? -1 : slots.get(node._right);
+				_values[i] = node._value;
+			}
+			_registers = ThreadLocal.withInitial(() -> new double[n]);
+		}
+
+		/**
+		 * Getter for the program length
+		 * @return the number of registers, one per distinct node
+		 */
+		public int size () {
+			return _ops.length;
+		}
+
+		/**
+		 * Given the value of the independent variable x, compute the value of the expression.
+		 * @param x the value of the independent variable x
+		 * @return the value of the expression
+		 */
+		public double evaluate (double x) {
+			final double[] r = _registers.get();
+			final byte[] ops = _ops;
+			final int[] left = _left, right = _right;
+			for (int i = 0; i < ops.length; i++) {
+				switch (ops[i]) {
+				case OP_CONST:
+					r[i] = _values[i];
+					break;
+				case OP_X:
+					r[i] = x;
+					break;
+				case OP_ADD:
+					r[i] = r[left[i]] + r[right[i]];
+					break;
+				case OP_SUB:
+					r[i] = r[left[i]] - r[right[i]];
+					break;
+				case OP_MUL:
+					r[i] = r[left[i]] * r[right[i]];
+					break;
+				case OP_DIV:
+					r[i] = r[left[i]] / r[right[i]];
+					break;
+				case OP_POW:
+					r[i] = Math.pow(r[left[i]], r[right[i]]);
+					break;
+				default:
+					r[i] = FunctionRegistry.get(ops[i]).apply(r[left[i]]);
+					break;
+				}
+			}
+			return r[ops.length - 1];
+		}
+	}
+}
@@ -1,6 +1,25 @@
 package application;
 class ExpressionParseException extends Exception {
+	private final int _position;
+
 	public ExpressionParseException (String message) {
+		this(message, -1);
+	}
+
+	/**
+	 * @param message what went wrong
+	 * @param position the index in the source string where parsing failed
+	 */
+	public ExpressionParseException (String message, int position) {
 		super(message);
+		_position = position;
+	}
+
+	/**
+	 * Getter for the error position
+	 * @return the index in the source string where parsing failed, or -1 if unknown
+	 */
+	public int getPosition () {
+		return _position;
 	}
 }
@@ -0,0 +1,443 @@
+package application;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rule-based simplifier for expression trees. It folds constants, removes identities and
+ * annihilators (a+0, a*1, a*0, a/1, 0/a, a^1, a^0, 1^a), drops redundant () nodes, flattens
+ * nested sums and products, and collects like terms (2*x+3*x is 5*x, x*x is x^2). Passes repeat
+ * until no rule fires or the rule budget runs out. The result is a new tree that shares no
+ * nodes with the input.
+ * <p>
+ * Constant folding is exact, and a NaN constant makes the whole sum or product NaN. The rules
+ * that drop a non-constant operand are deliberate and do not keep the original domain: a*0,
+ * 0/a, 1^a, a term whose coefficient cancels (a-a) and a factor whose exponent cancels (a/a,
+ * x^0.5*x^0.5) all give a finite result even where a is NaN or infinite, so 0*log(x) is 0 and
+ * x^0.5*x^0.5 is x for negative x. Without them the 0 and 1 terms that differentiate produces
+ * would never go away; callers that need the exact domain evaluate the unsimplified tree.
+ */
+public class ExpressionSimplifier {
+	/** Default number of rule applications allowed per simplify call. */
+	public static final int DEFAULT_BUDGET = 100000;
+	private static final int MAX_PASSES = 16;
+
+	private final int _budget;
+	private int _remaining;
+	private int _fired;
+
+	public ExpressionSimplifier () {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param budget the most rule applications one simplify call may make
+	 */
+	public ExpressionSimplifier (int budget) {
+		_budget = budget;
+	}
+
+	/**
+	 * Simplifies an expression with the default budget.
+	 * @param expression the expression to simplify
+	 * @return a new, simplified tree
+	 */
+	public static Expression simplifyExpression (Expression expression) {
+		return new ExpressionSimplifier().simplify(expression);
+	}
+
+	/**
+	 * Simplifies an expression, repeating passes until a fixed point or until the budget is spent.
+	 * @param expression the expression to simplify
+	 * @return a new, simplified tree
+	 */
+	public synchronized Expression simplify (Expression expression) {
+		_remaining = _budget;
+		Expression current = expression;
+		for (int pass = 0; pass < MAX_PASSES; pass++) {
+			_fired = 0;
+			current = rewrite(current);
+			if (_fired == 0 || _remaining <= 0) {
+				break;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Records one rule application.
+	 * @return true if the budget allows the rule to fire
+	 */
+	private boolean fire () {
+		if (_remaining <= 0) {
+			return false;
+		}
+		_remaining--;
+		_fired++;
+		return true;
+	}
+
+	private Expression rewrite (Expression node) {
+		final String name = node.getName();
+		final List<Expression> children = node.getChildren();
+		if (children.isEmpty()) {
+			return new ParsedExpression(name);
+		}
+		switch (name) {
+		case "()":
+			if (fire()) {
+				return rewrite(children.get(0));
+			}
+			return unary(name, rewrite(children.get(0)));
+		case "+":
+		case "-":
+			return rewriteSum(node);
+		case "*":
+			return rewriteProduct(node);
+		case "/":
+			return rewriteQuotient(children.get(0), children.get(1));
+		case "^":
+			return rewritePower(rewrite(children.get(0)), rewrite(children.get(1)));
+		default:
+			final FunctionRegistry.Function function = FunctionRegistry.lookup(name);
+			if (function != null && children.size() == 1) {
+				final Expression argument = rewrite(children.get(0));
+				if (isLiteral(argument) && fire()) {
+					return literal(function.apply(value(argument)));
+				}
+				return unary(name, argument);
+			}
+			final ParsedExpression copy = new ParsedExpression(name);
+			for (Expression child : children) {
+				copy.addSubexpression(rewrite(child));
+			}
+			return copy;
+		}
+	}
+
+	private Expression rewriteQuotient (Expression numerator, Expression denominator) {
+		final Expression a = rewrite(numerator), b = rewrite(denominator);
+		if (isLiteral(a) && isLiteral(b) && fire()) {
+			return literal(value(a) / value(b));
+		}
+		if (isLiteral(b) && value(b) == 1 && fire()) {
+			return a;
+		}
+		if (isLiteral(a) && value(a) == 0 && fire()) {
+			return literal(0);
+		}
+		if (isLiteral(b) && value(b) != 0 && fire()) {
+			return rewriteProduct(binary("*", literal(1 / value(b)), a));
+		}
+		return binary("/", a, b);
+	}
+
+	private Expression rewritePower (Expression a, Expression b) {
+		if (isLiteral(a) && isLiteral(b) && fire()) {
+			return literal(Math.pow(value(a), value(b)));
+		}
+		if (isLiteral(b) && value(b) == 0 && fire()) {
+			return literal(1);
+		}
+		if (isLiteral(b) && value(b) == 1 && fire()) {
+			return a;
+		}
+		if (isLiteral(a) && value(a) == 1 && fire()) {
+			return literal(1);
+		}
+		return binary("^", a, b);
+	}
+
+	/**
+	 * Flattens a chain of + and - into signed terms, folds the constants and merges terms that
+	 * differ only by their constant coefficient.
+	 */
+	private Expression rewriteSum (Expression node) {
+		final Map<String, Term> terms = new LinkedHashMap<String, Term>();
+		double constant = 0;
+		int constants = 0, count = 0;
+		final Deque<Expression> pending = new ArrayDeque<Expression>();
+		final Deque<Boolean> signs = new ArrayDeque<Boolean>();
+		pending.push(node);
+		signs.push(Boolean.TRUE);
+		while (!pending.isEmpty()) {
+			final Expression e = pending.pop();
+			final boolean positive = signs.pop();
+			final String name = e.getName();
+			final List<Expression> children = e.getChildren();
+			if ((name.equals("+") || name.equals("-")) && children.size() >= 2) {
+				pending.push(children.get(1));
+				signs.push(name.equals("+") == positive);
+				pending.push(children.get(0));
+				signs.push(positive);
+				continue;
+			}
+			if (name.equals("()") && children.size() == 1 && fire()) {
+				pending.push(children.get(0));
+				signs.push(positive);
+				continue;
+			}
+			final Expression term = rewrite(e);
+			if ((term.getName().equals("+") || term.getName().equals("-")) && term.getChildren().size() >= 2) {
+				pending.push(term);
+				signs.push(positive);
+				continue;
+			}
+			count++;
+			if (isLiteral(term)) {
+				constant += positive ? value(term) : -value(term);
+				constants++;
+				continue;
+			}
+			double coefficient = 1;
+			Expression rest = term;
+			if (term.getName().equals("*") && isLiteral(term.getChildren().get(0))) {
+				coefficient = value(term.getChildren().get(0));
+				rest = term.getChildren().get(1);
+			}
+			if (!positive) {
+				coefficient = -coefficient;
+			}
+			final String key = key(rest);
+			final Term existing = terms.get(key);
+			if (existing != null && fire()) {
+				existing.coefficient += coefficient;
+			} else if (existing != null) {
+				terms.put(key + "#" + count, new Term(coefficient, rest));
+			} else {
+				terms.put(key, new Term(coefficient, rest));
+			}
+		}
+		if (constants > 1 || (constants == 1 && constant == 0 && count > 1)) {
+			fire();
+		}
+		if (Double.isNaN(constant)) {
+			if (count > 1) {
+				fire();
+			}
+			return literal(constant);
+		}
+
+		Expression sum = null;
+		for (Term term : terms.values()) {
+			if (term.coefficient == 0 && fire()) {
+				continue;
+			}
+			if (sum == null) {
+				sum = scale(term.coefficient, term.rest);
+			} else if (term.coefficient < 0) {
+				sum = binary("-", sum, scale(-term.coefficient, term.rest));
+			} else {
+				sum = binary("+", sum, scale(term.coefficient, term.rest));
+			}
+		}
+		if (sum == null) {
+			return literal(constant);
+		}
+		if (constant > 0) {
+			return binary("+", sum, literal(constant));
+		}
+		if (constant < 0) {
+			return binary("-", sum, literal(-constant));
+		}
+		return sum;
+	}
+
+	/**
+	 * Flattens a chain of * (and division by a constant) into a coefficient and factors, folds
+	 * the constants and merges repeated factors into powers.
+	 */
+	private Expression rewriteProduct (Expression node) {
+		final Map<String, Factor> factors = new LinkedHashMap<String, Factor>();
+		double coefficient = 1;
+		int constants = 0;
+		final Deque<Expression> pending = new ArrayDeque<Expression>();
+		pending.push(node);
+		while (!pending.isEmpty()) {
+			final Expression e = pending.pop();
+			final String name = e.getName();
+			final List<Expression> children = e.getChildren();
+			if (name.equals("*") && children.size() >= 2) {
+				pending.push(children.get(1));
+				pending.push(children.get(0));
+				continue;
+			}
+			if (name.equals("()") && children.size() == 1 && fire()) {
+				pending.push(children.get(0));
+				continue;
+			}
+			final Expression factor = rewrite(e);
+			if (factor.getName().equals("*") && factor.getChildren().size() >= 2) {
+				pending.push(factor);
+				continue;
+			}
+			if (factor.getName().equals("/") && isLiteral(factor.getChildren().get(1))
+					&& value(factor.getChildren().get(1)) != 0 && fire()) {
+				coefficient /= value(factor.getChildren().get(1));
+				pending.push(factor.getChildren().get(0));
+				continue;
+			}
+			if (isLiteral(factor)) {
+				coefficient *= value(factor);
+				constants++;
+				continue;
+			}
+			Expression base = factor;
+			double exponent = 1;
+			if (factor.getName().equals("^") && isLiteral(factor.getChildren().get(1))) {
+				base = factor.getChildren().get(0);
+				exponent = value(factor.getChildren().get(1));
+			}
+			final String key = key(base);
+			final Factor existing = factors.get(key);
+			if (existing != null && fire()) {
+				existing.exponent += exponent;
+			} else if (existing != null) {
+				factors.put(key + "#" + factors.size(), new Factor(base, exponent));
+			} else {
+				factors.put(key, new Factor(base, exponent));
+			}
+		}
+		if (constants > 1 || (constants == 1 && (coefficient == 1 || coefficient == 0) && !factors.isEmpty())) {
+			fire();
+		}
+		if (Double.isNaN(coefficient)) {
+			if (!factors.isEmpty()) {
+				fire();
+			}
+			return literal(coefficient);
+		}
+		if (coefficient == 0) {
+			return literal(0);
+		}
+
+		Expression product = null;
+		for (Factor factor : factors.values()) {
+			if (factor.exponent == 0 && fire()) {
+				continue;
+			}
+			final Expression term = factor.exponent == 1 ? factor.base : binary("^", factor.base, literal(factor.exponent));
+			product = product == null ? term : binary("*", product, term);
+		}
+		if (product == null) {
+			return literal(coefficient);
+		}
+		return scale(coefficient, product);
+	}
+
+	private static Expression scale (double coefficient, Expression rest) {
+		return coefficient == 1 ? rest : binary("*", literal(coefficient), rest);
+	}
+
+	/**
+	 * Builds a string that is equal for two trees exactly when they are structurally equal.
+	 */
+	static String key (Expression expression) {
+		final StringBuilder s = new StringBuilder();
+		final Deque<Expression> pending = new ArrayDeque<Expression>();
+		pending.push(expression);
+		while (!pending.isEmpty()) {
+			final Expression node = pending.pop();
+			final List<Expression> children = node.getChildren();
+			s.append(node.getName()).append('/').append(children.size()).append(' ');
+			for (int i = children.size() - 1; i >= 0; i--) {
+				pending.push(children.get(i));
+			}
+		}
+		return s.toString();
+	}
+
+	private static boolean isLiteral (Expression e) {
+		return e.getChildren().isEmpty() && ParsedExpression.isNumber(e.getName());
+	}
+
+	private static double value (Expression e) {
+		return Double.parseDouble(e.getName());
+	}
+
+	private static Expression literal (double value) {
+		return new ParsedExpression(Double.toString(value));
+	}
+
+	private static Expression unary (String name, Expression child) {
+		final ParsedExpression node = new ParsedExpression(name);
+		node.addSubexpression(child);
+		return node;
+	}
+
+	private static Expression binary (String name, Expression left, Expression right) {
+		final ParsedExpression node = new ParsedExpression(name);
+		node.addSubexpression(left);
+		node.addSubexpression(right);
+		return node;
+	}
+
+	private static final class Term {
+		double coefficient;
+		final Expression rest;
+
+		Term (double coefficient, Expression rest) {
+			this.coefficient = coefficient;
+			this.rest = rest;
+		}
+	}
+
+	private static final class Factor {
+		final Expression base;
+		double exponent;
+
+		Factor (Expression base, double exponent) {
+			this.base = base;
+			this.exponent = exponent;
+		}
+	}
+
+	/**
+	 * Prints node counts and evaluation times before and after simplification for a corpus of
+	 * expressions and their first two derivatives. Expressions can be given as arguments.
+	 */
+	public static void main (String[] args) throws ExpressionParseException {
+		final String[] corpus = args.length > 0 ? args : new String[] {
+			"2*x+5*x*x", "(x+1)*(x-1)/(x+2)", "x^3-2*x^2+x-7", "log(x)*x^2", "2^x*x", "(x^2+1)^3", "log(x^2+1)/x"
+		};
+		final ExpressionParser parser = new SimpleExpressionParser();
+		final double[] xs = new double[100000];
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = 0.5 + i * 0.0001;
+		}
+		final double[] ys = new double[xs.length];
+		System.out.printf("%-28s %8s %8s %10s %10s%n", "expression", "nodes", "simpl.", "ns/eval", "simpl.");
+		for (String source : corpus) {
+			Expression expression = parser.parse(source);
+			final List<String> labels = new ArrayList<String>();
+			final List<Expression> forms = new ArrayList<Expression>();
+			for (int order = 0; order <= 2; order++) {
+				labels.add((order == 0 ? "" : "d" + order + " ") + source);
+				forms.add(expression);
+				expression = expression.differentiate();
+			}
+			for (int i = 0; i < forms.size(); i++) {
+				final Expression original = forms.get(i);
+				final Expression simplified = simplifyExpression(original);
+				System.out.printf("%-28s %8d %8d %10.2f %10.2f%n", labels.get(i),
+						ExpressionCache.countNodes(original), ExpressionCache.countNodes(simplified),
+						timePerEvaluation(original, xs, ys), timePerEvaluation(simplified, xs, ys));
+			}
+		}
+	}
+
+	private static double timePerEvaluation (Expression expression, double[] xs, double[] ys) {
+		final CompiledExpression compiled = ExpressionCompiler.compile(expression);
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 10; run++) {
+			final long start = System.nanoTime();
+			compiled.evaluate(xs, ys);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return (double) best / xs.length;
+	}
+}
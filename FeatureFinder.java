@@ -0,0 +1,359 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Isolates the roots, poles and extrema of a function over an x-range by branch and bound on
+ * interval evaluation. An x-interval is split in half only while its enclosure may contain 0
+ * (a root) or is unbounded (a pole); every other interval is discarded whole, since no point in
+ * it can be a root or a pole. Extrema are the roots of the derivative, with a sign change from
+ * + to - (a maximum) or from - to + (a minimum).
+ * <p>
+ * The search stops splitting at the given tolerance, merges touching leaves into clusters, then
+ * re-runs the search inside each isolated cluster at a much finer tolerance. Clusters that the
+ * finer search rules out are dropped as overestimates. A feature spread over a whole range, such
+ * as the zeros of x-x, is reported once with its full extent. Since pruning is guaranteed, a root
+ * or pole is only ever missed when the evaluation budget runs out, which isComplete() reports.
+ * <p>
+ * A finder owns its evaluators, so it must only be used by one thread at a time.
+ */
+public final class FeatureFinder {
+	/** Default number of interval evaluations one find call may make. */
+	public static final int DEFAULT_BUDGET = 1 << 15;
+	/** The refining search stops at this fraction of the cluster width. */
+	private static final double REFINEMENT = 1e-12;
+	/** Ratio between the distances at which a pole candidate is probed. */
+	private static final double POLE_PROBE = 16;
+	/** A root that does not change sign must be this many times closer to 0 than its neighbours. */
+	private static final double ROOT_DIP = 1e6;
+
+	/**
+	 * A root, pole, minimum or maximum, isolated to the interval [lo, hi].
+	 */
+	public static final class Feature {
+		public static final int ROOT = 0, POLE = 1, MINIMUM = 2, MAXIMUM = 3;
+		private static final String[] KIND_NAMES = { "root", "pole", "minimum", "maximum" };
+
+		private final int _kind;
+		private final double _lo, _hi, _y;
+
+		Feature (int kind, double lo, double hi, double y) {
+			_kind = kind;
+			_lo = lo;
+			_hi = hi;
+			_y = y;
+		}
+
+		/**
+		 * Getter for the kind
+		 * @return ROOT, POLE, MINIMUM or MAXIMUM
+		 */
+		public int getKind () {
+			return _kind;
+		}
+
+		public double getLo () {
+			return _lo;
+		}
+
+		public double getHi () {
+			return _hi;
+		}
+
+		/**
+		 * Getter for the estimated position
+		 * @return the middle of the isolating interval
+		 */
+		public double getX () {
+			return _lo + (_hi - _lo) / 2;
+		}
+
+		/**
+		 * Getter for the function value at getX()
+		 * @return the value, NaN for a pole
+		 */
+		public double getY () {
+			return _y;
+		}
+
+		@Override
+		public String toString () {
+			return KIND_NAMES[_kind] + " at x=" + getX() + (_kind == POLE ? "" : ", y=" + _y);
+		}
+	}
+
+	private final CompiledExpression.Evaluator _function, _derivative;
+	private final IntervalEvaluator _functionRange, _derivativeRange;
+	private final int _budget;
+	private int _remaining;
+	private boolean _complete = true;
+	private long _pointEvaluations;
+
+	/**
+	 * @param function the function, with its parameters bound
+	 * @param derivative its derivative, or null to skip extrema
+	 * @param budget the most interval evaluations one find call may make
+	 */
+	public FeatureFinder (CompiledExpression function, CompiledExpression derivative, int budget) {
+		_function = function.newEvaluator();
+		_functionRange = new IntervalEvaluator(function);
+		// A derivative without x is constant, so it has no isolated roots to search for
+		final boolean constant = derivative == null || derivative.size() == 1 && derivative.getCode()[0] == ExpressionCompiler.OP_CONST;
+		_derivative = constant ? null : derivative.newEvaluator();
+		_derivativeRange = constant ? null : new IntervalEvaluator(derivative);
+		_budget = budget;
+	}
+
+	public FeatureFinder (CompiledExpression function, CompiledExpression derivative) {
+		this(function, derivative, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Creates a finder for an expression tree, taking the derivative from differentiate().
+	 * @param expression the function
+	 * @return the finder
+	 */
+	public static FeatureFinder of (Expression expression) {
+		return new FeatureFinder(ExpressionCompiler.compile(expression), ExpressionCompiler.compile(expression.differentiate()));
+	}
+
+	/**
+	 * Finds the roots, poles and extrema in [minX, maxX].
+	 * @param minX the left end of the range
+	 * @param maxX the right end of the range
+	 * @param tolerance the width below which the first search stops splitting, e.g. a fraction of a pixel
+	 * @return the features in increasing x
+	 */
+	public List<Feature> find (double minX, double maxX, double tolerance) {
+		_remaining = _budget;
+		_complete = true;
+		final List<Feature> features = new ArrayList<Feature>();
+		final Clusters roots = new Clusters(), poles = new Clusters();
+		search(_functionRange, minX, maxX, tolerance, roots, poles);
+		for (int i = 0; i < roots.size; i++) {
+			for (double[] root : refine(_functionRange, _function, roots, i, tolerance, false)) {
+				final double y = value(root);
+				if (!Double.isNaN(y) && isRoot(root, y, tolerance)) {
+					features.add(new Feature(Feature.ROOT, root[0], root[1], y));
+				}
+			}
+		}
+		for (int i = 0; i < poles.size; i++) {
+			for (double[] pole : refine(_functionRange, _function, poles, i, tolerance, true)) {
+				if (isPole(pole)) {
+					features.add(new Feature(Feature.POLE, pole[0], pole[1], Double.NaN));
+				}
+			}
+		}
+		if (_derivative != null) {
+			// Poles of the derivative are corners or poles of the function, not extrema
+			final Clusters critical = new Clusters();
+			search(_derivativeRange, minX, maxX, tolerance, critical, new Clusters());
+			for (int i = 0; i < critical.size; i++) {
+				for (double[] point : refine(_derivativeRange, _derivative, critical, i, tolerance, false)) {
+					final int kind = classify(point, tolerance);
+					final double y = value(point);
+					if (kind >= 0 && !Double.isNaN(y) && !Double.isInfinite(y)) {
+						features.add(new Feature(kind, point[0], point[1], y));
+					}
+				}
+			}
+		}
+		Collections.sort(features, Comparator.comparingDouble(Feature::getX));
+		return features;
+	}
+
+	/**
+	 * Checks whether the last find call finished within its budget
+	 * @return false if intervals were left unexamined
+	 */
+	public boolean isComplete () {
+		return _complete;
+	}
+
+	/**
+	 * Getter for the number of interval and point evaluations so far
+	 * @return the evaluation count
+	 */
+	public long getEvaluations () {
+		return _functionRange.getEvaluations() + (_derivativeRange == null ? 0 : _derivativeRange.getEvaluations()) + _pointEvaluations;
+	}
+
+	/**
+	 * Depth-first branch and bound over [minX, maxX], left half first, so leaves arrive in
+	 * increasing x.
+	 * @param evaluator the enclosure of the function searched
+	 * @param roots receives the bounded leaves whose enclosure contains 0
+	 * @param poles receives the leaves whose enclosure is unbounded
+	 */
+	private void search (IntervalEvaluator evaluator, double minX, double maxX, double tolerance, Clusters roots, Clusters poles) {
+		final double[] range = new double[2];
+		double[] stack = new double[64];
+		stack[0] = minX;
+		stack[1] = maxX;
+		int top = 1;
+		while (top > 0) {
+			if (_remaining <= 0) {
+				_complete = false;
+				return;
+			}
+			top--;
+			final double lo = stack[2 * top], hi = stack[2 * top + 1];
+			_remaining--;
+			evaluator.evaluate(lo, hi, range);
+			if (Double.isNaN(range[0])) {
+				continue;
+			}
+			final boolean bounded = range[0] > Double.NEGATIVE_INFINITY && range[1] < Double.POSITIVE_INFINITY;
+			final boolean root = range[0] <= 0 && 0 <= range[1];
+			if (!root && bounded) {
+				continue;
+			}
+			final double mid = lo + (hi - lo) / 2;
+			if (hi - lo <= tolerance || mid <= lo || mid >= hi) {
+				(bounded ? roots : poles).add(lo, hi);
+				continue;
+			}
+			if (2 * top + 4 > stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			}
+			stack[2 * top] = mid;
+			stack[2 * top + 1] = hi;
+			stack[2 * top + 2] = lo;
+			stack[2 * top + 3] = mid;
+			top += 2;
+		}
+	}
+
+	/**
+	 * Re-runs the search inside one cluster at a fine tolerance. A wide cluster, where the
+	 * enclosures are too loose to isolate anything, is narrowed by bisection if the function
+	 * changes sign across it, and kept whole otherwise.
+	 * @param values the point form of the function searched
+	 * @return the refined clusters of the same kind, possibly none
+	 */
+	private List<double[]> refine (IntervalEvaluator evaluator, CompiledExpression.Evaluator values, Clusters clusters, int i,
+			double tolerance, boolean pole) {
+		final double lo = clusters.bounds[2 * i], hi = clusters.bounds[2 * i + 1];
+		if (hi - lo > 2 * tolerance) {
+			return Collections.singletonList(pole ? new double[] { lo, hi } : bisect(values, lo, hi));
+		}
+		final Clusters roots = new Clusters(), poles = new Clusters();
+		search(evaluator, lo, hi, (hi - lo) * REFINEMENT, roots, poles);
+		final Clusters refined = pole ? poles : roots;
+		final List<double[]> result = new ArrayList<double[]>(refined.size);
+		for (int j = 0; j < refined.size; j++) {
+			result.add(new double[] { refined.bounds[2 * j], refined.bounds[2 * j + 1] });
+		}
+		return result;
+	}
+
+	/**
+	 * Halves [lo, hi] around a sign change of the function until the ends are adjacent doubles.
+	 * @return the narrowed interval, or [lo, hi] if the signs at the ends do not differ
+	 */
+	private double[] bisect (CompiledExpression.Evaluator values, double lo, double hi) {
+		final boolean negative = evaluate(values, lo) < 0;
+		final double right = evaluate(values, hi);
+		if (negative ? !(right >= 0) : !(right <= 0)) {
+			return new double[] { lo, hi };
+		}
+		for (double mid = lo + (hi - lo) / 2; mid > lo && mid < hi; mid = lo + (hi - lo) / 2) {
+			final double y = evaluate(values, mid);
+			if (y == 0) {
+				return new double[] { mid, mid };
+			}
+			if (y < 0 == negative) {
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+		return new double[] { lo, hi };
+	}
+
+	/**
+	 * Confirms a root candidate: f must change sign across it, or dip toward 0 as x^2 does at 0.
+	 * This drops limits the enclosures cannot rule out, such as x^x next to 0, whose values
+	 * approach 1.
+	 */
+	private boolean isRoot (double[] cluster, double y, double tolerance) {
+		final double left = evaluate(_function, cluster[0] - tolerance);
+		final double right = evaluate(_function, cluster[1] + tolerance);
+		if (left <= 0 && right >= 0 || left >= 0 && right <= 0) {
+			return true;
+		}
+		final double dip = Math.abs(y) * ROOT_DIP;
+		return !(dip > Math.abs(left)) && !(dip > Math.abs(right));
+	}
+
+	/**
+	 * Confirms a pole candidate: on at least one side, |f| probed at geometrically shrinking
+	 * distances must keep growing by steps that do not shrink geometrically too. That holds for
+	 * 1/x and log(x) at 0, but not for a removable singularity such as x/x, or for x^x, which
+	 * has a bounded limit at 0.
+	 */
+	private boolean isPole (double[] cluster) {
+		final double x = cluster[0] + (cluster[1] - cluster[0]) / 2;
+		final double d = Math.max(cluster[1] - cluster[0], Math.ulp(x) * 4);
+		for (int side = -1; side <= 1; side += 2) {
+			final double near = Math.abs(evaluate(_function, x + side * d));
+			final double middle = Math.abs(evaluate(_function, x + side * POLE_PROBE * d));
+			final double far = Math.abs(evaluate(_function, x + side * POLE_PROBE * POLE_PROBE * d));
+			if (near - middle > 0 && near - middle >= (middle - far) / 2) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tells a maximum from a minimum by the sign of the derivative one tolerance to either side.
+	 * @return MAXIMUM, MINIMUM, or -1 if the derivative does not change sign
+	 */
+	private int classify (double[] cluster, double tolerance) {
+		final double left = evaluate(_derivative, cluster[0] - tolerance);
+		final double right = evaluate(_derivative, cluster[1] + tolerance);
+		if (left > 0 && right < 0) {
+			return Feature.MAXIMUM;
+		}
+		if (left < 0 && right > 0) {
+			return Feature.MINIMUM;
+		}
+		return -1;
+	}
+
+	private double value (double[] cluster) {
+		return evaluate(_function, cluster[0] + (cluster[1] - cluster[0]) / 2);
+	}
+
+	private double evaluate (CompiledExpression.Evaluator evaluator, double x) {
+		_pointEvaluations++;
+		return evaluator.evaluate(x);
+	}
+
+	/**
+	 * Leaves in increasing x, with touching leaves merged into one [lo, hi] cluster.
+	 */
+	private static final class Clusters {
+		double[] bounds = new double[16];
+		int size;
+
+		void add (double lo, double hi) {
+			if (size > 0 && lo <= bounds[2 * size - 1]) {
+				bounds[2 * size - 1] = Math.max(hi, bounds[2 * size - 1]);
+				return;
+			}
+			if (2 * size + 2 > bounds.length) {
+				bounds = Arrays.copyOf(bounds, bounds.length * 2);
+			}
+			bounds[2 * size] = lo;
+			bounds[2 * size + 1] = hi;
+			size++;
+		}
+	}
+}
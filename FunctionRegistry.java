@@ -0,0 +1,465 @@
+package application;
+
+import static application.ExpressionCompiler.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Table of the functions an expression can call. Each entry declares everything a backend needs:
+ * its arity, a scalar and a batch kernel, a derivative rule, an interval extension and a Taylor
+ * series rule. Names and opcodes are assigned here, from OP_FUNCTION upward, and resolve through
+ * a hash map and an array, so a lookup is O(1) whichever way it goes. Parsers resolve a name once,
+ * when they build its node; after that every backend dispatches on the opcode alone.
+ * <p>
+ * Every kernel is a java.lang.Math method, which ExpressionClassGenerator calls directly, so
+ * adding a function means adding one entry here and nothing anywhere else. The derivative rule is
+ * written as an expression in u, the operand, and d, the derivative of the operand; "d/u" is the
+ * chain rule for log.
+ */
+public final class FunctionRegistry {
+	/** Beyond this magnitude the argument of sin, cos and tan is too coarse to locate extrema and poles in. */
+	private static final double MAX_PERIODIC = 1e9;
+	/** Relative margin by which a range is widened before looking for extrema and poles in it. */
+	private static final double PERIODIC_MARGIN = 1e-9;
+
+	private static final Map<String, Function> BY_NAME = new HashMap<String, Function>();
+	private static final Function[] BY_OPCODE = new Function[128];
+	private static final List<Function> FUNCTIONS = new ArrayList<Function>();
+
+	static {
+		register("log", "log", Math::log, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.log(c[i]);
+			}
+		}, "d/u", (lo, hi, range) -> logRange(lo, hi, Math.log(lo), Math.log(hi), range),
+				(s, a, c, t1, t2) -> logSeries(s, a, c));
+		register("ln", "log", Math::log, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.log(c[i]);
+			}
+		}, "d/u", (lo, hi, range) -> logRange(lo, hi, Math.log(lo), Math.log(hi), range),
+				(s, a, c, t1, t2) -> logSeries(s, a, c));
+		register("log10", "log10", Math::log10, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.log10(c[i]);
+			}
+		}, "d/(u*2.302585092994046)", (lo, hi, range) -> logRange(lo, hi, Math.log10(lo), Math.log10(hi), range),
+				FunctionRegistry::log10Series);
+		register("exp", "exp", Math::exp, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.exp(c[i]);
+			}
+		}, "exp(u)*d", (lo, hi, range) -> {
+			range[0] = Math.exp(lo);
+			range[1] = Math.exp(hi);
+		}, (s, a, c, t1, t2) -> expSeries(s, a, c));
+		register("sqrt", "sqrt", Math::sqrt, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.sqrt(c[i]);
+			}
+		}, "d/(2*sqrt(u))", FunctionRegistry::sqrtRange, FunctionRegistry::sqrtSeries);
+		register("sin", "sin", Math::sin, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.sin(c[i]);
+			}
+		}, "cos(u)*d", (lo, hi, range) -> periodicRange(lo, hi, Math.sin(lo), Math.sin(hi), Math.PI / 2, -Math.PI / 2, range),
+				(s, a, c, t1, t2) -> sinCosSeries(s, a, c, t1));
+		register("cos", "cos", Math::cos, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.cos(c[i]);
+			}
+		}, "-sin(u)*d", (lo, hi, range) -> periodicRange(lo, hi, Math.cos(lo), Math.cos(hi), 0, Math.PI, range),
+				(s, a, c, t1, t2) -> sinCosSeries(s, a, t1, c));
+		register("tan", "tan", Math::tan, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.tan(c[i]);
+			}
+		}, "d/cos(u)^2", FunctionRegistry::tanRange, FunctionRegistry::tanSeries);
+		register("abs", "abs", Math::abs, (c, n) -> {
+			for (int i = 0; i < n; i++) {
+				c[i] = Math.abs(c[i]);
+			}
+		}, "u/abs(u)*d", FunctionRegistry::absRange, FunctionRegistry::absSeries);
+	}
+
+	private FunctionRegistry () {
+	}
+
+	/**
+	 * Applies a function to the first n values of a column, in place.
+	 */
+	@FunctionalInterface
+	interface Kernel {
+		void apply (double[] column, int n);
+	}
+
+	/**
+	 * Bounds a function over [lo, hi], where lo and hi are not NaN. The bounds are not rounded;
+	 * IntervalEvaluator widens them by the one ulp Math allows. Both are NaN if the function is
+	 * undefined over the whole interval.
+	 */
+	@FunctionalInterface
+	interface Range {
+		void apply (double lo, double hi, double[] range);
+	}
+
+	/**
+	 * Computes c = f(a) for the truncated Taylor series a at s[a] through s[a + c.length - 1].
+	 * c[0] must be exactly the scalar kernel's value; t1 and t2 are scratch, as long as c.
+	 */
+	@FunctionalInterface
+	interface Series {
+		void apply (double[] s, int a, double[] c, double[] t1, double[] t2);
+	}
+
+	/**
+	 * One registered function.
+	 */
+	public static final class Function {
+		private final String _name, _method;
+		private final byte _opcode;
+		private final DoubleUnaryOperator _scalar;
+		private final Kernel _batch;
+		private final String _derivative;
+		private final Range _range;
+		private final Series _series;
+		private volatile Expression _template;
+
+		private Function (String name, byte opcode, String method, DoubleUnaryOperator scalar, Kernel batch,
+				String derivative, Range range, Series series) {
+			_name = name;
+			_opcode = opcode;
+			_method = method;
+			_scalar = scalar;
+			_batch = batch;
+			_derivative = derivative;
+			_range = range;
+			_series = series;
+		}
+
+		/**
+		 * Getter for the name expressions call the function by
+		 * @return the name
+		 */
+		public String getName () {
+			return _name;
+		}
+
+		/**
+		 * Getter for the opcode compiled programs use for the function
+		 * @return the opcode, at least OP_FUNCTION
+		 */
+		public byte getOpcode () {
+			return _opcode;
+		}
+
+		/**
+		 * Getter for the number of operands
+		 * @return the arity; every function so far takes one operand
+		 */
+		public int getArity () {
+			return 1;
+		}
+
+		/**
+		 * Getter for the java.lang.Math method that computes the function
+		 * @return the method name; its descriptor is (D)D
+		 */
+		String getMethod () {
+			return _method;
+		}
+
+		/**
+		 * Getter for the derivative rule as it is written, in u and d
+		 * @return the rule
+		 */
+		public String getDerivative () {
+			return _derivative;
+		}
+
+		/**
+		 * Evaluates the function at one value.
+		 * @param value the operand
+		 * @return the function's value
+		 */
+		public double apply (double value) {
+			return _scalar.applyAsDouble(value);
+		}
+
+		/**
+		 * Evaluates the function over the first n values of a column, in place.
+		 * @param column the operands, replaced by the function's values
+		 * @param n how many values to evaluate
+		 */
+		void apply (double[] column, int n) {
+			_batch.apply(column, n);
+		}
+
+		/**
+		 * Bounds the function over an interval; see Range.
+		 */
+		void range (double lo, double hi, double[] range) {
+			_range.apply(lo, hi, range);
+		}
+
+		/**
+		 * Composes the function with a truncated Taylor series; see Series.
+		 */
+		void series (double[] s, int a, double[] c, double[] t1, double[] t2) {
+			_series.apply(s, a, c, t1, t2);
+		}
+
+		/**
+		 * Getter for the parsed derivative rule. It is parsed on first use, since the parser
+		 * itself looks functions up here.
+		 * @return the rule as a tree with parameters u and d
+		 */
+		Expression getDerivativeTemplate () {
+			Expression template = _template;
+			if (template == null) {
+				try {
+					template = new SimpleExpressionParser().parse(_derivative);
+				} catch (ExpressionParseException e) {
+					throw new IllegalStateException("Bad derivative rule for " + _name + ": " + _derivative, e);
+				}
+				_template = template;
+			}
+			return template;
+		}
+
+		/**
+		 * Builds the derivative of a call to this function from its rule.
+		 * @param u the operand; shared, not copied, by every use in the rule
+		 * @param du the derivative of the operand
+		 * @return the derivative of the call
+		 */
+		Expression differentiate (Expression u, Expression du) {
+			return instantiate(getDerivativeTemplate(), u, du);
+		}
+
+		private static Expression instantiate (Expression template, Expression u, Expression du) {
+			final String name = template.getName();
+			if (template.getChildren().isEmpty()) {
+				return name.equals("u") ? u : name.equals("d") ? du : new ParsedExpression(name);
+			}
+			final ParsedExpression node = new ParsedExpression(name);
+			for (Expression child : template.getChildren()) {
+				node.addSubexpression(instantiate(child, u, du));
+			}
+			return node;
+		}
+
+		@Override
+		public String toString () {
+			return _name;
+		}
+	}
+
+	/**
+	 * Adds a function under the next free opcode.
+	 */
+	private static void register (String name, String method, DoubleUnaryOperator scalar, Kernel batch,
+			String derivative, Range range, Series series) {
+		final byte opcode = (byte) (OP_FUNCTION + FUNCTIONS.size());
+		final Function function = new Function(name, opcode, method, scalar, batch, derivative, range, series);
+		BY_NAME.put(name, function);
+		BY_OPCODE[opcode] = function;
+		FUNCTIONS.add(function);
+	}
+
+	/**
+	 * Finds a function by name.
+	 * @param name the name an expression calls it by
+	 * @return the function, or null if there is none by that name
+	 */
+	public static Function lookup (String name) {
+		return BY_NAME.get(name);
+	}
+
+	/**
+	 * Finds a function by opcode.
+	 * @param opcode an opcode of at least OP_FUNCTION
+	 * @return the function
+	 */
+	static Function get (byte opcode) {
+		return BY_OPCODE[opcode];
+	}
+
+	/**
+	 * Getter for every registered function
+	 * @return the functions in opcode order
+	 */
+	public static List<Function> getFunctions () {
+		return Collections.unmodifiableList(FUNCTIONS);
+	}
+
+	/** log and log10 over the non-negative part of [lo, hi], given the function at both ends. */
+	private static void logRange (double lo, double hi, double fLo, double fHi, double[] range) {
+		if (!(hi >= 0)) {
+			range[0] = range[1] = Double.NaN;
+			return;
+		}
+		range[0] = lo <= 0 ? Double.NEGATIVE_INFINITY : fLo;
+		range[1] = fHi;
+	}
+
+	private static void sqrtRange (double lo, double hi, double[] range) {
+		if (!(hi >= 0)) {
+			range[0] = range[1] = Double.NaN;
+			return;
+		}
+		range[0] = Math.sqrt(Math.max(lo, 0));
+		range[1] = Math.sqrt(hi);
+	}
+
+	private static void absRange (double lo, double hi, double[] range) {
+		if (lo >= 0) {
+			range[0] = lo;
+			range[1] = hi;
+		} else if (hi <= 0) {
+			range[0] = -hi;
+			range[1] = -lo;
+		} else {
+			range[0] = 0;
+			range[1] = Math.max(-lo, hi);
+		}
+	}
+
+	/**
+	 * sin or cos over [lo, hi], given its values at both ends: their hull, widened to 1 if a
+	 * maximum (at peak + 2k pi) may lie inside and to -1 if a minimum (at trough + 2k pi) may.
+	 */
+	private static void periodicRange (double lo, double hi, double fLo, double fHi, double peak, double trough, double[] range) {
+		if (!(hi - lo < 2 * Math.PI) || Math.max(-lo, hi) > MAX_PERIODIC) {
+			range[0] = -1;
+			range[1] = 1;
+			return;
+		}
+		range[0] = hits(lo, hi, trough, 2 * Math.PI) ? -1 : Math.min(fLo, fHi);
+		range[1] = hits(lo, hi, peak, 2 * Math.PI) ? 1 : Math.max(fLo, fHi);
+	}
+
+	/**
+	 * tan is increasing between its poles at pi/2 + k pi; across one it is unbounded. An interval
+	 * shorter than pi/2 holds a pole exactly when tan(lo) > tan(hi), since tan(hi) = tan(hi - pi)
+	 * is then on the branch of lo. Only longer intervals need the periodic test, whose margin
+	 * would otherwise make every narrow interval next to a pole look unbounded.
+	 */
+	private static void tanRange (double lo, double hi, double[] range) {
+		final double tLo = Math.tan(lo), tHi = Math.tan(hi);
+		if (!(hi - lo < Math.PI) || Math.max(-lo, hi) > MAX_PERIODIC || tLo > tHi
+				|| !(hi - lo < Math.PI / 2) && hits(lo, hi, Math.PI / 2, Math.PI)) {
+			range[0] = Double.NEGATIVE_INFINITY;
+			range[1] = Double.POSITIVE_INFINITY;
+			return;
+		}
+		range[0] = tLo;
+		range[1] = tHi;
+	}
+
+	/**
+	 * Whether phase + k period may lie in [lo, hi] for some integer k. The interval is widened by
+	 * a margin far above the rounding error of the test, so a point just outside can count as
+	 * inside, but never the other way around.
+	 */
+	private static boolean hits (double lo, double hi, double phase, double period) {
+		final double margin = PERIODIC_MARGIN * Math.max(1, Math.max(-lo, hi));
+		return Math.floor((hi + margin - phase) / period) >= Math.ceil((lo - margin - phase) / period);
+	}
+
+	/** c = log(a), from a * c' = a'. */
+	static void logSeries (double[] s, int a, double[] c) {
+		final double a0 = s[a];
+		c[0] = Math.log(a0);
+		for (int n = 1; n < c.length; n++) {
+			double sum = n * s[a + n];
+			for (int j = 1; j < n; j++) {
+				sum -= j * c[j] * s[a + n - j];
+			}
+			c[n] = sum / (n * a0);
+		}
+	}
+
+	/** c = log10(a) = log(a) / log(10). */
+	private static void log10Series (double[] s, int a, double[] c, double[] t1, double[] t2) {
+		logSeries(s, a, c);
+		final double ln10 = Math.log(10);
+		for (int n = 1; n < c.length; n++) {
+			c[n] /= ln10;
+		}
+		c[0] = Math.log10(s[a]);
+	}
+
+	/** c = exp(a), from c' = a' * c. */
+	static void expSeries (double[] s, int a, double[] c) {
+		c[0] = Math.exp(s[a]);
+		for (int n = 1; n < c.length; n++) {
+			double sum = 0;
+			for (int j = 1; j <= n; j++) {
+				sum += j * s[a + j] * c[n - j];
+			}
+			c[n] = sum / n;
+		}
+	}
+
+	/** c = sqrt(a), from c * c = a. */
+	private static void sqrtSeries (double[] s, int a, double[] c, double[] t1, double[] t2) {
+		final double c0 = Math.sqrt(s[a]);
+		c[0] = c0;
+		for (int n = 1; n < c.length; n++) {
+			double sum = s[a + n];
+			for (int j = 1; j < n; j++) {
+				sum -= c[j] * c[n - j];
+			}
+			c[n] = sum / (2 * c0);
+		}
+	}
+
+	/** sin = sin(a) and cos = cos(a) together, from sin' = a' * cos and cos' = -a' * sin. */
+	private static void sinCosSeries (double[] s, int a, double[] sin, double[] cos) {
+		sin[0] = Math.sin(s[a]);
+		cos[0] = Math.cos(s[a]);
+		for (int n = 1; n < sin.length; n++) {
+			double sumSin = 0, sumCos = 0;
+			for (int j = 1; j <= n; j++) {
+				sumSin += j * s[a + j] * cos[n - j];
+				sumCos -= j * s[a + j] * sin[n - j];
+			}
+			sin[n] = sumSin / n;
+			cos[n] = sumCos / n;
+		}
+	}
+
+	/** c = tan(a), from c' = a' * q with q = 1 + c * c, kept in t1. */
+	private static void tanSeries (double[] s, int a, double[] c, double[] t1, double[] t2) {
+		final double[] q = t1;
+		c[0] = Math.tan(s[a]);
+		q[0] = 1 + c[0] * c[0];
+		for (int n = 1; n < c.length; n++) {
+			double sum = 0;
+			for (int j = 1; j <= n; j++) {
+				sum += j * s[a + j] * q[n - j];
+			}
+			c[n] = sum / n;
+			double square = 0;
+			for (int j = 0; j <= n; j++) {
+				square += c[j] * c[n - j];
+			}
+			q[n] = square;
+		}
+	}
+
+	/** c = abs(a) = sign(a0) * a; the sign is NaN at 0, where the derivative rule is too. */
+	private static void absSeries (double[] s, int a, double[] c, double[] t1, double[] t2) {
+		final double a0 = s[a], sign = a0 / Math.abs(a0);
+		c[0] = Math.abs(a0);
+		for (int n = 1; n < c.length; n++) {
+			c[n] = sign * s[a + n];
+		}
+	}
+}
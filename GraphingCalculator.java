@@ -1,18 +1,37 @@
 package application;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
-import javafx.scene.chart.*;
+import javafx.application.Platform;
 import javafx.scene.control.Label;
 import javafx.event.EventHandler;
 import javafx.scene.Scene;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ColorPicker;
+import javafx.scene.control.ProgressIndicator;
+import javafx.scene.control.Slider;
 import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
+import javafx.scene.control.skin.TextFieldSkin;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
 import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
 import javafx.scene.input.ScrollEvent;
+import javafx.scene.paint.Color;
+import javafx.util.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class GraphingCalculator extends Application {
 	public static void main (String[] args) {
@@ -20,95 +39,364 @@ public class GraphingCalculator extends Application {
 	}
 
 	protected static final int WINDOW_WIDTH = 600, WINDOW_HEIGHT = 500;
-	protected static final double MIN_X = -10, MAX_X = +10, DELTA_X = 0.01;
+	protected static final double MIN_X = -10, MAX_X = +10;
 	protected static final double MIN_Y = -10, MAX_Y = +10;
 	protected static final double GRID_INTERVAL = 5;
 	protected static final String EXAMPLE_EXPRESSION = "2*x+5*x*x";
-	protected final ExpressionParser expressionParser = new SimpleExpressionParser();
+	/** Opacity of a derivative relative to its function's color. */
+	protected static final double DERIVATIVE_OPACITY = 0.55;
+	/** Initial value and range of a parameter slider. */
+	protected static final double PARAMETER_DEFAULT = 1, PARAMETER_MIN = -10, PARAMETER_MAX = 10;
+	/** Pause in typing, in milliseconds, after which a function is re-plotted. */
+	protected static final double LIVE_DELAY_MILLIS = 200;
+	protected final AdaptiveSampler sampler = new AdaptiveSampler();
+	protected final ExpressionCache expressionCache = ExpressionCache.byEntryCount(new IncrementalExpressionParser(), 64);
+	protected final PlotScheduler plotScheduler = new PlotScheduler(Platform::runLater);
+	/** Plot state owned by the plot worker thread. */
+	private final CurveSet curveSet = new CurveSet(expressionCache, sampler);
+	/** The function list and parameter values the user last asked for. */
+	private final List<FunctionRow> functionRows = new ArrayList<FunctionRow>();
+	private final Map<String, Double> requestedParameters = new HashMap<String, Double>();
+	private int nextFunctionId;
+	private double dragX, dragY;
+	private Label status;
+	private final VBox functionPane = new VBox();
+	private final VBox parameterPane = new VBox();
+	private final CheckBox featuresBox = new CheckBox("Roots & extrema");
+	private final CheckBox timingsBox = new CheckBox("Timings");
+	private final CheckBox integralBox = new CheckBox("∫ from");
+	private final TextField integralFrom = new TextField("0"), integralTo = new TextField("1");
+	private List<String> sliderNames = Collections.emptyList();
 
-	private void graph (LineChart<Number, Number> chart, Expression expression, boolean clear) {
-		final XYChart.Series series = new XYChart.Series();
-		for (double x = MIN_X; x <= MAX_X; x += DELTA_X) {
-			final double y = expression.evaluate(x);
-			series.getData().add(new XYChart.Data(x, y));
+	/**
+	 * One entry of the function list: visibility, color, expression text and derivative toggle.
+	 * The text is plotted once typing pauses for LIVE_DELAY_MILLIS, or at once on Enter or the
+	 * Graph button. A parse error is underlined at its position, with the message beside the field;
+	 * the integral over the chosen limits, if asked for, is shown there too.
+	 */
+	private final class FunctionRow {
+		final int id = nextFunctionId++;
+		final CheckBox visible = new CheckBox();
+		final ColorPicker color;
+		final TextField text;
+		final Label error = new Label();
+		final Label integral = new Label();
+		final Region errorMark = new Region();
+		final PauseTransition typing = new PauseTransition(Duration.millis(LIVE_DELAY_MILLIS));
+		final CheckBox derivative = new CheckBox("d/dx");
+		final Button remove = new Button("✕");
+		final HBox pane;
+		String submittedText;
+		int errorPosition = -1;
+
+		FunctionRow (PlotCanvas plot, String initialText) {
+			color = new ColorPicker(Color.web(PlotStyle.CURVE_COLORS[id % PlotStyle.CURVE_COLORS.length]));
+			color.setPrefWidth(48);
+			text = new TextField(initialText);
+			final Pane marks = new Pane(errorMark);
+			marks.setMouseTransparent(true);
+			errorMark.setManaged(false);
+			errorMark.setVisible(false);
+			errorMark.setStyle("-fx-background-color: red");
+			error.setStyle("-fx-text-fill: red");
+			final StackPane field = new StackPane(text, marks);
+			HBox.setHgrow(field, Priority.ALWAYS);
+			visible.setSelected(true);
+			visible.setOnAction(e -> replot(plot));
+			derivative.setOnAction(e -> replot(plot));
+			color.setOnAction(e -> replot(plot));
+			typing.setOnFinished(e -> {
+				submittedText = text.getText();
+				replot(plot);
+			});
+			text.textProperty().addListener((observable, oldValue, newValue) -> {
+				showError(null);
+				typing.playFromStart();
+			});
+			text.skinProperty().addListener((observable, oldValue, newValue) -> {
+				final Node textNode = text.lookup(".text");
+				if (textNode != null) {
+					textNode.layoutXProperty().addListener(o -> placeErrorMark());
+				}
+			});
+			text.widthProperty().addListener(o -> placeErrorMark());
+			text.setOnAction(e -> {
+				typing.stop();
+				submittedText = text.getText();
+				replot(plot);
+			});
+			pane = new HBox(visible, color, new Label("y="), field, error, integral, derivative, remove);
+			remove.setOnAction(e -> {
+				typing.stop();
+				functionRows.remove(this);
+				functionPane.getChildren().remove(pane);
+				replot(plot);
+			});
+		}
+
+		/**
+		 * Shows why the submitted text cannot be plotted, underlining the character a parse
+		 * error points at, or clears the error. Errors for text edited since are dropped.
+		 * @param e the error, or null for none
+		 */
+		void showError (Exception e) {
+			if (!text.getText().equals(submittedText)) {
+				e = null;
+			}
+			error.setText(e == null ? "" : e.getMessage());
+			text.setTooltip(e == null ? null : new Tooltip(e.getMessage()));
+			errorPosition = e instanceof ExpressionParseException ? ((ExpressionParseException) e).getPosition() : -1;
+			placeErrorMark();
+		}
+
+		/**
+		 * Moves the underline under the error position. The skin's character bounds include the
+		 * field's horizontal scroll, so this runs again whenever the text scrolls or the field is
+		 * resized; a mark scrolled out of view is hidden.
+		 */
+		void placeErrorMark () {
+			if (errorPosition < 0 || errorPosition > text.getText().length() || !(text.getSkin() instanceof TextFieldSkin)) {
+				errorMark.setVisible(false);
+				return;
+			}
+			final Rectangle2D bounds = ((TextFieldSkin) text.getSkin()).getCharacterBounds(errorPosition);
+			final double x = bounds.getMinX(), width = Math.max(bounds.getWidth(), 4);
+			errorMark.resizeRelocate(x, text.getHeight() - text.getPadding().getBottom(), width, 2);
+			errorMark.setVisible(x >= text.getPadding().getLeft() && x + width <= text.getWidth() - text.getPadding().getRight());
+		}
+	}
+
+	/**
+	 * Re-samples the visible functions for the plot's current view on the plot worker thread,
+	 * then draws them. Only functions that changed since their last sampling are re-evaluated,
+	 * and any plot job still pending is cancelled. With integration on, each visible function is
+	 * integrated between the chosen limits and the area is shaded.
+	 * @param plot the plot to redraw
+	 */
+	private void replot (PlotCanvas plot) {
+		plot.redraw();
+		final List<CurveSet.Function> functions = new ArrayList<CurveSet.Function>();
+		final Map<Integer, FunctionRow> rows = new HashMap<Integer, FunctionRow>();
+		final double[] limits = integralLimits();
+		for (FunctionRow row : functionRows) {
+			if (row.submittedText != null && !row.submittedText.trim().isEmpty()) {
+				functions.add(new CurveSet.Function(row.id, row.submittedText, row.visible.isSelected(), row.derivative.isSelected(),
+						featuresBox.isSelected(), limits[0], limits[1]));
+				rows.put(row.id, row);
+			}
+		}
+		final Map<String, Double> parameters = new HashMap<String, Double>(requestedParameters);
+		final double minX = plot.getMinX(), maxX = plot.getMaxX(), minY = plot.getMinY(), maxY = plot.getMaxY();
+		final int width = plot.getPlotWidth(), height = plot.getPlotHeight();
+		plotScheduler.submit(progress -> {
+			progress.update(0, 1);
+			final List<CurveSet.Result> results = curveSet.sample(functions, parameters, PARAMETER_DEFAULT, minX, maxX, minY, maxY, width, height);
+			return new PlotResult(results, curveSet.getParameterNames());
+		}, result -> {
+			updateSliders(plot, result.parameterNames);
+			plot.clearCurves();
+			for (CurveSet.Result curve : result.curves) {
+				final FunctionRow row = rows.get(curve.getId());
+				row.showError(curve.getError());
+				row.integral.setText(curve.getIntegral() == null ? "" : format(curve.getIntegral()));
+				if (curve.getError() != null) {
+					continue;
+				}
+				final Color color = row.color.getValue();
+				if (curve.getCurve() != null && curve.getIntegral() != null) {
+					plot.addShading(curve.getCurve(), limits[0], limits[1], color);
+				}
+				if (curve.getCurve() != null) {
+					plot.addCurve(curve.getCurve(), color);
+				}
+				if (curve.getDerivative() != null) {
+					plot.addCurve(curve.getDerivative(), color.deriveColor(0, 1, 1, DERIVATIVE_OPACITY));
+				}
+				plot.addMarkers(curve.getFeatures(), color);
+			}
+			if (timingsBox.isSelected()) {
+				plot.setOverlay(Metrics.get().getLastPlot() + String.format("queued  %8.3f ms", plotScheduler.getLastQueuedNanos() / 1e6));
+			}
+			plot.redraw();
+			status.setText(String.format(" queued %.1f ms, ran %.1f ms",
+					plotScheduler.getLastQueuedNanos() / 1e6, plotScheduler.getLastRunningNanos() / 1e6));
+		}, e -> status.setText(" " + e.getMessage()));
+	}
+
+	/**
+	 * Reads the integration limits from their fields, marking a field red if it is not a finite number.
+	 * @return the lower and upper limit, both NaN if integration is off or a limit is invalid
+	 */
+	private double[] integralLimits () {
+		final double from = limit(integralFrom), to = limit(integralTo);
+		if (!integralBox.isSelected() || Double.isNaN(from) || Double.isNaN(to)) {
+			return new double[] { Double.NaN, Double.NaN };
 		}
-		if (clear) {
-			chart.getData().clear();
+		return new double[] { from, to };
+	}
+
+	private static double limit (TextField field) {
+		double value;
+		try {
+			value = Double.parseDouble(field.getText().trim());
+		} catch (NumberFormatException nfe) {
+			value = Double.NaN;
+		}
+		field.setStyle(Double.isFinite(value) ? "" : "-fx-text-fill: red");
+		return Double.isFinite(value) ? value : Double.NaN;
+	}
+
+	/**
+	 * Formats an integral for its function row: the value, approximate if the tolerance was not
+	 * met, or that it diverges.
+	 */
+	private static String format (Integrator.Result integral) {
+		if (!Double.isFinite(integral.getValue())) {
+			return " ∫ diverges ";
 		}
-		chart.getData().addAll(series);
+		return String.format(integral.isConverged() ? " ∫ = %.10g " : " ∫ ≈ %.6g ", integral.getValue());
+	}
+
+	/**
+	 * What a plot job hands back to the JavaFX thread.
+	 */
+	private static final class PlotResult {
+		final List<CurveSet.Result> curves;
+		final List<String> parameterNames;
+
+		PlotResult (List<CurveSet.Result> curves, List<String> parameterNames) {
+			this.curves = curves;
+			this.parameterNames = parameterNames;
+		}
+	}
+
+	/**
+	 * Shows one slider per parameter, rebuilding them only when the names change. A slider
+	 * keeps its value across expressions that share the parameter name.
+	 * @param plot the plot the sliders re-plot
+	 * @param names the parameter names of the plotted expressions
+	 */
+	private void updateSliders (PlotCanvas plot, List<String> names) {
+		if (names.equals(sliderNames)) {
+			return;
+		}
+		sliderNames = names;
+		parameterPane.getChildren().clear();
+		for (String name : names) {
+			final double initial = requestedParameters.getOrDefault(name, PARAMETER_DEFAULT);
+			final Slider slider = new Slider(PARAMETER_MIN, PARAMETER_MAX, initial);
+			final Label value = new Label(String.format("%s = %.2f", name, initial));
+			value.setMinWidth(80);
+			slider.valueProperty().addListener((observable, oldValue, newValue) -> {
+				requestedParameters.put(name, newValue.doubleValue());
+				value.setText(String.format("%s = %.2f", name, newValue.doubleValue()));
+				replot(plot);
+			});
+			parameterPane.getChildren().add(new HBox(value, slider));
+		}
+	}
+
+	/**
+	 * Appends a row to the function list.
+	 * @param plot the plot the row re-plots
+	 * @param text the initial expression text
+	 * @return the new row
+	 */
+	private FunctionRow addFunction (PlotCanvas plot, String text) {
+		final FunctionRow row = new FunctionRow(plot, text);
+		functionRows.add(row);
+		functionPane.getChildren().add(row.pane);
+		return row;
 	}
 
 	@Override
 	public void start (Stage primaryStage) {
 		primaryStage.setTitle("Graphing Calculator");
+		Metrics.register();
 
 		final Pane queryPane = new HBox();
-		final Label label = new Label("y=");
-		final TextField textField = new TextField(EXAMPLE_EXPRESSION);
 		final Button graphButton = new Button("Graph");
-		final CheckBox diffBox = new CheckBox("Show Derivative");
-		queryPane.getChildren().add(label);
-		queryPane.getChildren().add(textField);
-
-		final Pane graphPane = new Pane();
-		final LineChart<Number, Number> chart = new LineChart<Number, Number>(new NumberAxis(MIN_X, MAX_X, GRID_INTERVAL), new NumberAxis(MIN_Y, MAX_Y, GRID_INTERVAL));
-		chart.setLegendVisible(false);
-		chart.setCreateSymbols(false);
-		graphPane.getChildren().add(chart);
-		chart.setOnScroll(new EventHandler<ScrollEvent>() {
+		final Button addButton = new Button("Add Function");
+
+		final PlotCanvas plot = new PlotCanvas(MIN_X, MAX_X, MIN_Y, MAX_Y, GRID_INTERVAL);
+		final ProgressIndicator progressIndicator = new ProgressIndicator();
+		progressIndicator.setPrefSize(20, 20);
+		progressIndicator.setVisible(false);
+		status = new Label();
+		plotScheduler.setProgressListener(fraction -> {
+			progressIndicator.setVisible(fraction >= 0);
+			progressIndicator.setProgress(fraction);
+		});
+		plot.setOnScroll(new EventHandler<ScrollEvent>() {
 		    @Override
 		    public void handle(ScrollEvent event) {
 		    	double zoomPower = 1.01;
-		    	NumberAxis x = (NumberAxis) chart.getXAxis();
-		    	NumberAxis y = (NumberAxis) chart.getYAxis();
 		    	double delta = event.getDeltaY();
 		    	double zoom;
 		    	if (delta < 0) {
 		    	    zoom = zoomPower;
-		    	} 
+		    	}
 		    	else {
 		    	    zoom = 1/zoomPower;
 		    	}
-		    	double deltaX = (x.getUpperBound() - x.getLowerBound()) * (zoom - 1) / 2;
-		    	double newMinX = x.getLowerBound() - deltaX;
-		    	double newMaxX = x.getUpperBound() + deltaX;
-		    	x.setLowerBound(newMinX);
-		    	x.setUpperBound(newMaxX);
-		    	double deltaY = (y.getUpperBound() - y.getLowerBound()) * (zoom - 1) / 2;
-		    	double newMinY = y.getLowerBound() - deltaY;
-		    	double newMaxY = y.getUpperBound() + deltaY;
-		    	y.setLowerBound(newMinY);
-		    	y.setUpperBound(newMaxY);
+		    	plot.zoom(zoom);
+		    	replot(plot);
 		    }
 		});
+		plot.setOnMousePressed(e -> {
+			dragX = e.getX();
+			dragY = e.getY();
+		});
+		plot.setOnMouseDragged(e -> {
+			plot.pan(e.getX() - dragX, e.getY() - dragY);
+			dragX = e.getX();
+			dragY = e.getY();
+			replot(plot);
+		});
+		plot.widthProperty().addListener((observable, oldValue, newValue) -> replot(plot));
+		plot.heightProperty().addListener((observable, oldValue, newValue) -> replot(plot));
 		graphButton.setOnMouseClicked(new EventHandler<MouseEvent>() {
 			public void handle (MouseEvent e) {
-				try {
-					final Expression expression = expressionParser.parse(textField.getText());
-					graph(chart, expression, true);
-					System.out.println(expression.convertToString(0));
-					if (diffBox.isSelected()) {
-						final Expression derivative = expression.differentiate();
-						graph(chart, derivative, false);
-					}
-				} catch (ExpressionParseException epe) {
-					textField.setStyle("-fx-text-fill: red");
-				} catch (UnsupportedOperationException epe) {
-					textField.setStyle("-fx-text-fill: red");
+				for (FunctionRow row : functionRows) {
+					row.typing.stop();
+					row.submittedText = row.text.getText();
 				}
+				replot(plot);
 			}
 		});
+		addButton.setOnAction(e -> addFunction(plot, "").text.requestFocus());
+		featuresBox.setOnAction(e -> replot(plot));
+		integralBox.setOnAction(e -> replot(plot));
+		integralFrom.setOnAction(e -> replot(plot));
+		integralTo.setOnAction(e -> replot(plot));
+		integralFrom.setPrefColumnCount(4);
+		integralTo.setPrefColumnCount(4);
+		timingsBox.setSelected(Metrics.get().isEnabled());
+		timingsBox.setOnAction(e -> {
+			Metrics.get().setEnabled(timingsBox.isSelected());
+			plot.setOverlay(null);
+			replot(plot);
+		});
+		addFunction(plot, EXAMPLE_EXPRESSION);
+		queryPane.getChildren().add(addButton);
 		queryPane.getChildren().add(graphButton);
-		queryPane.getChildren().add(diffBox);
+		queryPane.getChildren().add(featuresBox);
+		queryPane.getChildren().add(integralBox);
+		queryPane.getChildren().add(integralFrom);
+		queryPane.getChildren().add(new Label(" to "));
+		queryPane.getChildren().add(integralTo);
+		queryPane.getChildren().add(timingsBox);
+		queryPane.getChildren().add(progressIndicator);
+		queryPane.getChildren().add(status);
 
-		textField.setOnKeyPressed(e -> textField.setStyle("-fx-text-fill: black"));
-		
 		final BorderPane root = new BorderPane();
-		root.setTop(queryPane);
-		root.setCenter(graphPane);
+		root.setTop(new VBox(functionPane, queryPane));
+		root.setBottom(parameterPane);
+		root.setCenter(plot);
 
 		final Scene scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT);
 		primaryStage.setScene(scene);
+		primaryStage.setOnHidden(e -> plotScheduler.shutdown());
 		primaryStage.show();
 	}
 }
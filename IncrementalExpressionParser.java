@@ -0,0 +1,176 @@
+package application;
+
+import java.util.Arrays;
+
+/**
+ * ExpressionParser that remembers the tokens and the group trees of the string it last parsed,
+ * and only redoes the part of the next string that an edit touched. Groups are function calls
+ * and parenthesized expressions.
+ * <p>
+ * The edit is the span between the longest common prefix and the longest common suffix of the
+ * two strings. Tokens ending more than Tokens.LOOKAHEAD characters before the edit are kept.
+ * Lexing resumes at the end of the last kept token and stops right after the edit, as soon as
+ * a token ends where one ended in the old string; the old tokens from there on are copied with
+ * their positions shifted. Likewise, every group whose tokens all lie outside the edit is taken
+ * over as a finished tree, and the parser skips straight past its ')'. What is parsed again is
+ * the edited region plus the operators at the nesting levels that enclose it. A one-character
+ * edit inside f(...) in a long expression therefore leaves the rest of the tree alone.
+ * <p>
+ * Reused subtrees are shared between the old tree and the new one. That is safe because parsed
+ * trees are never modified after parsing (see ParsedExpression). Lexing and parse state is kept
+ * even when a parse fails, so typing through invalid input stays incremental. One instance is
+ * meant to follow one text being edited; parse is synchronized, so it may be shared, but
+ * alternating between unrelated strings makes every parse a full one.
+ */
+public class IncrementalExpressionParser implements ExpressionParser {
+	private String _last;
+	private SimpleExpressionParser.Tokens _tokens;
+	/** Parsed group by the index of its function or '(' token, null where none is known. */
+	private Expression[] _groups;
+	/** Index of the ')' closing each group in _groups. */
+	private int[] _groupEnds;
+	private int _lexedTokens, _reusedGroups;
+
+	/**
+	 * Parser that takes finished groups from a table and records the ones it parses.
+	 */
+	private static final class GroupParser extends SimpleExpressionParser.Parser {
+		final Expression[] groups;
+		final int[] groupEnds;
+		int reused;
+
+		GroupParser (String str, SimpleExpressionParser.Tokens tokens, Expression[] groups, int[] groupEnds) {
+			super(str, tokens);
+			this.groups = groups;
+			this.groupEnds = groupEnds;
+		}
+
+		@Override
+		protected Expression reuseGroup (int open) {
+			final Expression group = groups[open];
+			if (group != null) {
+				_next = groupEnds[open] + 1;
+				reused++;
+			}
+			return group;
+		}
+
+		@Override
+		protected void recordGroup (int open, Expression group) {
+			groups[open] = group;
+			groupEnds[open] = _next - 1;
+		}
+	}
+
+	/**
+	 * Parses a string, reusing what is unchanged since the previous call.
+	 * @param str the string to parse into an expression tree
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	@Override
+	public synchronized Expression parse (String str) throws ExpressionParseException {
+		final SimpleExpressionParser.Tokens tokens;
+		final Expression[] groups;
+		final int[] groupEnds;
+		if (_last == null) {
+			tokens = new SimpleExpressionParser.Tokens(str);
+			groups = new Expression[tokens.size];
+			groupEnds = new int[tokens.size];
+			_lexedTokens = tokens.size;
+		} else {
+			tokens = new SimpleExpressionParser.Tokens(str.length() + 1);
+			groups = new Expression[str.length() + 1];
+			groupEnds = new int[str.length() + 1];
+			relex(str, tokens, groups, groupEnds);
+		}
+		_last = str;
+		_tokens = tokens;
+		_groups = groups;
+		_groupEnds = groupEnds;
+		final GroupParser parser = new GroupParser(str, tokens, groups, groupEnds);
+		try {
+			final Expression expression = parser.parseAdditiveExpression();
+			parser.expect(SimpleExpressionParser.END, "Unexpected input");
+			return expression;
+		} finally {
+			_reusedGroups = parser.reused;
+		}
+	}
+
+	/**
+	 * Fills in the tokens and known groups of str from those of the previous string, lexing only
+	 * around the edit.
+	 */
+	private void relex (String str, SimpleExpressionParser.Tokens tokens, Expression[] groups, int[] groupEnds)
+			throws ExpressionParseException {
+		final String old = _last;
+		final SimpleExpressionParser.Tokens oldTokens = _tokens;
+		final int max = Math.min(old.length(), str.length());
+		int prefix = 0;
+		while (prefix < max && old.charAt(prefix) == str.charAt(prefix)) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < max - prefix && old.charAt(old.length() - 1 - suffix) == str.charAt(str.length() - 1 - suffix)) {
+			suffix++;
+		}
+		final int delta = str.length() - old.length(), editEnd = str.length() - suffix;
+		// Keep the tokens, END excluded, whose lexing did not look into the edit
+		int kept = 0;
+		while (kept < oldTokens.size - 1 && oldTokens.ends[kept] + SimpleExpressionParser.Tokens.LOOKAHEAD < prefix) {
+			tokens.add(oldTokens.types[kept], oldTokens.starts[kept], oldTokens.ends[kept], oldTokens.values[kept]);
+			kept++;
+		}
+		for (int open = 0; open < kept; open++) {
+			if (_groups[open] != null && _groupEnds[open] < kept) {
+				groups[open] = _groups[open];
+				groupEnds[open] = _groupEnds[open];
+			}
+		}
+		// Lex from the last kept token until a token ends on an old token boundary past the edit
+		int i = kept == 0 ? 0 : oldTokens.ends[kept - 1];
+		final int lexedFrom = tokens.size;
+		int resume = -1;
+		while (i < str.length()) {
+			final int size = tokens.size;
+			i = tokens.lex(str, i);
+			if (tokens.size > size && i >= editEnd) {
+				final int k = Arrays.binarySearch(oldTokens.ends, 0, oldTokens.size - 1, i - delta);
+				if (k >= 0) {
+					resume = k + 1;
+					break;
+				}
+			}
+		}
+		_lexedTokens = tokens.size - lexedFrom;
+		if (resume < 0) {
+			tokens.add(SimpleExpressionParser.END, str.length(), str.length(), 0);
+			_lexedTokens++;
+			return;
+		}
+		final int shift = tokens.size - resume;
+		for (int k = resume; k < oldTokens.size; k++) {
+			tokens.add(oldTokens.types[k], oldTokens.starts[k] + delta, oldTokens.ends[k] + delta, oldTokens.values[k]);
+			if (_groups[k] != null) {
+				groups[k + shift] = _groups[k];
+				groupEnds[k + shift] = _groupEnds[k] + shift;
+			}
+		}
+	}
+
+	/**
+	 * Getter for the number of tokens the last parse had to lex; the others were copied
+	 * @return the lexed token count
+	 */
+	public synchronized int getLexedTokenCount () {
+		return _lexedTokens;
+	}
+
+	/**
+	 * Getter for the number of groups the last parse took over without parsing them
+	 * @return the reused group count
+	 */
+	public synchronized int getReusedGroupCount () {
+		return _reusedGroups;
+	}
+}
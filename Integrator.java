@@ -0,0 +1,369 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Adaptive Gauss-Kronrod 7/15 quadrature of a compiled expression. Every subinterval is estimated
+ * with the 15-point Kronrod rule, and its error with the difference from the embedded 7-point
+ * Gauss rule, scaled as QUADPACK's QK15 does. The subintervals sit in one queue ordered by error.
+ * Each round takes the fewest worst ones whose error must go for the total to meet the tolerance,
+ * up to ROUND_PER_WORKER per core, and bisects them all. The 15 nodes of every new half are
+ * evaluated together on a ParallelSampler, so rounds use every core and refinement is spent only
+ * where the error is.
+ * <p>
+ * Before refining, the range is split at the poles a FeatureFinder locates, so no node ever lands
+ * on one, and the halves next to such a singular end keep being bisected toward it. An integrable
+ * singularity such as log(x) at 0 converges this way. A half next to a singular end that holds
+ * as much as the interval it came from is taken as divergent, as 1/x is at 0; its value becomes
+ * infinite and the result is not converged. Points where the expression is undefined (NaN) count
+ * as 0, as the plot leaves them blank.
+ * <p>
+ * An integrator keeps no state between calls, so one can be shared between threads.
+ */
+public class Integrator {
+	/** Default tolerance, relative to the magnitude of the integral. */
+	public static final double DEFAULT_TOLERANCE = 1e-10;
+	/** Default largest number of evaluations one integration may make. */
+	public static final long DEFAULT_BUDGET = 1 << 20;
+	/** Nodes per subinterval. */
+	static final int NODES = 15;
+	/** Most subintervals bisected per round, per worker. */
+	private static final int ROUND_PER_WORKER = 8;
+	/** Largest number of nodes evaluated by one task. */
+	private static final int PARALLEL_THRESHOLD = 16 * NODES;
+	/** A half next to a singular end holding this fraction of its parent's value diverges. */
+	private static final double DIVERGENCE_RATIO = 0.999;
+	/** The error of a sum of pieces can not go below this fraction of the integral of |f|. */
+	private static final double ROUNDOFF = 50 * Math.ulp(1.0);
+	/** Pole search tolerance, as a fraction of the range. */
+	private static final double POLE_TOLERANCE = 1e-9;
+	/** Subintervals with a singular end on the left or the right. */
+	private static final int SINGULAR_LO = 1, SINGULAR_HI = 2;
+
+	/** Kronrod abscissae on [-1, 1], largest first; the odd ones are the Gauss abscissae. */
+	private static final double[] XGK = { 0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+			0.864864423359769072789712788640926, 0.741531185599394439863864773280788, 0.586087235467691130294144845693013,
+			0.405845151377397166906606412076961, 0.207784955007898467600689403773245, 0 };
+	/** Kronrod weights, matching XGK. */
+	private static final double[] WGK = { 0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+			0.104790010322250183839876322541518, 0.140653259715525918745189590510238, 0.169004726639267902826583426598550,
+			0.190350578064785409913256402421014, 0.204432940075298892414161999234649, 0.209482141084727828012999174891714 };
+	/** Gauss weights, for XGK[1], XGK[3], XGK[5] and the center. */
+	private static final double[] WG = { 0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+			0.381830050505118944950369775488975, 0.417959183673469387755102040816327 };
+
+	/**
+	 * The outcome of an integration.
+	 */
+	public static final class Result {
+		private final double _value, _error;
+		private final long _evaluations;
+		private final int _intervals;
+		private final boolean _converged;
+		private final List<Double> _singularities;
+
+		Result (double value, double error, long evaluations, int intervals, boolean converged, List<Double> singularities) {
+			_value = value;
+			_error = error;
+			_evaluations = evaluations;
+			_intervals = intervals;
+			_converged = converged;
+			_singularities = singularities;
+		}
+
+		/**
+		 * Getter for the estimated integral
+		 * @return the integral, infinite or NaN if it diverges
+		 */
+		public double getValue () {
+			return _value;
+		}
+
+		/**
+		 * Getter for the estimated absolute error
+		 * @return the error bound estimate
+		 */
+		public double getError () {
+			return _error;
+		}
+
+		/**
+		 * Getter for the number of point and interval evaluations made
+		 * @return the evaluation count
+		 */
+		public long getEvaluations () {
+			return _evaluations;
+		}
+
+		/**
+		 * Getter for the number of subintervals the range ended up split into
+		 * @return the subinterval count
+		 */
+		public int getIntervals () {
+			return _intervals;
+		}
+
+		/**
+		 * Checks whether the tolerance was met
+		 * @return false if the budget ran out, the integral diverges or the error could not be reduced
+		 */
+		public boolean isConverged () {
+			return _converged;
+		}
+
+		/**
+		 * Getter for the poles the range was split at
+		 * @return the x of each pole in the range, in increasing order
+		 */
+		public List<Double> getSingularities () {
+			return _singularities;
+		}
+
+		@Override
+		public String toString () {
+			return _value + " +/- " + _error + (_converged ? "" : " (not converged)");
+		}
+	}
+
+	/**
+	 * A subinterval with its Kronrod estimate.
+	 */
+	private static final class Piece {
+		final double lo, hi;
+		final int singular;
+		double value, error, absolute;
+
+		Piece (double lo, double hi, int singular) {
+			this.lo = lo;
+			this.hi = hi;
+			this.singular = singular;
+		}
+	}
+
+	private final ParallelSampler _sampler;
+	private final long _budget;
+
+	/**
+	 * @param sampler evaluates the nodes of each round
+	 * @param budget the most evaluations one integration may make
+	 */
+	public Integrator (ParallelSampler sampler, long budget) {
+		_sampler = sampler;
+		_budget = budget;
+	}
+
+	/**
+	 * Uses the common pool and the default budget.
+	 */
+	public Integrator () {
+		this(new ParallelSampler(ForkJoinPool.commonPool(), PARALLEL_THRESHOLD), DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Integrates an expression tree to the default tolerance.
+	 * @param expression the integrand, without parameters
+	 * @param a the lower limit
+	 * @param b the upper limit
+	 * @return the integral from a to b
+	 */
+	public Result integrate (Expression expression, double a, double b) {
+		return integrate(ExpressionCompiler.compile(expression), a, b, 0, DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * Integrates from a to b until the estimated error is at most the larger of the two
+	 * tolerances, or the budget runs out. Limits in decreasing order give the negated integral.
+	 * @param f the integrand, with its parameters bound
+	 * @param a the lower limit
+	 * @param b the upper limit
+	 * @param absoluteTolerance the acceptable absolute error
+	 * @param relativeTolerance the acceptable error relative to the magnitude of the integral
+	 * @return the integral from a to b
+	 */
+	public Result integrate (CompiledExpression f, double a, double b, double absoluteTolerance, double relativeTolerance) {
+		if (!Double.isFinite(a) || !Double.isFinite(b)) {
+			throw new IllegalArgumentException("Limits must be finite: " + a + ", " + b);
+		}
+		if (b < a) {
+			final Result result = integrate(f, b, a, absoluteTolerance, relativeTolerance);
+			return new Result(-result.getValue(), result.getError(), result.getEvaluations(), result.getIntervals(),
+					result.isConverged(), result.getSingularities());
+		}
+		if (a == b) {
+			return new Result(0, 0, 0, 0, true, Collections.<Double>emptyList());
+		}
+		final FeatureFinder finder = new FeatureFinder(f, null);
+		final List<Double> singularities = new ArrayList<Double>();
+		final List<Piece> pieces = split(finder, a, b, singularities);
+		long evaluations = finder.getEvaluations();
+		final PriorityQueue<Piece> queue = new PriorityQueue<Piece>((p, q) -> Double.compare(q.error, p.error));
+		final List<Piece> finished = new ArrayList<Piece>();
+		evaluations += estimate(f, pieces, null);
+		queue.addAll(pieces);
+		final int round = ROUND_PER_WORKER * _sampler.getParallelism();
+		boolean converged = false;
+		double value, error;
+		while (true) {
+			value = 0;
+			error = 0;
+			double absolute = 0;
+			for (Piece piece : queue) {
+				value += piece.value;
+				error += piece.error;
+				absolute += piece.absolute;
+			}
+			for (Piece piece : finished) {
+				value += piece.value;
+				error += piece.error;
+				absolute += piece.absolute;
+			}
+			if (!Double.isFinite(value)) {
+				break;
+			}
+			// Tolerances below the rounding error of the sum are raised to it, e.g. for an integral of 0
+			final double target = Math.max(Math.max(absoluteTolerance, relativeTolerance * Math.abs(value)), 2 * ROUNDOFF * absolute);
+			if (error <= target) {
+				converged = true;
+				break;
+			}
+			// The worst pieces whose error must go for the rest to meet the target
+			final List<Piece> parents = new ArrayList<Piece>();
+			double remaining = error;
+			while (!queue.isEmpty() && remaining > target && parents.size() < round
+					&& evaluations + 2L * NODES * (parents.size() + 1) <= _budget) {
+				final Piece piece = queue.poll();
+				final double mid = piece.lo + (piece.hi - piece.lo) / 2;
+				if (mid <= piece.lo || mid >= piece.hi) {
+					finished.add(piece);
+				} else {
+					parents.add(piece);
+				}
+				remaining -= piece.error;
+			}
+			if (parents.isEmpty()) {
+				break;
+			}
+			final List<Piece> children = new ArrayList<Piece>(2 * parents.size());
+			for (Piece parent : parents) {
+				final double mid = parent.lo + (parent.hi - parent.lo) / 2;
+				children.add(new Piece(parent.lo, mid, parent.singular & SINGULAR_LO));
+				children.add(new Piece(mid, parent.hi, parent.singular & SINGULAR_HI));
+			}
+			evaluations += estimate(f, children, parents);
+			for (Piece child : children) {
+				(Double.isInfinite(child.error) && Double.isInfinite(child.value) ? finished : queue).add(child);
+			}
+		}
+		// Leaving the loop only moves pieces between the lists, so the totals still hold
+		return new Result(value, error, evaluations, queue.size() + finished.size(), converged, singularities);
+	}
+
+	/**
+	 * Splits [a, b] at the poles in it. Poles within the search tolerance of a or b mark that end
+	 * singular instead.
+	 * @param singularities receives the x of each pole
+	 */
+	private static List<Piece> split (FeatureFinder finder, double a, double b, List<Double> singularities) {
+		final double tolerance = (b - a) * POLE_TOLERANCE;
+		final List<Piece> pieces = new ArrayList<Piece>();
+		double lo = a;
+		int singular = 0;
+		for (FeatureFinder.Feature feature : finder.find(a, b, tolerance)) {
+			if (feature.getKind() != FeatureFinder.Feature.POLE) {
+				continue;
+			}
+			final double x = feature.getX();
+			if (x - a <= tolerance) {
+				singular = SINGULAR_LO;
+				singularities.add(a);
+			} else if (b - x <= tolerance) {
+				pieces.add(new Piece(lo, b, singular | SINGULAR_HI));
+				singularities.add(b);
+				return pieces;
+			} else if (x > lo) {
+				pieces.add(new Piece(lo, x, singular | SINGULAR_HI));
+				singularities.add(x);
+				lo = x;
+				singular = SINGULAR_LO;
+			}
+		}
+		pieces.add(new Piece(lo, b, singular));
+		return pieces;
+	}
+
+	/**
+	 * Evaluates the nodes of every piece in one parallel pass and stores each piece's Kronrod
+	 * value and error. A half next to a singular end that does not shrink diverges.
+	 * @param parents the piece each pair of pieces halves, or null
+	 * @return the number of evaluations
+	 */
+	private long estimate (CompiledExpression f, List<Piece> pieces, List<Piece> parents) {
+		final double[] xs = new double[NODES * pieces.size()], ys = new double[xs.length];
+		for (int p = 0; p < pieces.size(); p++) {
+			final Piece piece = pieces.get(p);
+			final double center = piece.lo + (piece.hi - piece.lo) / 2, half = (piece.hi - piece.lo) / 2;
+			final int base = NODES * p;
+			xs[base] = center;
+			for (int j = 0; j < 7; j++) {
+				xs[base + 1 + j] = center - half * XGK[j];
+				xs[base + 8 + j] = center + half * XGK[j];
+			}
+		}
+		_sampler.evaluate(f, xs, ys);
+		for (int p = 0; p < pieces.size(); p++) {
+			final Piece piece = pieces.get(p);
+			kronrod(piece, ys, NODES * p);
+			if (parents != null && piece.singular != 0) {
+				final Piece parent = parents.get(p / 2);
+				if (parent.value != 0 && Math.abs(piece.value) >= DIVERGENCE_RATIO * Math.abs(parent.value)) {
+					piece.value = Math.copySign(Double.POSITIVE_INFINITY, piece.value);
+					piece.error = Double.POSITIVE_INFINITY;
+				}
+			}
+		}
+		return xs.length;
+	}
+
+	/**
+	 * The QK15 rule over one piece, from its node values: center first, then the left and the
+	 * right nodes in the order of XGK. Undefined values count as 0.
+	 */
+	private static void kronrod (Piece piece, double[] ys, int base) {
+		final double half = (piece.hi - piece.lo) / 2;
+		final double center = defined(ys[base]);
+		double gauss = center * WG[3], kronrod = center * WGK[7], absolute = Math.abs(kronrod);
+		for (int j = 0; j < 7; j++) {
+			final double left = defined(ys[base + 1 + j]), right = defined(ys[base + 8 + j]);
+			if (j % 2 == 1) {
+				gauss += WG[j / 2] * (left + right);
+			}
+			kronrod += WGK[j] * (left + right);
+			absolute += WGK[j] * (Math.abs(left) + Math.abs(right));
+		}
+		final double mean = kronrod / 2;
+		double spread = WGK[7] * Math.abs(center - mean);
+		for (int j = 0; j < 7; j++) {
+			spread += WGK[j] * (Math.abs(defined(ys[base + 1 + j]) - mean) + Math.abs(defined(ys[base + 8 + j]) - mean));
+		}
+		absolute *= Math.abs(half);
+		spread *= Math.abs(half);
+		double error = Math.abs((kronrod - gauss) * half);
+		if (spread != 0 && error != 0) {
+			error = spread * Math.min(1, Math.pow(200 * error / spread, 1.5));
+		}
+		if (absolute > Double.MIN_NORMAL / ROUNDOFF) {
+			error = Math.max(ROUNDOFF * absolute, error);
+		}
+		piece.value = kronrod * half;
+		piece.absolute = absolute;
+		piece.error = Double.isFinite(piece.value) ? error : Double.POSITIVE_INFINITY;
+	}
+
+	private static double defined (double y) {
+		return Double.isNaN(y) ? 0 : y;
+	}
+}
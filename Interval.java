@@ -0,0 +1,94 @@
+package application;
+
+/**
+ * An immutable closed interval [lo, hi] of doubles, possibly unbounded. The empty interval,
+ * which stands for "undefined everywhere", has NaN bounds.
+ */
+public final class Interval {
+	public static final Interval EMPTY = new Interval(Double.NaN, Double.NaN);
+	public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+	private final double _lo, _hi;
+
+	private Interval (double lo, double hi) {
+		_lo = lo;
+		_hi = hi;
+	}
+
+	/**
+	 * Creates the interval [lo, hi].
+	 * @param lo the lower bound
+	 * @param hi the upper bound
+	 * @return the interval, or EMPTY if either bound is NaN
+	 * @throws IllegalArgumentException if lo is greater than hi
+	 */
+	public static Interval of (double lo, double hi) {
+		if (Double.isNaN(lo) || Double.isNaN(hi)) {
+			return EMPTY;
+		}
+		if (lo > hi) {
+			throw new IllegalArgumentException("Lower bound " + lo + " is above upper bound " + hi);
+		}
+		return new Interval(lo, hi);
+	}
+
+	/**
+	 * Creates the interval holding a single value.
+	 * @param x the value
+	 * @return [x, x]
+	 */
+	public static Interval point (double x) {
+		return of(x, x);
+	}
+
+	public double getLo () {
+		return _lo;
+	}
+
+	public double getHi () {
+		return _hi;
+	}
+
+	public boolean isEmpty () {
+		return Double.isNaN(_lo);
+	}
+
+	/**
+	 * Checks whether both bounds are finite
+	 * @return true if the interval is non-empty and bounded
+	 */
+	public boolean isBounded () {
+		return !isEmpty() && _lo > Double.NEGATIVE_INFINITY && _hi < Double.POSITIVE_INFINITY;
+	}
+
+	public boolean contains (double value) {
+		return _lo <= value && value <= _hi;
+	}
+
+	/**
+	 * Getter for the width
+	 * @return hi - lo, or NaN if the interval is empty
+	 */
+	public double getWidth () {
+		return _hi - _lo;
+	}
+
+	@Override
+	public boolean equals (Object o) {
+		if (!(o instanceof Interval)) {
+			return false;
+		}
+		final Interval other = (Interval) o;
+		return Double.compare(_lo, other._lo) == 0 && Double.compare(_hi, other._hi) == 0;
+	}
+
+	@Override
+	public int hashCode () {
+		return Double.hashCode(_lo) * 31 + Double.hashCode(_hi);
+	}
+
+	@Override
+	public String toString () {
+		return isEmpty() ? "[]" : "[" + _lo + ", " + _hi + "]";
+	}
+}
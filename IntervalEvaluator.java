@@ -0,0 +1,291 @@
+package application;
+
+import static application.ExpressionCompiler.*;
+
+/**
+ * Interval evaluation of a compiled expression: given an interval of x-values, computes an
+ * interval that is guaranteed to contain the value of the expression at every x in it where the
+ * expression is defined. Every bound is rounded outward by one ulp, which covers the rounding of
+ * the arithmetic operators and the one-ulp error the Math functions are allowed.
+ * <p>
+ * Domains follow Math semantics. Functions are bounded by the interval extension of their
+ * FunctionRegistry entry; log and sqrt only see the non-negative part of their operand; a negative
+ * base is only raised to integer exponents; division by an interval touching 0 is unbounded. The
+ * result is EMPTY when the expression is undefined (NaN) over the whole interval, and unbounded
+ * when it may have a pole there. Ranges are usually wider than the true range, because each
+ * occurrence of x is treated as independent.
+ * <p>
+ * The scratch stacks are preallocated, so evaluate(double, double, double[]) does not allocate. An
+ * evaluator must only be used by one thread at a time.
+ */
+public final class IntervalEvaluator {
+	private final CompiledExpression _compiled;
+	private final double[] _lo, _hi;
+	private final double[] _range = new double[2];
+	private long _evaluations;
+
+	/**
+	 * @param compiled the expression to evaluate, with its parameters bound
+	 */
+	public IntervalEvaluator (CompiledExpression compiled) {
+		_compiled = compiled;
+		_lo = new double[Math.max(1, compiled.getMaxStack())];
+		_hi = new double[_lo.length];
+	}
+
+	/**
+	 * Computes an enclosure of the expression's values over an interval of x.
+	 * @param x the values of the independent variable x
+	 * @return an interval containing every defined value, EMPTY if there is none
+	 */
+	public Interval evaluate (Interval x) {
+		if (x.isEmpty()) {
+			return Interval.EMPTY;
+		}
+		final double[] range = new double[2];
+		evaluate(x.getLo(), x.getHi(), range);
+		return Interval.of(range[0], range[1]);
+	}
+
+	/**
+	 * Computes an enclosure of the expression's values for x from xLo to xHi.
+	 * @param xLo the lowest x
+	 * @param xHi the highest x
+	 * @param range receives the lower bound at index 0 and the upper bound at index 1, both NaN if
+	 * the expression is undefined everywhere on the interval
+	 */
+	public void evaluate (double xLo, double xHi, double[] range) {
+		_evaluations++;
+		final byte[] code = _compiled.getCode();
+		final int[] args = _compiled.getArgs();
+		final double[] constants = _compiled.getConstants();
+		final double[] lo = _lo, hi = _hi;
+		int sp = 0;
+		for (int pc = 0; pc < code.length; pc++) {
+			final byte op = code[pc];
+			if (op == OP_CONST) {
+				lo[sp] = hi[sp] = constants[args[pc]];
+				sp++;
+				continue;
+			}
+			if (op == OP_X) {
+				lo[sp] = xLo;
+				hi[sp] = xHi;
+				sp++;
+				continue;
+			}
+			if (op >= OP_FUNCTION) {
+				function(FunctionRegistry.get(op), lo, hi, sp - 1);
+				continue;
+			}
+			sp--;
+			final int a = sp - 1, b = sp;
+			if (Double.isNaN(lo[a]) || Double.isNaN(lo[b])) {
+				if (op != OP_POW || lo[b] != 0 || hi[b] != 0) {
+					lo[a] = hi[a] = Double.NaN;
+					continue;
+				}
+			}
+			switch (op) {
+			case OP_ADD:
+				set(lo, hi, a, lo[a] + lo[b], hi[a] + hi[b]);
+				break;
+			case OP_SUB:
+				set(lo, hi, a, lo[a] - hi[b], hi[a] - lo[b]);
+				break;
+			case OP_MUL:
+				multiply(lo, hi, a, lo[b], hi[b]);
+				break;
+			case OP_DIV:
+				divide(lo, hi, a, lo[b], hi[b]);
+				break;
+			case OP_POW:
+				power(lo, hi, a, lo[b], hi[b]);
+				break;
+			}
+		}
+		range[0] = lo[0];
+		range[1] = hi[0];
+	}
+
+	/**
+	 * Getter for the number of interval evaluations so far
+	 * @return the evaluation count
+	 */
+	public long getEvaluations () {
+		return _evaluations;
+	}
+
+	/**
+	 * Stores [down(l), up(h)] in slot a. A NaN bound can only come from adding opposite
+	 * infinities, so it is widened to the corresponding infinity.
+	 */
+	private static void set (double[] lo, double[] hi, int a, double l, double h) {
+		lo[a] = Double.isNaN(l) ? Double.NEGATIVE_INFINITY : down(l);
+		hi[a] = Double.isNaN(h) ? Double.POSITIVE_INFINITY : up(h);
+	}
+
+	private static double down (double v) {
+		return v == Double.POSITIVE_INFINITY ? v : Math.nextDown(v);
+	}
+
+	private static double up (double v) {
+		return v == Double.NEGATIVE_INFINITY ? v : Math.nextUp(v);
+	}
+
+	/** 0 * infinity is taken as 0, since the infinite bound is never attained. */
+	private static double product (double l, double r) {
+		final double p = l * r;
+		return Double.isNaN(p) ? 0 : p;
+	}
+
+	/** Slot a = a * [bLo, bHi], from the four corner products. */
+	private static void multiply (double[] lo, double[] hi, int a, double bLo, double bHi) {
+		final double p1 = product(lo[a], bLo), p2 = product(lo[a], bHi), p3 = product(hi[a], bLo), p4 = product(hi[a], bHi);
+		set(lo, hi, a, Math.min(Math.min(p1, p2), Math.min(p3, p4)), Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+	}
+
+	/**
+	 * Slot a = a / [bLo, bHi], as a times the reciprocal of b. A divisor with 0 at one end has
+	 * a half-unbounded reciprocal; one with 0 inside has an unbounded quotient.
+	 */
+	private static void divide (double[] lo, double[] hi, int a, double bLo, double bHi) {
+		if (bLo > 0 || bHi < 0) {
+			multiply(lo, hi, a, down(1 / bHi), up(1 / bLo));
+		} else if (bLo == 0 && bHi > 0) {
+			multiply(lo, hi, a, down(1 / bHi), Double.POSITIVE_INFINITY);
+		} else if (bHi == 0 && bLo < 0) {
+			multiply(lo, hi, a, Double.NEGATIVE_INFINITY, up(1 / bLo));
+		} else {
+			lo[a] = Double.NEGATIVE_INFINITY;
+			hi[a] = Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/** Slot a = f(a), from the function's interval extension. A NaN slot stays NaN. */
+	private void function (FunctionRegistry.Function f, double[] lo, double[] hi, int a) {
+		if (Double.isNaN(lo[a])) {
+			return;
+		}
+		final double[] range = _range;
+		f.range(lo[a], hi[a], range);
+		if (Double.isNaN(range[0]) && Double.isNaN(range[1])) {
+			lo[a] = hi[a] = Double.NaN;
+		} else {
+			set(lo, hi, a, range[0], range[1]);
+		}
+	}
+
+	/**
+	 * Slot a = a ^ [bLo, bHi] under Math.pow rules: x^0 is 1, a negative base needs an integer
+	 * exponent, 0 to a negative power is infinite.
+	 */
+	private static void power (double[] lo, double[] hi, int a, double bLo, double bHi) {
+		final double aLo = lo[a], aHi = hi[a];
+		if (bLo == bHi) {
+			final double y = bLo;
+			if (y == 0) {
+				lo[a] = hi[a] = 1;
+			} else if (y == Math.rint(y) && !Double.isInfinite(y)) {
+				integerPower(lo, hi, a, aLo, aHi, y);
+			} else if (aHi < 0) {
+				lo[a] = hi[a] = Double.NaN;
+			} else {
+				final double l = Math.max(aLo, 0);
+				if (y > 0) {
+					set(lo, hi, a, Math.pow(l, y), Math.pow(aHi, y));
+				} else {
+					set(lo, hi, a, Math.pow(aHi, y), Math.pow(l, y));
+				}
+			}
+			return;
+		}
+		double l = Double.NaN, h = Double.NaN;
+		if (aHi >= 0) {
+			// For a > 0, a^b = exp(b * log(a)) is extreme at the corners; a = 0 adds the limits
+			final double pLo = Math.max(aLo, 0);
+			final double c1 = Math.pow(aHi, bLo), c2 = Math.pow(aHi, bHi);
+			l = Math.min(c1, c2);
+			h = Math.max(c1, c2);
+			if (pLo > 0) {
+				final double c3 = Math.pow(pLo, bLo), c4 = Math.pow(pLo, bHi);
+				l = Math.min(l, Math.min(c3, c4));
+				h = Math.max(h, Math.max(c3, c4));
+			} else {
+				if (bHi > 0) {
+					l = Math.min(l, 0);
+				}
+				if (bLo < 0) {
+					h = Double.POSITIVE_INFINITY;
+				}
+			}
+		}
+		if (aLo < 0 && Math.floor(bHi) == Math.ceil(bLo)) {
+			// Exactly one integer exponent n applies to the negative part
+			final double n = Math.ceil(bLo);
+			if (n == 0) {
+				lo[a] = hi[a] = 1;
+			} else {
+				integerPower(lo, hi, a, aLo, Math.min(aHi, 0), n);
+			}
+			l = Double.isNaN(l) ? lo[a] : Math.min(l, lo[a]);
+			h = Double.isNaN(h) ? hi[a] : Math.max(h, hi[a]);
+		} else if (aLo < 0 && Math.floor(bHi) > Math.ceil(bLo)) {
+			// Several integer exponents apply to the negative part, giving either sign of |a|^b
+			final double mLo = Math.max(-aHi, 0), mHi = -aLo;
+			double m = Math.max(Math.pow(mHi, bLo), Math.pow(mHi, bHi));
+			if (mLo > 0) {
+				m = Math.max(m, Math.max(Math.pow(mLo, bLo), Math.pow(mLo, bHi)));
+			} else if (bLo < 0) {
+				m = Double.POSITIVE_INFINITY;
+			}
+			l = Double.isNaN(l) ? -m : Math.min(l, -m);
+			h = Double.isNaN(h) ? m : Math.max(h, m);
+		}
+		if (Double.isNaN(l) && Double.isNaN(h)) {
+			lo[a] = hi[a] = Double.NaN;
+		} else if (Double.isNaN(l) || Double.isNaN(h)) {
+			lo[a] = Double.NEGATIVE_INFINITY;
+			hi[a] = Double.POSITIVE_INFINITY;
+		} else {
+			lo[a] = down(l);
+			hi[a] = up(h);
+		}
+	}
+
+	/**
+	 * Slot a = [aLo, aHi] ^ n for a non-zero integer n. Odd powers keep the order of the base,
+	 * even powers fold it around 0, and negative powers are unbounded next to 0.
+	 */
+	private static void integerPower (double[] lo, double[] hi, int a, double aLo, double aHi, double n) {
+		final boolean even = Math.rint(n / 2) * 2 == n;
+		final double pLo = Math.pow(aLo, n), pHi = Math.pow(aHi, n);
+		if (n > 0) {
+			if (!even || aLo >= 0) {
+				set(lo, hi, a, pLo, pHi);
+			} else if (aHi <= 0) {
+				set(lo, hi, a, pHi, pLo);
+			} else {
+				set(lo, hi, a, 0, Math.max(pLo, pHi));
+			}
+		} else if (aLo > 0 || aHi < 0) {
+			if (even && aHi < 0) {
+				set(lo, hi, a, pLo, pHi);
+			} else {
+				set(lo, hi, a, pHi, pLo);
+			}
+		} else if (even) {
+			lo[a] = aLo == 0 ? down(pHi) : aHi == 0 ? down(pLo) : down(Math.min(pLo, pHi));
+			hi[a] = Double.POSITIVE_INFINITY;
+		} else if (aLo == 0 && aHi > 0) {
+			lo[a] = down(pHi);
+			hi[a] = Double.POSITIVE_INFINITY;
+		} else if (aHi == 0 && aLo < 0) {
+			lo[a] = Double.NEGATIVE_INFINITY;
+			hi[a] = up(pLo);
+		} else {
+			lo[a] = Double.NEGATIVE_INFINITY;
+			hi[a] = Double.POSITIVE_INFINITY;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the evaluation service. Objects are read into
+ * LinkedHashMaps, arrays into ArrayLists and numbers into Doubles; strings, booleans and null
+ * map to themselves. The writer also takes double[] columns directly, and writes non-finite
+ * numbers, which JSON cannot represent, as null.
+ */
+final class Json {
+	/** Deepest nesting accepted, so hostile input cannot exhaust the stack. */
+	static final int MAX_DEPTH = 64;
+
+	private final String _text;
+	private int _pos;
+
+	private Json (String text) {
+		_text = text;
+	}
+
+	/**
+	 * Parses one JSON value.
+	 * @param text the JSON text
+	 * @return the value
+	 * @throws IllegalArgumentException if the text is not a single well-formed JSON value
+	 */
+	static Object parse (String text) {
+		final Json json = new Json(text);
+		final Object value = json.value(0);
+		json.skipSpace();
+		if (json._pos != text.length()) {
+			throw json.error("Unexpected trailing characters");
+		}
+		return value;
+	}
+
+	/**
+	 * Writes a value as JSON.
+	 * @param value a Map with String keys, a Collection, a double[], a Number, a String, a Boolean or null
+	 * @return the JSON text
+	 */
+	static String toString (Object value) {
+		final StringBuilder s = new StringBuilder();
+		write(value, s);
+		return s.toString();
+	}
+
+	static void write (Object value, StringBuilder s) {
+		if (value == null) {
+			s.append("null");
+		} else if (value instanceof String) {
+			quote((String) value, s);
+		} else if (value instanceof Boolean) {
+			s.append(value);
+		} else if (value instanceof Double || value instanceof Float) {
+			number(((Number) value).doubleValue(), s);
+		} else if (value instanceof Number) {
+			s.append(((Number) value).longValue());
+		} else if (value instanceof double[]) {
+			final double[] values = (double[]) value;
+			s.append('[');
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					s.append(',');
+				}
+				number(values[i], s);
+			}
+			s.append(']');
+		} else if (value instanceof Map) {
+			s.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!first) {
+					s.append(',');
+				}
+				first = false;
+				quote(String.valueOf(entry.getKey()), s);
+				s.append(':');
+				write(entry.getValue(), s);
+			}
+			s.append('}');
+		} else if (value instanceof Collection) {
+			s.append('[');
+			boolean first = true;
+			for (Object element : (Collection<?>) value) {
+				if (!first) {
+					s.append(',');
+				}
+				first = false;
+				write(element, s);
+			}
+			s.append(']');
+		} else {
+			throw new IllegalArgumentException("Cannot write " + value.getClass().getName() + " as JSON");
+		}
+	}
+
+	private static void number (double v, StringBuilder s) {
+		if (Double.isNaN(v) || Double.isInfinite(v)) {
+			s.append("null");
+		} else if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+			s.append((long) v);
+		} else {
+			s.append(v);
+		}
+	}
+
+	private static void quote (String str, StringBuilder s) {
+		s.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			final char c = str.charAt(i);
+			switch (c) {
+			case '"':
+				s.append("\\\"");
+				break;
+			case '\\':
+				s.append("\\\\");
+				break;
+			case '\n':
+				s.append("\\n");
+				break;
+			case '\r':
+				s.append("\\r");
+				break;
+			case '\t':
+				s.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					s.append(String.format("\\u%04x", (int) c));
+				} else {
+					s.append(c);
+				}
+			}
+		}
+		s.append('"');
+	}
+
+	private Object value (int depth) {
+		if (depth > MAX_DEPTH) {
+			throw error("Nesting deeper than " + MAX_DEPTH);
+		}
+		skipSpace();
+		if (_pos >= _text.length()) {
+			throw error("Unexpected end of input");
+		}
+		final char c = _text.charAt(_pos);
+		if (c == '{') {
+			return object(depth);
+		}
+		if (c == '[') {
+			return array(depth);
+		}
+		if (c == '"') {
+			return string();
+		}
+		if (_text.startsWith("true", _pos)) {
+			_pos += 4;
+			return Boolean.TRUE;
+		}
+		if (_text.startsWith("false", _pos)) {
+			_pos += 5;
+			return Boolean.FALSE;
+		}
+		if (_text.startsWith("null", _pos)) {
+			_pos += 4;
+			return null;
+		}
+		return number();
+	}
+
+	private Map<String, Object> object (int depth) {
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		_pos++;
+		skipSpace();
+		if (peek() == '}') {
+			_pos++;
+			return map;
+		}
+		while (true) {
+			skipSpace();
+			if (peek() != '"') {
+				throw error("Expected a member name");
+			}
+			final String name = string();
+			skipSpace();
+			expect(':');
+			map.put(name, value(depth + 1));
+			skipSpace();
+			if (peek() == ',') {
+				_pos++;
+			} else {
+				expect('}');
+				return map;
+			}
+		}
+	}
+
+	private List<Object> array (int depth) {
+		final List<Object> list = new ArrayList<Object>();
+		_pos++;
+		skipSpace();
+		if (peek() == ']') {
+			_pos++;
+			return list;
+		}
+		while (true) {
+			list.add(value(depth + 1));
+			skipSpace();
+			if (peek() == ',') {
+				_pos++;
+			} else {
+				expect(']');
+				return list;
+			}
+		}
+	}
+
+	private String string () {
+		final StringBuilder s = new StringBuilder();
+		_pos++;
+		while (true) {
+			if (_pos >= _text.length()) {
+				throw error("Unterminated string");
+			}
+			final char c = _text.charAt(_pos++);
+			if (c == '"') {
+				return s.toString();
+			}
+			if (c != '\\') {
+				s.append(c);
+				continue;
+			}
+			final char e = peek();
+			_pos++;
+			switch (e) {
+			case 'b':
+				s.append('\b');
+				break;
+			case 'f':
+				s.append('\f');
+				break;
+			case 'n':
+				s.append('\n');
+				break;
+			case 'r':
+				s.append('\r');
+				break;
+			case 't':
+				s.append('\t');
+				break;
+			case 'u':
+				if (_pos + 4 > _text.length()) {
+					throw error("Truncated escape");
+				}
+				try {
+					s.append((char) Integer.parseInt(_text.substring(_pos, _pos + 4), 16));
+				} catch (NumberFormatException nfe) {
+					throw error("Bad escape");
+				}
+				_pos += 4;
+				break;
+			case '"':
+			case '\\':
+			case '/':
+				s.append(e);
+				break;
+			default:
+				throw error("Bad escape");
+			}
+		}
+	}
+
+	private Double number () {
+		final int start = _pos;
+		while (_pos < _text.length() && "+-0123456789.eE".indexOf(_text.charAt(_pos)) >= 0) {
+			_pos++;
+		}
+		try {
+			return Double.valueOf(_text.substring(start, _pos));
+		} catch (NumberFormatException nfe) {
+			_pos = start;
+			throw error("Expected a value");
+		}
+	}
+
+	private char peek () {
+		return _pos < _text.length() ? _text.charAt(_pos) : '\0';
+	}
+
+	private void expect (char c) {
+		if (peek() != c) {
+			throw error("Expected '" + c + "'");
+		}
+		_pos++;
+	}
+
+	private void skipSpace () {
+		while (_pos < _text.length() && Character.isWhitespace(_text.charAt(_pos))) {
+			_pos++;
+		}
+	}
+
+	private IllegalArgumentException error (String message) {
+		return new IllegalArgumentException(message + " at " + _pos);
+	}
+}
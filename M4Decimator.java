@@ -0,0 +1,116 @@
+package application;
+
+import java.util.Arrays;
+
+/**
+ * Per-pixel-column M4 decimation. For each pixel column a segment passes through, only the
+ * first, minimum, maximum and last point of that column are kept, in their original order. The
+ * polyline through them rasterizes to the same pixels as the polyline through every sample, but
+ * has at most four points per column, so drawing cost is bounded by the width and not by the
+ * sample count. Output is in pixel coordinates, with y growing downwards.
+ */
+public final class M4Decimator {
+	/** Pixel coordinates are clamped to this distance outside the viewport. */
+	static final double CLAMP = 1e5;
+
+	private final double _minX, _maxY, _xPerPixel, _yPerPixel;
+	private final int _width, _height;
+	private double[] _px = new double[64], _py = new double[64];
+	private int _size;
+
+	/**
+	 * @param minX the left edge of the viewport
+	 * @param maxX the right edge of the viewport
+	 * @param minY the bottom edge of the viewport
+	 * @param maxY the top edge of the viewport
+	 * @param width the viewport width in pixels
+	 * @param height the viewport height in pixels
+	 */
+	public M4Decimator (double minX, double maxX, double minY, double maxY, int width, int height) {
+		_minX = minX;
+		_maxY = maxY;
+		_xPerPixel = (maxX - minX) / width;
+		_yPerPixel = (maxY - minY) / height;
+		_width = width;
+		_height = height;
+	}
+
+	/**
+	 * Decimates one segment. The result stays valid until the next call.
+	 * @param xs the x-values of the segment, in increasing order
+	 * @param ys the y-values of the segment
+	 * @param from the first index to use
+	 * @param to one past the last index to use
+	 * @return the number of points written to getPixelXs() and getPixelYs()
+	 */
+	public int decimate (double[] xs, double[] ys, int from, int to) {
+		_size = 0;
+		int i = from;
+		while (i < to) {
+			final long column = (long) Math.floor((xs[i] - _minX) / _xPerPixel);
+			final int first = i;
+			int min = i, max = i;
+			i++;
+			while (i < to && (long) Math.floor((xs[i] - _minX) / _xPerPixel) == column) {
+				if (ys[i] < ys[min]) {
+					min = i;
+				}
+				if (ys[i] > ys[max]) {
+					max = i;
+				}
+				i++;
+			}
+			final int last = i - 1;
+			emit(xs, ys, first);
+			if (min < max) {
+				emitIfNew(xs, ys, min, first, last);
+				emitIfNew(xs, ys, max, first, last);
+			} else {
+				emitIfNew(xs, ys, max, first, last);
+				emitIfNew(xs, ys, min, first, last);
+			}
+			if (last != first) {
+				emit(xs, ys, last);
+			}
+		}
+		return _size;
+	}
+
+	/**
+	 * Decimates a whole segment.
+	 * @param xs the x-values of the segment, in increasing order
+	 * @param ys the y-values of the segment
+	 * @return the number of points written
+	 */
+	public int decimate (double[] xs, double[] ys) {
+		return decimate(xs, ys, 0, xs.length);
+	}
+
+	public double[] getPixelXs () {
+		return _px;
+	}
+
+	public double[] getPixelYs () {
+		return _py;
+	}
+
+	private void emitIfNew (double[] xs, double[] ys, int index, int first, int last) {
+		if (index != first && index != last) {
+			emit(xs, ys, index);
+		}
+	}
+
+	private void emit (double[] xs, double[] ys, int index) {
+		if (_size == _px.length) {
+			_px = Arrays.copyOf(_px, _size * 2);
+			_py = Arrays.copyOf(_py, _size * 2);
+		}
+		_px[_size] = clamp((xs[index] - _minX) / _xPerPixel, _width);
+		_py[_size] = clamp((_maxY - ys[index]) / _yPerPixel, _height);
+		_size++;
+	}
+
+	private static double clamp (double pixel, int extent) {
+		return Math.max(-CLAMP, Math.min(extent + CLAMP, pixel));
+	}
+}
@@ -0,0 +1,408 @@
+package application;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Process-wide instrumentation of the plotting pipeline: parsing, differentiation, sampling and
+ * rendering. Every stage reports once per operation, never per point, through two independent
+ * channels:
+ * <ul>
+ * <li>JFR events under the "Graphing Calculator" category, emitted only while a recording has
+ * them enabled, e.g. with -XX:StartFlightRecording;</li>
+ * <li>counters and power-of-two histograms, exposed through the MetricsMXBean and the on-chart
+ * overlay, collected only while enabled. They start enabled if the system property
+ * application.metrics is true.</li>
+ * </ul>
+ * With both off, a report costs one volatile read and one JFR enabled check.
+ */
+public final class Metrics implements MetricsMXBean {
+	public static final String OBJECT_NAME = "application:type=Metrics";
+	private static final Metrics INSTANCE = new Metrics(Boolean.getBoolean("application.metrics"));
+
+	/**
+	 * Power-of-two histogram of non-negative values. Recording is lock-free; percentiles are the
+	 * upper bound of the bucket they fall in, so they are within a factor of 2.
+	 */
+	public static final class Histogram {
+		private static final int BUCKETS = 65;
+
+		private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder _count = new LongAdder(), _sum = new LongAdder();
+		private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+		void record (long value) {
+			final long v = Math.max(0, value);
+			_buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+			_count.increment();
+			_sum.add(v);
+			_max.accumulate(v);
+		}
+
+		void reset () {
+			for (int b = 0; b < BUCKETS; b++) {
+				_buckets.set(b, 0);
+			}
+			_count.reset();
+			_sum.reset();
+			_max.reset();
+		}
+
+		public long getCount () {
+			return _count.sum();
+		}
+
+		public double getMean () {
+			final long count = getCount();
+			return count == 0 ? 0 : (double) _sum.sum() / count;
+		}
+
+		public long getMax () {
+			return _max.get();
+		}
+
+		public long getP50 () {
+			return percentile(0.50);
+		}
+
+		public long getP90 () {
+			return percentile(0.90);
+		}
+
+		public long getP99 () {
+			return percentile(0.99);
+		}
+
+		/**
+		 * Estimates a percentile.
+		 * @param p the fraction of values at or below the result, from 0 to 1
+		 * @return the upper bound of the bucket holding the percentile, at most the maximum
+		 */
+		public long percentile (double p) {
+			final long count = getCount();
+			if (count == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1, (long) Math.ceil(p * count));
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += _buckets.get(b);
+				if (seen >= rank) {
+					return Math.min(b == 0 ? 0 : b == 64 ? Long.MAX_VALUE : (1L << b) - 1, getMax());
+				}
+			}
+			return getMax();
+		}
+	}
+
+	@Name("application.Parse")
+	@Label("Expression Parse")
+	@Category("Graphing Calculator")
+	@Description("An expression text parsed into a tree")
+	static final class ParseEvent extends Event {
+		@Label("Input Length")
+		int inputLength;
+		@Label("Tree Nodes")
+		long nodes;
+		@Label("Parse Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long parseTime;
+	}
+
+	@Name("application.Differentiate")
+	@Label("Differentiate")
+	@Category("Graphing Calculator")
+	@Description("A simplified derivative built for an expression")
+	static final class DifferentiateEvent extends Event {
+		@Label("Tree Nodes")
+		long nodes;
+		@Label("Derivative Nodes")
+		long derivativeNodes;
+		@Label("Differentiate Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long differentiateTime;
+	}
+
+	@Name("application.Plot")
+	@Label("Plot")
+	@Category("Graphing Calculator")
+	@Description("The curves of one plot sampled over the viewport")
+	static final class PlotEvent extends Event {
+		@Label("Functions")
+		int functions;
+		@Label("Samples")
+		long samples;
+		@Label("Evaluations")
+		long evaluations;
+		@Label("Evaluations per Second")
+		double evaluationsPerSecond;
+		@Label("Sample Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long sampleTime;
+	}
+
+	@Name("application.Render")
+	@Label("Render")
+	@Category("Graphing Calculator")
+	@Description("The plot drawn onto the canvas")
+	static final class RenderEvent extends Event {
+		@Label("Curves")
+		int curves;
+		@Label("Points")
+		long points;
+		@Label("Render Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long renderTime;
+	}
+
+	private volatile boolean _enabled;
+	private final Histogram _parseNanos = new Histogram(), _inputLength = new Histogram(), _treeNodes = new Histogram();
+	private final Histogram _derivativeNodes = new Histogram();
+	private final Histogram _sampleNanos = new Histogram(), _samplesPerPlot = new Histogram(), _evaluationsPerPlot = new Histogram();
+	private final Histogram _renderNanos = new Histogram();
+	private final LongAdder _evaluations = new LongAdder(), _evaluationNanos = new LongAdder();
+	private volatile long _lastParseNanos = -1, _lastInputLength, _lastTreeNodes;
+	private volatile long _lastSampleNanos = -1, _lastSamples, _lastEvaluations;
+	private volatile long _lastRenderNanos = -1, _lastRenderPoints;
+	private boolean _registered;
+
+	private Metrics (boolean enabled) {
+		_enabled = enabled;
+	}
+
+	/**
+	 * Getter for the process-wide instance
+	 * @return the metrics
+	 */
+	public static Metrics get () {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers the instance with the platform MBean server, once.
+	 * @throws IllegalStateException if registration fails
+	 */
+	public static synchronized void register () {
+		if (INSTANCE._registered) {
+			return;
+		}
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(INSTANCE, name);
+			}
+			INSTANCE._registered = true;
+		} catch (JMException e) {
+			throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	 * Reports a parse.
+	 * @param inputLength the length of the parsed text
+	 * @param tree the resulting tree; only walked if something is collecting
+	 * @param nanos the time the parse took
+	 */
+	static void parsed (int inputLength, Expression tree, long nanos) {
+		final Metrics m = INSTANCE;
+		final ParseEvent event = new ParseEvent();
+		if (!m._enabled && !event.isEnabled()) {
+			return;
+		}
+		final long nodes = ExpressionCache.countNodes(tree);
+		if (m._enabled) {
+			m._parseNanos.record(nanos);
+			m._inputLength.record(inputLength);
+			m._treeNodes.record(nodes);
+			m._lastParseNanos = nanos;
+			m._lastInputLength = inputLength;
+			m._lastTreeNodes = nodes;
+		}
+		if (event.shouldCommit()) {
+			event.inputLength = inputLength;
+			event.nodes = nodes;
+			event.parseTime = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Reports a differentiation.
+	 * @param tree the differentiated expression
+	 * @param derivative its derivative
+	 * @param nanos the time differentiation took
+	 */
+	static void differentiated (Expression tree, Expression derivative, long nanos) {
+		final Metrics m = INSTANCE;
+		final DifferentiateEvent event = new DifferentiateEvent();
+		if (!m._enabled && !event.isEnabled()) {
+			return;
+		}
+		final long derivativeNodes = ExpressionCache.countNodes(derivative);
+		if (m._enabled) {
+			m._derivativeNodes.record(derivativeNodes);
+		}
+		if (event.shouldCommit()) {
+			event.nodes = ExpressionCache.countNodes(tree);
+			event.derivativeNodes = derivativeNodes;
+			event.differentiateTime = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Reports the sampling of one plot.
+	 * @param functions the number of functions plotted
+	 * @param samples the number of points in the sampled curves
+	 * @param evaluations the number of evaluations spent; points served from caches cost none
+	 * @param nanos the time sampling took
+	 */
+	static void plotted (int functions, long samples, long evaluations, long nanos) {
+		final Metrics m = INSTANCE;
+		final PlotEvent event = new PlotEvent();
+		if (!m._enabled && !event.isEnabled()) {
+			return;
+		}
+		if (m._enabled) {
+			m._sampleNanos.record(nanos);
+			m._samplesPerPlot.record(samples);
+			m._evaluationsPerPlot.record(evaluations);
+			m._evaluations.add(evaluations);
+			m._evaluationNanos.add(nanos);
+			m._lastSampleNanos = nanos;
+			m._lastSamples = samples;
+			m._lastEvaluations = evaluations;
+		}
+		if (event.shouldCommit()) {
+			event.functions = functions;
+			event.samples = samples;
+			event.evaluations = evaluations;
+			event.evaluationsPerSecond = nanos == 0 ? 0 : evaluations * 1e9 / nanos;
+			event.sampleTime = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Reports a render.
+	 * @param curves the number of curves drawn
+	 * @param points the number of line points drawn
+	 * @param nanos the time drawing took
+	 */
+	static void rendered (int curves, long points, long nanos) {
+		final Metrics m = INSTANCE;
+		final RenderEvent event = new RenderEvent();
+		if (!m._enabled && !event.isEnabled()) {
+			return;
+		}
+		if (m._enabled) {
+			m._renderNanos.record(nanos);
+			m._lastRenderNanos = nanos;
+			m._lastRenderPoints = points;
+		}
+		if (event.shouldCommit()) {
+			event.curves = curves;
+			event.points = points;
+			event.renderTime = nanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	public boolean isEnabled () {
+		return _enabled;
+	}
+
+	@Override
+	public void setEnabled (boolean enabled) {
+		_enabled = enabled;
+	}
+
+	@Override
+	public Histogram getParseNanos () {
+		return _parseNanos;
+	}
+
+	@Override
+	public Histogram getInputLength () {
+		return _inputLength;
+	}
+
+	@Override
+	public Histogram getTreeNodes () {
+		return _treeNodes;
+	}
+
+	@Override
+	public Histogram getDerivativeNodes () {
+		return _derivativeNodes;
+	}
+
+	@Override
+	public Histogram getSampleNanos () {
+		return _sampleNanos;
+	}
+
+	@Override
+	public Histogram getSamplesPerPlot () {
+		return _samplesPerPlot;
+	}
+
+	@Override
+	public Histogram getEvaluationsPerPlot () {
+		return _evaluationsPerPlot;
+	}
+
+	@Override
+	public Histogram getRenderNanos () {
+		return _renderNanos;
+	}
+
+	@Override
+	public double getEvaluationsPerSecond () {
+		final long nanos = _evaluationNanos.sum();
+		return nanos == 0 ? 0 : _evaluations.sum() * 1e9 / nanos;
+	}
+
+	@Override
+	public String getLastPlot () {
+		final StringBuilder s = new StringBuilder();
+		if (_lastParseNanos >= 0) {
+			s.append(String.format("parse   %8.3f ms  %d chars, %d nodes%n", _lastParseNanos / 1e6, _lastInputLength, _lastTreeNodes));
+		}
+		if (_lastSampleNanos >= 0) {
+			final double rate = _lastSampleNanos == 0 ? 0 : _lastEvaluations * 1e3 / _lastSampleNanos;
+			s.append(String.format("sample  %8.3f ms  %d points, %d evaluations (%.1f M/s)%n",
+					_lastSampleNanos / 1e6, _lastSamples, _lastEvaluations, rate));
+		}
+		if (_lastRenderNanos >= 0) {
+			s.append(String.format("render  %8.3f ms  %d points%n", _lastRenderNanos / 1e6, _lastRenderPoints));
+		}
+		return s.toString();
+	}
+
+	@Override
+	public void reset () {
+		for (Histogram h : new Histogram[] { _parseNanos, _inputLength, _treeNodes, _derivativeNodes, _sampleNanos,
+				_samplesPerPlot, _evaluationsPerPlot, _renderNanos }) {
+			h.reset();
+		}
+		_evaluations.reset();
+		_evaluationNanos.reset();
+		_lastParseNanos = _lastSampleNanos = _lastRenderNanos = -1;
+	}
+}
@@ -0,0 +1,48 @@
+package application;
+
+/**
+ * Management interface of Metrics, registered as application:type=Metrics. Times are in
+ * nanoseconds; each histogram reports its count, mean, maximum and percentiles.
+ */
+public interface MetricsMXBean {
+	boolean isEnabled ();
+
+	/**
+	 * Turns collection on or off. JFR events are controlled by the recording settings instead.
+	 * @param enabled whether to collect
+	 */
+	void setEnabled (boolean enabled);
+
+	Metrics.Histogram getParseNanos ();
+
+	Metrics.Histogram getInputLength ();
+
+	Metrics.Histogram getTreeNodes ();
+
+	Metrics.Histogram getDerivativeNodes ();
+
+	Metrics.Histogram getSampleNanos ();
+
+	Metrics.Histogram getSamplesPerPlot ();
+
+	Metrics.Histogram getEvaluationsPerPlot ();
+
+	Metrics.Histogram getRenderNanos ();
+
+	/**
+	 * Getter for the sampling throughput since the last reset
+	 * @return expression evaluations per second of sampling time
+	 */
+	double getEvaluationsPerSecond ();
+
+	/**
+	 * Getter for the timings of the last parse, plot and render
+	 * @return one line per stage
+	 */
+	String getLastPlot ();
+
+	/**
+	 * Clears every histogram and the last plot.
+	 */
+	void reset ();
+}
@@ -0,0 +1,264 @@
+package application;
+
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates a compiled expression over very large x-ranges or x-arrays on a ForkJoinPool. The
+ * range is split in halves until a chunk is at most the threshold; each chunk runs on its own
+ * CompiledExpression.Evaluator, so no evaluator is shared between threads and nothing
+ * is synchronized. Results go to a preallocated array, a direct (off-heap) DoubleBuffer, or
+ * nowhere, and the min, max and non-finite count are reduced in the same pass.
+ * <p>
+ * Chunks write disjoint index ranges and do not allocate per value, so throughput is bounded
+ * by the core count and memory bandwidth rather than by coordination.
+ * <p>
+ * A sampler that created its own pool shuts it down on close(); a pool passed in is left to
+ * its owner.
+ */
+public class ParallelSampler implements AutoCloseable {
+	/** Default largest chunk evaluated without further splitting. */
+	public static final int DEFAULT_THRESHOLD = 1 << 15;
+
+	private final ForkJoinPool _pool;
+	private final int _threshold;
+	private final boolean _ownsPool;
+
+	/**
+	 * Uses the common pool and the default threshold.
+	 */
+	public ParallelSampler () {
+		this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Creates a pool of its own, which close() shuts down.
+	 * @param parallelism the number of worker threads of a new pool
+	 * @param threshold the largest chunk evaluated without further splitting
+	 */
+	public ParallelSampler (int parallelism, int threshold) {
+		this(new ForkJoinPool(parallelism), threshold, true);
+	}
+
+	/**
+	 * @param pool the pool to run on; close() leaves it running
+	 * @param threshold the largest chunk evaluated without further splitting
+	 */
+	public ParallelSampler (ForkJoinPool pool, int threshold) {
+		this(pool, threshold, false);
+	}
+
+	private ParallelSampler (ForkJoinPool pool, int threshold, boolean ownsPool) {
+		if (threshold < 1) {
+			if (ownsPool) {
+				pool.shutdown();
+			}
+			throw new IllegalArgumentException("threshold must be positive: " + threshold);
+		}
+		_pool = pool;
+		_threshold = threshold;
+		_ownsPool = ownsPool;
+	}
+
+	public int getParallelism () {
+		return _pool.getParallelism();
+	}
+
+	public int getThreshold () {
+		return _threshold;
+	}
+
+	/**
+	 * Shuts down the pool if this sampler created it. Work already submitted still completes.
+	 */
+	@Override
+	public void close () {
+		if (_ownsPool) {
+			_pool.shutdown();
+		}
+	}
+
+	/**
+	 * Evaluates f at every x in xs.
+	 * @param f the expression to evaluate
+	 * @param xs the values of the independent variable x
+	 * @param out receives f(xs[i]) at index i; at least as long as xs
+	 * @return the aggregates over all results
+	 */
+	public Summary evaluate (CompiledExpression f, double[] xs, double[] out) {
+		if (out.length < xs.length) {
+			throw new IllegalArgumentException("Output holds " + out.length + " values, need " + xs.length);
+		}
+		return evaluate(f, xs, out, 0, xs.length);
+	}
+
+	/**
+	 * Evaluates f at xs[offset] through xs[offset + length - 1].
+	 * @param f the expression to evaluate
+	 * @param xs the values of the independent variable x
+	 * @param out receives f(xs[i]) at index i
+	 * @param offset the first index to evaluate
+	 * @param length the number of values to evaluate
+	 * @return the aggregates over the evaluated results
+	 */
+	public Summary evaluate (CompiledExpression f, double[] xs, double[] out, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > Math.min(xs.length, out.length)) {
+			throw new IndexOutOfBoundsException("Range [" + offset + ", " + (offset + length) + ") does not fit "
+					+ xs.length + " inputs and " + out.length + " outputs");
+		}
+		return _pool.invoke(new Chunk(f, xs, 0, 0, length, out, null, offset, offset + length));
+	}
+
+	/**
+	 * Evaluates f at count evenly spaced x from minX to maxX inclusive.
+	 * @param f the expression to evaluate
+	 * @param minX the first x
+	 * @param maxX the last x
+	 * @param out receives f at the i-th x at index i; its length is the count
+	 * @return the aggregates over all results
+	 */
+	public Summary evaluate (CompiledExpression f, double minX, double maxX, double[] out) {
+		return _pool.invoke(new Chunk(f, null, minX, maxX, out.length, out, null, 0, out.length));
+	}
+
+	/**
+	 * Evaluates f at evenly spaced x from minX to maxX inclusive, writing to a buffer by absolute
+	 * index so its position is unchanged. A direct buffer keeps large outputs off the heap.
+	 * @param f the expression to evaluate
+	 * @param minX the first x
+	 * @param maxX the last x
+	 * @param out receives f at the i-th x at index i; its capacity is the count
+	 * @return the aggregates over all results
+	 */
+	public Summary evaluate (CompiledExpression f, double minX, double maxX, DoubleBuffer out) {
+		return _pool.invoke(new Chunk(f, null, minX, maxX, out.capacity(), null, out, 0, out.capacity()));
+	}
+
+	/**
+	 * Evaluates f at count evenly spaced x from minX to maxX inclusive and keeps only the aggregates.
+	 * @param f the expression to evaluate
+	 * @param minX the first x
+	 * @param maxX the last x
+	 * @param count the number of points
+	 * @return the aggregates over all results
+	 */
+	public Summary summarize (CompiledExpression f, double minX, double maxX, long count) {
+		return _pool.invoke(new Chunk(f, null, minX, maxX, count, null, null, 0, count));
+	}
+
+	/**
+	 * Evaluates the index range [from, to), splitting it while it is above the threshold.
+	 */
+	private final class Chunk extends RecursiveTask<Summary> {
+		private static final long serialVersionUID = 1L;
+		private final CompiledExpression f;
+		private final double[] xs, array;
+		private final double minX, maxX;
+		private final long count, from, to;
+		private final DoubleBuffer buffer;
+
+		Chunk (CompiledExpression f, double[] xs, double minX, double maxX, long count, double[] array, DoubleBuffer buffer, long from, long to) {
+			this.f = f;
+			this.xs = xs;
+			this.minX = minX;
+			this.maxX = maxX;
+			this.count = count;
+			this.array = array;
+			this.buffer = buffer;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Summary compute () {
+			if (to - from > _threshold) {
+				final long middle = (from + to) >>> 1;
+				final Chunk left = new Chunk(f, xs, minX, maxX, count, array, buffer, from, middle);
+				left.fork();
+				final Summary right = new Chunk(f, xs, minX, maxX, count, array, buffer, middle, to).compute();
+				return left.join().combine(right);
+			}
+			final CompiledExpression.Evaluator evaluator = f.newEvaluator();
+			final Summary summary = new Summary();
+			if (xs != null && array != null) {
+				final int start = (int) from, length = (int) (to - from);
+				evaluator.evaluate(xs, array, start, length);
+				summary.add(array, start, length);
+				return summary;
+			}
+			final double[] x = new double[CompiledExpression.BLOCK], y = new double[CompiledExpression.BLOCK];
+			final long intervals = Math.max(1, count - 1);
+			for (long block = from; block < to; block += x.length) {
+				final int n = (int) Math.min(x.length, to - block);
+				for (int i = 0; i < n; i++) {
+					x[i] = minX + (maxX - minX) * (block + i) / intervals;
+				}
+				evaluator.evaluate(x, y, 0, n);
+				summary.add(y, 0, n);
+				if (array != null) {
+					System.arraycopy(y, 0, array, (int) block, n);
+				} else if (buffer != null) {
+					buffer.put((int) block, y, 0, n);
+				}
+			}
+			return summary;
+		}
+	}
+
+	/**
+	 * Aggregates over evaluated values. Min and max are over finite values only and are NaN
+	 * when there are none.
+	 */
+	public static final class Summary {
+		private long _count, _nonFinite;
+		private double _min = Double.POSITIVE_INFINITY, _max = Double.NEGATIVE_INFINITY;
+
+		void add (double[] values, int offset, int length) {
+			double min = _min, max = _max;
+			long nonFinite = 0;
+			for (int i = offset; i < offset + length; i++) {
+				final double v = values[i];
+				if (Double.isFinite(v)) {
+					min = Math.min(min, v);
+					max = Math.max(max, v);
+				} else {
+					nonFinite++;
+				}
+			}
+			_min = min;
+			_max = max;
+			_nonFinite += nonFinite;
+			_count += length;
+		}
+
+		Summary combine (Summary other) {
+			_count += other._count;
+			_nonFinite += other._nonFinite;
+			_min = Math.min(_min, other._min);
+			_max = Math.max(_max, other._max);
+			return this;
+		}
+
+		public long getCount () {
+			return _count;
+		}
+
+		public long getNonFiniteCount () {
+			return _nonFinite;
+		}
+
+		public double getMin () {
+			return _count > _nonFinite ? _min : Double.NaN;
+		}
+
+		public double getMax () {
+			return _count > _nonFinite ? _max : Double.NaN;
+		}
+
+		@Override
+		public String toString () {
+			return "Summary[count=" + _count + ", nonFinite=" + _nonFinite + ", min=" + getMin() + ", max=" + getMax() + "]";
+		}
+	}
+}
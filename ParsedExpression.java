@@ -1,18 +1,38 @@
 package application;
 
+import static application.ExpressionCompiler.*;
+
 import java.util.ArrayList;
 import java.util.List;
 
-
+/**
+ * Tree node produced by the parsers. A node's behaviour depends only on its name and children:
+ * evaluate and differentiate never read the parent link or modify the tree (differentiate works
+ * on a deep copy), so a finished tree can be shared by any number of threads.
+ * <p>
+ * The name is resolved once, when the node is created, to an ExpressionCompiler opcode (a
+ * literal's value is parsed then too), so evaluate and differentiate dispatch with one switch.
+ * Functions take their behaviour from their FunctionRegistry entry.
+ */
 public class ParsedExpression implements Expression{
 	private List<Expression> _children;
 	private Expression _parent;
 	private String _name;
+	private final byte _op;
+	private final double _value;
 	
 	public ParsedExpression(String name) {
 		_parent = null;
 		_children = new ArrayList<Expression>();
 		_name = name;
+		byte op = ExpressionCompiler.resolve(name);
+		double value = 0;
+		if (op == OP_PARAM && isNumber(name)) {
+			op = OP_CONST;
+			value = Double.parseDouble(name);
+		}
+		_op = op;
+		_value = value;
 	}
 	
 	/**
@@ -119,47 +139,39 @@ public class ParsedExpression implements Expression{
 	 */
 	@Override
 	public double evaluate(double x) {
-		if (isNumber(_name)) {
-			return Double.parseDouble(_name);
-		}
-		if (_name.equals("x")) {
+		switch (_op) {
+		case OP_CONST:
+			return _value;
+		case OP_X:
 			return x;
-		}
-		if (_name.equals("+")) {
-			if (hasParent() && _parent.getName().equals("-")) {
-				return _children.get(0).evaluate(x) - _children.get(1).evaluate(x);
-			}
+		case OP_ADD:
 			return _children.get(0).evaluate(x) + _children.get(1).evaluate(x);
-		}
-		if (_name.equals("-")) {
-			if (hasParent() && _parent.getName().equals("-")) {
-				return _children.get(0).evaluate(x) + _children.get(1).evaluate(x);
-			}
+		case OP_SUB:
 			return _children.get(0).evaluate(x) - _children.get(1).evaluate(x);
-		}
-		if (_name.equals("*")) {
-			if (hasParent() && _parent.getName().equals("/")) {
-				return _children.get(0).evaluate(x) / _children.get(1).evaluate(x);
-			}
+		case OP_MUL:
 			return _children.get(0).evaluate(x) * _children.get(1).evaluate(x);
-		}
-		if (_name.equals("/")) {
+		case OP_DIV:
 			return _children.get(0).evaluate(x) / _children.get(1).evaluate(x);
-		}
-		if (_name.equals("^")) {
+		case OP_POW:
 			return Math.pow(_children.get(0).evaluate(x), _children.get(1).evaluate(x));
+		case OP_GROUP:
+			return _children.get(0).evaluate(x);
+		case OP_PARAM:
+			return 0;
+		default:
+			return FunctionRegistry.get(_op).apply(_children.get(0).evaluate(x)); //functions
 		}
-		if (_name.equals("log")) {
-			if (_children != null) {
-				return Math.log(_children.get(0).evaluate(x));
-			}
-		}
-		if (_name.equals("()")) {
-			if (_children != null) {
-				return _children.get(0).evaluate(x);
-			}
-		}
-		return 0;
+	}
+
+	/**
+	 * Evaluates the expression over a whole array of x-values by compiling the tree once
+	 * and running the compiled program column by column
+	 * @param xs the x-values of the expression
+	 * @param out receives the y-value at each x-value
+	 */
+	@Override
+	public void evaluate(double[] xs, double[] out) {
+		ExpressionCompiler.compile(this).evaluate(xs, out);
 	}
 
 	/**
@@ -226,7 +238,7 @@ public class ParsedExpression implements Expression{
 	/**
 	 * Function to parse through and evaluate the expression
 	 * @param d is the deepCopy of the expression tree
-	 * @param t is type of exponential, true = base is #, false = exponential is #
+	 * @param t is type of exponential, true = base is free of x, false = exponent is free of x
 	 * @return expression after differentiating exponentials
 	 */
 	public Expression diffExpo (ParsedExpression d, Boolean type) {
@@ -263,19 +275,55 @@ public class ParsedExpression implements Expression{
     		return mult2;
     	}
 	}
-	
+
 	/**
-	 * Function to parse through and evaluate the expression
+	 * Differentiates a power whose base and exponent both depend on x: g^h * (h' * log(g) + h * g' / g)
 	 * @param d is the deepCopy of the expression tree
-	 * @return expression after differentiating logs
+	 * @return expression after differentiating the power
 	 */
-	public Expression diffLog (ParsedExpression d) {
+	public Expression diffGeneralExpo (ParsedExpression d) {
+		Expression g = d.getChildren().get(0); //g
+		Expression h = d.getChildren().get(1); //h
+		Expression gP = g.differentiate(); //g'
+		Expression hP = h.differentiate(); //h'
+		ParsedExpression expo = new ParsedExpression ("^");
+		ParsedExpression log = new ParsedExpression ("log");
+		ParsedExpression mult1 = new ParsedExpression ("*");
+		ParsedExpression mult2 = new ParsedExpression ("*");
+		ParsedExpression mult3 = new ParsedExpression ("*");
 		ParsedExpression divide = new ParsedExpression ("/");
-    	Expression gP = d.getChildren().get(0).differentiate(); //g'
-    	Expression g = d.getChildren().get(0); //g
-    	divide.addSubexpression(gP);
-    	divide.addSubexpression(g);
-    	return divide;
+		ParsedExpression add = new ParsedExpression ("+");
+		expo.addSubexpression(g.deepCopy());
+		expo.addSubexpression(h.deepCopy());
+		log.addSubexpression(g.deepCopy());
+		mult1.addSubexpression(hP);
+		mult1.addSubexpression(log);
+		mult2.addSubexpression(h);
+		mult2.addSubexpression(gP);
+		divide.addSubexpression(mult2);
+		divide.addSubexpression(g);
+		add.addSubexpression(mult1);
+		add.addSubexpression(divide);
+		mult3.addSubexpression(expo);
+		mult3.addSubexpression(add);
+		return mult3;
+	}
+
+	/**
+	 * Checks whether an expression depends on x; parameters and literals do not
+	 * @param e the expression to check
+	 * @return true if x occurs anywhere in e
+	 */
+	public static boolean dependsOnX (Expression e) {
+		if (ExpressionCompiler.resolve(e.getName()) == OP_X) {
+			return true;
+		}
+		for (Expression child : e.getChildren()) {
+			if (dependsOnX(child)) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -285,32 +333,33 @@ public class ParsedExpression implements Expression{
 	@Override
 	public Expression differentiate() {
 		ParsedExpression derivative = (ParsedExpression) deepCopy();
-	    if (derivative.getName().equals("x")) {
-	        return new ParsedExpression("1");
-	    }
-	    if (derivative.getName().equals("+")) {
-	        return diffAddMinus(derivative, true);
-	    }
-	    if (derivative.getName().equals("-")) {
-	    	return diffAddMinus(derivative, false);
-	    }
-	    if (derivative.getName().equals("*")) {
-	    	return diffMultDiv(derivative, true);
-	    }
-	    if (derivative.getName().equals("/")) {
-	    	return diffMultDiv(derivative, false);
-	    }
-	    if (derivative.getName().equals("^")) {
-	    	if (isNumber(derivative.getChildren().get(0).getName())) {
-	    		return diffExpo(derivative, true);
-	    	}
-	    	if (isNumber(derivative.getChildren().get(1).getName())) {
-	    		return diffExpo(derivative, false);
-	    	}
-	    }
-	    if (derivative.getName().equals("log")) {
-	    	return diffLog(derivative);
-	    }
-	    return new ParsedExpression("0");
+		switch (_op) {
+		case OP_X:
+			return new ParsedExpression("1");
+		case OP_ADD:
+			return diffAddMinus(derivative, true);
+		case OP_SUB:
+			return diffAddMinus(derivative, false);
+		case OP_MUL:
+			return diffMultDiv(derivative, true);
+		case OP_DIV:
+			return diffMultDiv(derivative, false);
+		case OP_POW:
+			if (!dependsOnX(derivative.getChildren().get(1))) {
+				return diffExpo(derivative, false);
+			}
+			if (!dependsOnX(derivative.getChildren().get(0))) {
+				return diffExpo(derivative, true);
+			}
+			return diffGeneralExpo(derivative);
+		case OP_GROUP:
+			return derivative.getChildren().get(0).differentiate();
+		case OP_CONST:
+		case OP_PARAM:
+			return new ParsedExpression("0");
+		default:
+			final Expression g = derivative.getChildren().get(0); //g
+			return FunctionRegistry.get(_op).differentiate(g, g.differentiate()); //chain rule
+		}
 	}
-}
\ No newline at end of file
+}
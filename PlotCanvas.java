@@ -0,0 +1,358 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.StrokeLineCap;
+import javafx.scene.shape.StrokeLineJoin;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * Draws sampled curves, a grid and the axes onto a Canvas that fills the pane. Curves are drawn
+ * straight from their primitive x/y arrays through an M4Decimator, so the number of line points
+ * per segment is bounded by the pane width rather than by the sample count. Roots and extrema
+ * can be marked with dots and poles with dashed lines, and the area between a curve and the
+ * x-axis can be shaded over an x-range. Nothing is redrawn until redraw() is called or the pane
+ * is resized.
+ */
+public class PlotCanvas extends Pane {
+	private static final double MARKER_RADIUS = 4;
+	private static final double POLE_DASH = 4;
+	/** Opacity of a shaded area relative to its curve's color. */
+	private static final double SHADING_OPACITY = 0.25;
+	private static final double OVERLAY_FONT_SIZE = 11;
+	private static final Color OVERLAY_BACKGROUND = Color.gray(1, 0.8);
+	private static final Color BACKGROUND = Color.gray(PlotStyle.BACKGROUND_GRAY), GRID = Color.gray(PlotStyle.GRID_GRAY),
+			AXIS = Color.gray(PlotStyle.AXIS_GRAY), LABEL = Color.gray(PlotStyle.LABEL_GRAY);
+
+	private final Canvas _canvas = new Canvas();
+	private final double _gridInterval;
+	private final List<SampledCurve> _curves = new ArrayList<SampledCurve>();
+	private final List<Color> _colors = new ArrayList<Color>();
+	private final List<FeatureFinder.Feature> _markers = new ArrayList<FeatureFinder.Feature>();
+	private final List<Color> _markerColors = new ArrayList<Color>();
+	private final List<SampledCurve> _shadings = new ArrayList<SampledCurve>();
+	private final List<double[]> _shadingRanges = new ArrayList<double[]>();
+	private final List<Color> _shadingColors = new ArrayList<Color>();
+	private String _overlay;
+	private double _minX, _maxX, _minY, _maxY;
+
+	/**
+	 * @param minX the initial left edge of the view
+	 * @param maxX the initial right edge of the view
+	 * @param minY the initial bottom edge of the view
+	 * @param maxY the initial top edge of the view
+	 * @param gridInterval the spacing of the grid lines
+	 */
+	public PlotCanvas (double minX, double maxX, double minY, double maxY, double gridInterval) {
+		_minX = minX;
+		_maxX = maxX;
+		_minY = minY;
+		_maxY = maxY;
+		_gridInterval = gridInterval;
+		getChildren().add(_canvas);
+	}
+
+	public double getMinX () {
+		return _minX;
+	}
+
+	public double getMaxX () {
+		return _maxX;
+	}
+
+	public double getMinY () {
+		return _minY;
+	}
+
+	public double getMaxY () {
+		return _maxY;
+	}
+
+	/**
+	 * Getter for the plot width in pixels
+	 * @return the width, at least 1
+	 */
+	public int getPlotWidth () {
+		return Math.max(1, (int) _canvas.getWidth());
+	}
+
+	/**
+	 * Getter for the plot height in pixels
+	 * @return the height, at least 1
+	 */
+	public int getPlotHeight () {
+		return Math.max(1, (int) _canvas.getHeight());
+	}
+
+	/**
+	 * Scales the view about its center.
+	 * @param factor the ratio of the new range to the old one; above 1 zooms out
+	 */
+	public void zoom (double factor) {
+		final double deltaX = (_maxX - _minX) * (factor - 1) / 2;
+		final double deltaY = (_maxY - _minY) * (factor - 1) / 2;
+		_minX -= deltaX;
+		_maxX += deltaX;
+		_minY -= deltaY;
+		_maxY += deltaY;
+	}
+
+	/**
+	 * Shifts the view by a distance in pixels.
+	 * @param dx the horizontal distance in pixels; positive moves the view left
+	 * @param dy the vertical distance in pixels; positive moves the view up
+	 */
+	public void pan (double dx, double dy) {
+		final double shiftX = dx * (_maxX - _minX) / getPlotWidth();
+		final double shiftY = dy * (_maxY - _minY) / getPlotHeight();
+		_minX -= shiftX;
+		_maxX -= shiftX;
+		_minY += shiftY;
+		_maxY += shiftY;
+	}
+
+	/**
+	 * Removes every curve, marker and shaded area. The canvas keeps showing them until the next redraw.
+	 */
+	public void clearCurves () {
+		_curves.clear();
+		_colors.clear();
+		_markers.clear();
+		_markerColors.clear();
+		_shadings.clear();
+		_shadingRanges.clear();
+		_shadingColors.clear();
+	}
+
+	/**
+	 * Adds a curve to draw on the next redraw.
+	 * @param curve the sampled curve
+	 * @param color the color of the curve
+	 */
+	public void addCurve (SampledCurve curve, Color color) {
+		_curves.add(curve);
+		_colors.add(color);
+	}
+
+	/**
+	 * Adds markers to draw on the next redraw: a hollow dot on each root, a solid dot on each
+	 * extremum and a dashed vertical line through each pole.
+	 * @param features the features to mark
+	 * @param color the color of the markers
+	 */
+	public void addMarkers (List<FeatureFinder.Feature> features, Color color) {
+		for (FeatureFinder.Feature feature : features) {
+			_markers.add(feature);
+			_markerColors.add(color);
+		}
+	}
+
+	/**
+	 * Adds an area to shade on the next redraw: between the curve and the x-axis, from one x to
+	 * another, under the curve's other drawings.
+	 * @param curve the sampled curve
+	 * @param from the left end of the area
+	 * @param to the right end of the area
+	 * @param color the color of the curve; the area is drawn translucent
+	 */
+	public void addShading (SampledCurve curve, double from, double to, Color color) {
+		_shadings.add(curve);
+		_shadingRanges.add(new double[] { Math.min(from, to), Math.max(from, to) });
+		_shadingColors.add(color.deriveColor(0, 1, 1, SHADING_OPACITY));
+	}
+
+	@Override
+	protected void layoutChildren () {
+		final double width = Math.floor(getWidth()), height = Math.floor(getHeight());
+		if (width != _canvas.getWidth() || height != _canvas.getHeight()) {
+			_canvas.setWidth(width);
+			_canvas.setHeight(height);
+			redraw();
+		}
+	}
+
+	/**
+	 * Repaints the grid, the axes and every curve for the current view.
+	 */
+	public void redraw () {
+		final long start = System.nanoTime();
+		final GraphicsContext g = _canvas.getGraphicsContext2D();
+		final int width = getPlotWidth(), height = getPlotHeight();
+		g.setFill(BACKGROUND);
+		g.fillRect(0, 0, width, height);
+		drawGrid(g, width, height);
+		final M4Decimator decimator = new M4Decimator(_minX, _maxX, _minY, _maxY, width, height);
+		for (int c = 0; c < _shadings.size(); c++) {
+			g.setFill(_shadingColors.get(c));
+			drawShading(g, decimator, _shadings.get(c), _shadingRanges.get(c), width, height);
+		}
+		g.setLineWidth(PlotStyle.CURVE_WIDTH);
+		g.setLineCap(StrokeLineCap.ROUND);
+		g.setLineJoin(StrokeLineJoin.ROUND);
+		long points = 0;
+		for (int c = 0; c < _curves.size(); c++) {
+			final SampledCurve curve = _curves.get(c);
+			g.setStroke(_colors.get(c));
+			for (int s = 0; s < curve.getSegmentCount(); s++) {
+				final int n = decimator.decimate(curve.getXs(s), curve.getYs(s));
+				g.strokePolyline(decimator.getPixelXs(), decimator.getPixelYs(), n);
+				points += n;
+			}
+		}
+		drawMarkers(g, width, height);
+		if (_overlay != null) {
+			drawOverlay(g);
+		}
+		Metrics.rendered(_curves.size(), points, System.nanoTime() - start);
+	}
+
+	/**
+	 * Sets the text drawn in the top left corner over the plot, or removes it. Takes effect on the
+	 * next redraw.
+	 * @param overlay the lines to draw, null for none
+	 */
+	public void setOverlay (String overlay) {
+		_overlay = overlay == null || overlay.isEmpty() ? null : overlay;
+	}
+
+	private void drawOverlay (GraphicsContext g) {
+		final String[] lines = _overlay.split("\\R");
+		final double lineHeight = OVERLAY_FONT_SIZE + 3;
+		int columns = 0;
+		for (String line : lines) {
+			columns = Math.max(columns, line.length());
+		}
+		g.setFill(OVERLAY_BACKGROUND);
+		g.fillRect(4, 4, columns * OVERLAY_FONT_SIZE * 0.62 + 8, lines.length * lineHeight + 6);
+		g.setFill(Color.BLACK);
+		g.setFont(Font.font("Monospaced", OVERLAY_FONT_SIZE));
+		g.setTextAlign(TextAlignment.LEFT);
+		g.setTextBaseline(VPos.TOP);
+		for (int i = 0; i < lines.length; i++) {
+			g.fillText(lines[i], 8, 7 + i * lineHeight);
+		}
+	}
+
+	/**
+	 * Fills the area between each segment of a curve and the x-axis over [range[0], range[1]], as
+	 * a polygon through the decimated samples inside the range and the curve interpolated at its ends.
+	 */
+	private void drawShading (GraphicsContext g, M4Decimator decimator, SampledCurve curve, double[] range, int width, int height) {
+		final double xPerPixel = (_maxX - _minX) / width, yPerPixel = (_maxY - _minY) / height;
+		final double axis = pixel((_maxY - 0) / yPerPixel, height);
+		for (int s = 0; s < curve.getSegmentCount(); s++) {
+			final double[] xs = curve.getXs(s), ys = curve.getYs(s);
+			final double lo = Math.max(range[0], xs[0]), hi = Math.min(range[1], xs[xs.length - 1]);
+			if (!(lo < hi)) {
+				continue;
+			}
+			final int first = insertion(xs, lo), last = insertion(xs, hi);
+			final int n = decimator.decimate(xs, ys, first, last);
+			final double[] px = new double[n + 4], py = new double[n + 4];
+			px[0] = px[1] = pixel((lo - _minX) / xPerPixel, width);
+			py[0] = axis;
+			py[1] = pixel((_maxY - interpolate(xs, ys, lo)) / yPerPixel, height);
+			System.arraycopy(decimator.getPixelXs(), 0, px, 2, n);
+			System.arraycopy(decimator.getPixelYs(), 0, py, 2, n);
+			px[n + 2] = px[n + 3] = pixel((hi - _minX) / xPerPixel, width);
+			py[n + 2] = pixel((_maxY - interpolate(xs, ys, hi)) / yPerPixel, height);
+			py[n + 3] = axis;
+			g.fillPolygon(px, py, n + 4);
+		}
+	}
+
+	/** The first index whose x is above x; xs is increasing. */
+	private static int insertion (double[] xs, double x) {
+		int i = Arrays.binarySearch(xs, x);
+		if (i < 0) {
+			return -i - 1;
+		}
+		while (i < xs.length && xs[i] == x) {
+			i++;
+		}
+		return i;
+	}
+
+	/** The segment's line at x, which lies within its x-range. */
+	private static double interpolate (double[] xs, double[] ys, double x) {
+		final int i = Math.min(xs.length - 1, Math.max(1, insertion(xs, x)));
+		final double t = (x - xs[i - 1]) / (xs[i] - xs[i - 1]);
+		return Double.isNaN(t) ? ys[i] : ys[i - 1] + t * (ys[i] - ys[i - 1]);
+	}
+
+	private static double pixel (double pixel, int extent) {
+		return Math.max(-M4Decimator.CLAMP, Math.min(extent + M4Decimator.CLAMP, pixel));
+	}
+
+	private void drawMarkers (GraphicsContext g, int width, int height) {
+		final double xPerPixel = (_maxX - _minX) / width, yPerPixel = (_maxY - _minY) / height;
+		g.setLineWidth(1.5);
+		for (int m = 0; m < _markers.size(); m++) {
+			final FeatureFinder.Feature feature = _markers.get(m);
+			final Color color = _markerColors.get(m);
+			final double px = (feature.getX() - _minX) / xPerPixel;
+			if (feature.getKind() == FeatureFinder.Feature.POLE) {
+				g.setStroke(color);
+				g.setLineDashes(POLE_DASH, POLE_DASH);
+				g.strokeLine(Math.round(px) + 0.5, 0, Math.round(px) + 0.5, height);
+				g.setLineDashes();
+				continue;
+			}
+			final double py = (_maxY - feature.getY()) / yPerPixel;
+			if (py < -MARKER_RADIUS || py > height + MARKER_RADIUS) {
+				continue;
+			}
+			final double d = 2 * MARKER_RADIUS;
+			g.setFill(feature.getKind() == FeatureFinder.Feature.ROOT ? BACKGROUND : color);
+			g.fillOval(px - MARKER_RADIUS, py - MARKER_RADIUS, d, d);
+			g.setStroke(color);
+			g.strokeOval(px - MARKER_RADIUS, py - MARKER_RADIUS, d, d);
+		}
+	}
+
+	private void drawGrid (GraphicsContext g, int width, int height) {
+		final double xPerPixel = (_maxX - _minX) / width, yPerPixel = (_maxY - _minY) / height;
+		final double stepX = PlotStyle.gridStep(_gridInterval, xPerPixel), stepY = PlotStyle.gridStep(_gridInterval, yPerPixel);
+		final double axisX = Math.round((0 - _minX) / xPerPixel) + 0.5;
+		final double axisY = Math.round((_maxY - 0) / yPerPixel) + 0.5;
+		final double labelY = Math.max(0, Math.min(height - 14, axisY + 2));
+		final double labelX = Math.max(2, Math.min(width - 2, axisX - 3));
+		g.setLineWidth(1);
+		g.setFont(Font.font(PlotStyle.LABEL_FONT_SIZE));
+		g.setTextAlign(TextAlignment.CENTER);
+		g.setTextBaseline(VPos.TOP);
+		for (long k = (long) Math.ceil(_minX / stepX); k * stepX <= _maxX; k++) {
+			final double x = k * stepX;
+			final double px = Math.round((x - _minX) / xPerPixel) + 0.5;
+			g.setStroke(GRID);
+			g.strokeLine(px, 0, px, height);
+			if (k != 0) {
+				g.setFill(LABEL);
+				g.fillText(PlotStyle.format(x), px, labelY);
+			}
+		}
+		g.setTextAlign(axisX - 3 < 2 ? TextAlignment.LEFT : TextAlignment.RIGHT);
+		g.setTextBaseline(VPos.CENTER);
+		for (long k = (long) Math.ceil(_minY / stepY); k * stepY <= _maxY; k++) {
+			final double y = k * stepY;
+			final double py = Math.round((_maxY - y) / yPerPixel) + 0.5;
+			g.setStroke(GRID);
+			g.strokeLine(0, py, width, py);
+			if (k != 0) {
+				g.setFill(LABEL);
+				g.fillText(PlotStyle.format(y), labelX, py);
+			}
+		}
+		g.setStroke(AXIS);
+		g.strokeLine(axisX, 0, axisX, height);
+		g.strokeLine(0, axisY, width, axisY);
+	}
+}
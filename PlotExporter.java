@@ -0,0 +1,527 @@
+package application;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Headless plot export: samples expressions over a viewport and rasterizes them with Java2D
+ * straight into PNG files, drawing the grid, axes and labels the way PlotCanvas does. Nothing here
+ * touches JavaFX, so it runs without a display (-Djava.awt.headless=true).
+ * <p>
+ * Memory does not grow with the sample count or the image size. Samples are evaluated CHUNK at a
+ * time on a uniform grid and each chunk goes through an M4Decimator into the curve's outline, which
+ * holds at most a few points per pixel column. The image is then drawn BAND_PIXELS at a time, one
+ * horizontal band after the other, as the PNG writer asks for rows, so a 16k x 16k image never
+ * holds more than one band of pixels. Plots in a batch render in parallel, one per core.
+ * <p>
+ * Each non-blank spec line that does not start with # reads
+ * <pre>file width height minX maxX minY maxY samples expression[; expression...]</pre>
+ * where the expressions are the rest of the line, drawn in the PlotStyle curve colors in turn.
+ */
+public class PlotExporter {
+	/** Samples evaluated per step. */
+	static final int CHUNK = 1 << 16;
+	/** Pixels drawn per band; bands are full-width, so this bounds the raster memory. */
+	static final int BAND_PIXELS = 1 << 22;
+	/** Largest width or height of an image. */
+	static final int MAX_SIZE = 1 << 14;
+	static final double DEFAULT_GRID_INTERVAL = 5;
+	/** A step of more than this many image heights between samples is checked for a pole. */
+	private static final double JUMP_HEIGHTS = 1;
+	/** A step is a jump if one half of it holds more than this fraction of it, as in AdaptiveSampler. */
+	private static final double JUMP_RATIO = 0.9;
+
+	/**
+	 * One image to render.
+	 */
+	static final class Spec {
+		final Path file;
+		final int width, height;
+		final double minX, maxX, minY, maxY;
+		final long samples;
+		final List<CompiledExpression> expressions;
+
+		Spec (Path file, int width, int height, double minX, double maxX, double minY, double maxY, long samples,
+				List<CompiledExpression> expressions) {
+			this.file = file;
+			this.width = width;
+			this.height = height;
+			this.minX = minX;
+			this.maxX = maxX;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.samples = samples;
+			this.expressions = expressions;
+		}
+
+		double x (long i) {
+			return minX + (maxX - minX) * i / Math.max(1, samples - 1);
+		}
+	}
+
+	private final ExpressionParser _parser;
+	private final ForkJoinPool _pool;
+	private final double _gridInterval;
+
+	/**
+	 * @param parser parses the expressions of a spec file
+	 * @param pool runs the plots of a batch
+	 * @param gridInterval the spacing of the grid lines, before thinning
+	 */
+	public PlotExporter (ExpressionParser parser, ForkJoinPool pool, double gridInterval) {
+		_parser = parser;
+		_pool = pool;
+		_gridInterval = gridInterval;
+	}
+
+	public PlotExporter () {
+		this(new SimpleExpressionParser(), ForkJoinPool.commonPool(), DEFAULT_GRID_INTERVAL);
+	}
+
+	/**
+	 * Reads a spec file.
+	 * @param file the spec file; relative image paths are resolved against its directory
+	 * @return the plots it lists, in order
+	 * @throws IOException if the file cannot be read
+	 * @throws ExpressionParseException if a line is malformed; the message names the line
+	 */
+	List<Spec> readSpecs (Path file) throws IOException, ExpressionParseException {
+		final List<Spec> specs = new ArrayList<Spec>();
+		final Path directory = file.toAbsolutePath().getParent();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			for (int number = 1; (line = reader.readLine()) != null; number++) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] fields = line.split("\\s+", 9);
+				if (fields.length < 9) {
+					throw new ExpressionParseException("Line " + number + ": expected file width height minX maxX minY maxY samples expression");
+				}
+				try {
+					final int width = Integer.parseInt(fields[1]), height = Integer.parseInt(fields[2]);
+					final long samples = Long.parseLong(fields[7]);
+					if (width < 1 || height < 1 || width > MAX_SIZE || height > MAX_SIZE) {
+						throw new ExpressionParseException("Line " + number + ": width and height must be from 1 to " + MAX_SIZE);
+					}
+					if (samples < 2) {
+						throw new ExpressionParseException("Line " + number + ": samples must be at least 2");
+					}
+					final List<CompiledExpression> expressions = new ArrayList<CompiledExpression>();
+					for (String text : fields[8].split(";")) {
+						expressions.add(ExpressionCompiler.compile(_parser.parse(text)));
+					}
+					specs.add(new Spec(directory.resolve(fields[0]), width, height, Double.parseDouble(fields[3]),
+							Double.parseDouble(fields[4]), Double.parseDouble(fields[5]), Double.parseDouble(fields[6]), samples,
+							expressions));
+				} catch (NumberFormatException nfe) {
+					throw new ExpressionParseException("Line " + number + ": " + nfe.getMessage());
+				} catch (ExpressionParseException epe) {
+					throw new ExpressionParseException("Line " + number + ": " + epe.getMessage(), epe.getPosition());
+				}
+			}
+		}
+		return specs;
+	}
+
+	/**
+	 * Renders every plot to its file, in parallel. Each plot is rendered by one thread, so the
+	 * pool's parallelism bounds the memory in use.
+	 * @param specs the plots to render
+	 * @throws IOException the first failure to write an image, after every plot has been tried
+	 */
+	void writeAll (List<Spec> specs) throws IOException {
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (Spec spec : specs) {
+			tasks.add(() -> {
+				write(spec);
+				return null;
+			});
+		}
+		IOException failure = null;
+		for (Future<Void> future : _pool.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof IOException) {
+					if (failure == null) {
+						failure = (IOException) ee.getCause();
+					}
+				} else if (ee.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) ee.getCause();
+				} else {
+					throw new IllegalStateException(ee.getCause());
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", ie);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Renders one plot to its PNG file, one band at a time.
+	 * @param spec the plot
+	 * @throws IOException if the file cannot be written
+	 */
+	void write (Spec spec) throws IOException {
+		if (!ImageIO.write(new BandedImage(spec, outline(spec)), "png", spec.file.toFile())) {
+			throw new IOException("No PNG writer");
+		}
+	}
+
+	/**
+	 * Renders one plot into memory. Only meant for images small enough to hold whole.
+	 * @param spec the plot
+	 * @return the image
+	 */
+	BufferedImage render (Spec spec) {
+		final BufferedImage image = new BufferedImage(spec.width, spec.height, BufferedImage.TYPE_INT_RGB);
+		draw(image, 0, spec, outline(spec));
+		return image;
+	}
+
+	/**
+	 * Samples every curve of a plot and decimates it to pixel coordinates.
+	 * @return one outline per curve
+	 */
+	private List<Path2D.Float> outline (Spec spec) {
+		final List<Path2D.Float> paths = new ArrayList<Path2D.Float>();
+		final M4Decimator decimator = new M4Decimator(spec.minX, spec.maxX, spec.minY, spec.maxY, spec.width, spec.height);
+		final double[] xs = new double[(int) Math.min(CHUNK, spec.samples)], ys = new double[xs.length];
+		final double jump = JUMP_HEIGHTS * (spec.maxY - spec.minY);
+		for (CompiledExpression expression : spec.expressions) {
+			final CompiledExpression.Evaluator evaluator = expression.newEvaluator();
+			final Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, 4 * spec.width);
+			boolean open = false;
+			double lastX = Double.NaN, lastY = Double.NaN;
+			for (long from = 0; from < spec.samples; from += xs.length) {
+				final int n = (int) Math.min(xs.length, spec.samples - from);
+				for (int i = 0; i < n; i++) {
+					xs[i] = spec.x(from + i);
+				}
+				evaluator.evaluate(xs, ys, 0, n);
+				int start = 0;
+				for (int i = 0; i <= n; i++) {
+					// A run of finite samples ends at a non-finite one, a pole or the end of the chunk
+					final boolean split = i < n && (!Double.isFinite(ys[i])
+							|| (i > 0 || open) && isJump(evaluator, i > 0 ? xs[i - 1] : lastX, i > 0 ? ys[i - 1] : lastY, xs[i], ys[i],
+									jump, spec));
+					if (i < n && !split) {
+						continue;
+					}
+					if (i > start) {
+						final int m = decimator.decimate(xs, ys, start, i);
+						final double[] px = decimator.getPixelXs(), py = decimator.getPixelYs();
+						for (int k = 0; k < m; k++) {
+							if (open) {
+								path.lineTo(px[k], py[k]);
+							} else {
+								path.moveTo(px[k], py[k]);
+								open = true;
+							}
+						}
+					}
+					if (i < n) {
+						open = false;
+						start = Double.isFinite(ys[i]) ? i : i + 1;
+					}
+				}
+				lastX = xs[n - 1];
+				lastY = ys[n - 1];
+			}
+			paths.add(path);
+		}
+		return paths;
+	}
+
+	/**
+	 * Tells a pole or discontinuity between two samples from a steep but continuous stretch, the
+	 * way AdaptiveSampler does: only steps over the jump threshold that are not wholly off the
+	 * image are checked, by evaluating the midpoint.
+	 */
+	private static boolean isJump (CompiledExpression.Evaluator evaluator, double a, double fa, double b, double fb, double jump,
+			Spec spec) {
+		final double step = Math.abs(fb - fa);
+		if (!(step > jump) || (fa > spec.maxY && fb > spec.maxY) || (fa < spec.minY && fb < spec.minY)) {
+			return false;
+		}
+		final double fm = evaluator.evaluate(0.5 * (a + b));
+		return !Double.isFinite(fm) || Math.max(Math.abs(fm - fa), Math.abs(fb - fm)) > JUMP_RATIO * step;
+	}
+
+	/**
+	 * Draws the rows of a plot starting at top into an image: the grid with its labels and the
+	 * axes, then the curves. Only the rows the image covers are rasterized.
+	 */
+	private void draw (BufferedImage image, int top, Spec spec, List<Path2D.Float> paths) {
+		final Graphics2D g = image.createGraphics();
+		try {
+			g.translate(0, -top);
+			g.setClip(0, top, image.getWidth(), image.getHeight());
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			g.setColor(gray(PlotStyle.BACKGROUND_GRAY));
+			g.fillRect(0, top, image.getWidth(), image.getHeight());
+			drawGrid(g, spec);
+			g.setStroke(new BasicStroke((float) PlotStyle.CURVE_WIDTH, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+			for (int c = 0; c < paths.size(); c++) {
+				g.setColor(Color.decode(PlotStyle.CURVE_COLORS[c % PlotStyle.CURVE_COLORS.length]));
+				g.draw(paths.get(c));
+			}
+		} finally {
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Draws the grid lines and labels, then the axes, at the positions PlotCanvas.drawGrid uses.
+	 * Text is placed by its top or center, as the canvas aligns it.
+	 */
+	private void drawGrid (Graphics2D g, Spec spec) {
+		final int width = spec.width, height = spec.height;
+		final double xPerPixel = (spec.maxX - spec.minX) / width, yPerPixel = (spec.maxY - spec.minY) / height;
+		final double stepX = PlotStyle.gridStep(_gridInterval, xPerPixel), stepY = PlotStyle.gridStep(_gridInterval, yPerPixel);
+		final double axisX = Math.round((0 - spec.minX) / xPerPixel) + 0.5;
+		final double axisY = Math.round((spec.maxY - 0) / yPerPixel) + 0.5;
+		final double labelY = Math.max(0, Math.min(height - 14, axisY + 2));
+		final double labelX = Math.max(2, Math.min(width - 2, axisX - 3));
+		final Color grid = gray(PlotStyle.GRID_GRAY), label = gray(PlotStyle.LABEL_GRAY);
+		final Rectangle clip = g.getClipBounds();
+		g.setStroke(new BasicStroke(1));
+		g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, (int) PlotStyle.LABEL_FONT_SIZE));
+		final FontMetrics metrics = g.getFontMetrics();
+		for (long k = (long) Math.ceil(spec.minX / stepX); k * stepX <= spec.maxX; k++) {
+			final double x = k * stepX;
+			final double px = Math.round((x - spec.minX) / xPerPixel) + 0.5;
+			g.setColor(grid);
+			g.draw(new Line2D.Double(px, 0, px, height));
+			if (k != 0 && labelY + metrics.getHeight() >= clip.y && labelY <= clip.y + clip.height) {
+				final String text = PlotStyle.format(x);
+				g.setColor(label);
+				g.drawString(text, (float) (px - metrics.stringWidth(text) / 2.0), (float) (labelY + metrics.getAscent()));
+			}
+		}
+		final boolean left = axisX - 3 < 2;
+		final double baseline = (metrics.getAscent() - metrics.getDescent()) / 2.0;
+		for (long k = (long) Math.ceil(spec.minY / stepY); k * stepY <= spec.maxY; k++) {
+			final double y = k * stepY;
+			final double py = Math.round((spec.maxY - y) / yPerPixel) + 0.5;
+			if (py + metrics.getHeight() < clip.y || py - metrics.getHeight() > clip.y + clip.height) {
+				continue;
+			}
+			g.setColor(grid);
+			g.draw(new Line2D.Double(0, py, width, py));
+			if (k != 0) {
+				final String text = PlotStyle.format(y);
+				g.setColor(label);
+				g.drawString(text, (float) (left ? labelX : labelX - metrics.stringWidth(text)), (float) (py + baseline));
+			}
+		}
+		g.setColor(gray(PlotStyle.AXIS_GRAY));
+		g.draw(new Line2D.Double(axisX, 0, axisX, height));
+		g.draw(new Line2D.Double(0, axisY, width, axisY));
+	}
+
+	private static Color gray (double level) {
+		final float v = (float) level;
+		return new Color(v, v, v);
+	}
+
+	/**
+	 * A plot image that is drawn a band of rows at a time, when the rows are asked for. The PNG
+	 * writer reads it top to bottom, so each band is drawn once; the band buffer is reused.
+	 */
+	private final class BandedImage implements RenderedImage {
+		private final Spec _spec;
+		private final List<Path2D.Float> _paths;
+		private final BufferedImage _band;
+		private int _bandTop = -1;
+
+		BandedImage (Spec spec, List<Path2D.Float> paths) {
+			_spec = spec;
+			_paths = paths;
+			_band = new BufferedImage(spec.width, Math.max(1, Math.min(spec.height, BAND_PIXELS / spec.width)), BufferedImage.TYPE_INT_RGB);
+		}
+
+		@Override
+		public Vector<RenderedImage> getSources () {
+			return null;
+		}
+
+		@Override
+		public Object getProperty (String name) {
+			return Image.UndefinedProperty;
+		}
+
+		@Override
+		public String[] getPropertyNames () {
+			return null;
+		}
+
+		@Override
+		public ColorModel getColorModel () {
+			return _band.getColorModel();
+		}
+
+		@Override
+		public SampleModel getSampleModel () {
+			return _band.getSampleModel();
+		}
+
+		@Override
+		public int getWidth () {
+			return _spec.width;
+		}
+
+		@Override
+		public int getHeight () {
+			return _spec.height;
+		}
+
+		@Override
+		public int getMinX () {
+			return 0;
+		}
+
+		@Override
+		public int getMinY () {
+			return 0;
+		}
+
+		@Override
+		public int getNumXTiles () {
+			return 1;
+		}
+
+		@Override
+		public int getNumYTiles () {
+			return (_spec.height + _band.getHeight() - 1) / _band.getHeight();
+		}
+
+		@Override
+		public int getMinTileX () {
+			return 0;
+		}
+
+		@Override
+		public int getMinTileY () {
+			return 0;
+		}
+
+		@Override
+		public int getTileWidth () {
+			return _spec.width;
+		}
+
+		@Override
+		public int getTileHeight () {
+			return _band.getHeight();
+		}
+
+		@Override
+		public int getTileGridXOffset () {
+			return 0;
+		}
+
+		@Override
+		public int getTileGridYOffset () {
+			return 0;
+		}
+
+		@Override
+		public Raster getTile (int tileX, int tileY) {
+			final int top = tileY * _band.getHeight();
+			return getData(new Rectangle(0, top, _spec.width, Math.min(_band.getHeight(), _spec.height - top)));
+		}
+
+		@Override
+		public Raster getData () {
+			return getData(new Rectangle(0, 0, _spec.width, _spec.height));
+		}
+
+		@Override
+		public Raster getData (Rectangle rect) {
+			final WritableRaster raster = Raster.createWritableRaster(getSampleModel().createCompatibleSampleModel(rect.width, rect.height),
+					new Point(rect.x, rect.y));
+			return copyData(raster);
+		}
+
+		@Override
+		public WritableRaster copyData (WritableRaster raster) {
+			final Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, _spec.width, _spec.height));
+			final int rows = _band.getHeight();
+			for (int top = bounds.y / rows * rows; top < bounds.y + bounds.height; top += rows) {
+				if (top != _bandTop) {
+					draw(_band, top, _spec, _paths);
+					_bandTop = top;
+				}
+				raster.setRect(0, top, _band.getRaster());
+			}
+			return raster;
+		}
+	}
+
+	/**
+	 * Renders a batch: PlotExporter spec-file.
+	 * @param args the command-line arguments
+	 */
+	public static void main (String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: PlotExporter spec-file");
+			System.exit(2);
+		}
+		System.setProperty("java.awt.headless", "true");
+		final PlotExporter exporter = new PlotExporter();
+		final List<Spec> specs;
+		try {
+			specs = exporter.readSpecs(Paths.get(args[0]));
+		} catch (ExpressionParseException epe) {
+			System.err.println(epe.getMessage());
+			System.exit(1);
+			return;
+		}
+		final long start = System.nanoTime();
+		exporter.writeAll(specs);
+		long samples = 0;
+		for (Spec spec : specs) {
+			samples += spec.samples * spec.expressions.size();
+		}
+		System.out.printf("%d images, %d samples in %.1f ms%n", specs.size(), samples, (System.nanoTime() - start) / 1e6);
+	}
+}
@@ -0,0 +1,199 @@
+package application;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Runs plot jobs on one background worker thread and hands their results back through a
+ * publishing executor (Platform::runLater for the UI). Submitting a job makes every earlier one
+ * stale: a queued job is dropped, a running one is interrupted, and a stale job's result or
+ * error is never published, even if it finished just before the newer job arrived. Jobs run one
+ * at a time, so state they share (tile caches, evaluators) is confined to the worker thread.
+ * <p>
+ * Progress is published only for jobs that run longer than PROGRESS_DELAY_NANOS, and -1 is
+ * published when such a job ends. The time each job spent queued and running is recorded.
+ */
+public class PlotScheduler {
+	/** Jobs shorter than this never show progress. */
+	static final long PROGRESS_DELAY_NANOS = 150_000_000L;
+	/** Progress updates closer together than this are dropped. */
+	private static final long PROGRESS_INTERVAL_NANOS = 30_000_000L;
+
+	/**
+	 * Work done by a plot job on the worker thread.
+	 */
+	public interface Job<T> {
+		T run (Progress progress) throws Exception;
+	}
+
+	private final Executor _publisher;
+	private final ExecutorService _worker = Executors.newSingleThreadExecutor(r -> {
+		final Thread thread = new Thread(r, "plot-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicLong _generation = new AtomicLong();
+	private DoubleConsumer _progressListener = fraction -> { };
+	private Future<?> _current;
+	private volatile long _lastQueuedNanos, _lastRunningNanos;
+	private final AtomicLong _completed = new AtomicLong(), _cancelled = new AtomicLong();
+
+	/**
+	 * @param publisher runs result, error and progress callbacks, e.g. Platform::runLater
+	 */
+	public PlotScheduler (Executor publisher) {
+		_publisher = publisher;
+	}
+
+	/**
+	 * Setter for the progress callback, run through the publisher
+	 * @param listener receives a fraction in [0, 1], or -1 when a long job ends
+	 */
+	public void setProgressListener (DoubleConsumer listener) {
+		_progressListener = listener;
+	}
+
+	/**
+	 * Submits a job, cancelling every job submitted before it.
+	 * @param job the work to run on the worker thread
+	 * @param onResult receives the result through the publisher, unless the job is stale by then
+	 * @param onError receives the job's exception through the publisher, unless the job is stale by then
+	 */
+	public synchronized <T> void submit (Job<T> job, Consumer<? super T> onResult, Consumer<? super Exception> onError) {
+		final long generation = _generation.incrementAndGet();
+		if (_current != null) {
+			_current.cancel(true);
+		}
+		final long queued = System.nanoTime();
+		_current = _worker.submit(() -> {
+			final long started = System.nanoTime();
+			final Progress progress = new Progress(generation, started);
+			try {
+				final T result = job.run(progress);
+				progress.checkCancelled();
+				record(queued, started);
+				_completed.incrementAndGet();
+				publish(generation, progress, () -> onResult.accept(result));
+			} catch (CancellationException | InterruptedException e) {
+				_cancelled.incrementAndGet();
+				progress.finish();
+			} catch (Exception e) {
+				record(queued, started);
+				publish(generation, progress, () -> onError.accept(e));
+			}
+		});
+	}
+
+	private void record (long queued, long started) {
+		_lastQueuedNanos = started - queued;
+		_lastRunningNanos = System.nanoTime() - started;
+	}
+
+	private void publish (long generation, Progress progress, Runnable callback) {
+		progress.finish();
+		_publisher.execute(() -> {
+			if (generation == _generation.get()) {
+				callback.run();
+			}
+		});
+	}
+
+	/**
+	 * Whether a job is stale because a newer one was submitted.
+	 */
+	private boolean isStale (long generation) {
+		return generation != _generation.get();
+	}
+
+	/**
+	 * Getter for how long the last finished job waited before it started
+	 * @return the time in nanoseconds
+	 */
+	public long getLastQueuedNanos () {
+		return _lastQueuedNanos;
+	}
+
+	/**
+	 * Getter for how long the last finished job ran
+	 * @return the time in nanoseconds
+	 */
+	public long getLastRunningNanos () {
+		return _lastRunningNanos;
+	}
+
+	public long getCompletedCount () {
+		return _completed.get();
+	}
+
+	public long getCancelledCount () {
+		return _cancelled.get();
+	}
+
+	/**
+	 * Stops the worker. Queued jobs are dropped and a running one is interrupted.
+	 */
+	public void shutdown () {
+		_generation.incrementAndGet();
+		_worker.shutdownNow();
+	}
+
+	/**
+	 * Lets a running job report progress and notice that it was cancelled.
+	 */
+	public final class Progress {
+		private final long _jobGeneration, _started;
+		private long _lastUpdate;
+		private boolean _shown;
+
+		Progress (long generation, long started) {
+			_jobGeneration = generation;
+			_started = started;
+		}
+
+		/**
+		 * Throws if the job is stale or its thread was interrupted.
+		 * @throws CancellationException if the job should stop
+		 */
+		public void checkCancelled () {
+			if (isStale(_jobGeneration) || Thread.currentThread().isInterrupted()) {
+				throw new CancellationException();
+			}
+		}
+
+		/**
+		 * Reports progress and checks for cancellation.
+		 * @param done the units of work done
+		 * @param total the units of work in the job
+		 * @throws CancellationException if the job should stop
+		 */
+		public void update (long done, long total) {
+			checkCancelled();
+			final long now = System.nanoTime();
+			if (now - _started < PROGRESS_DELAY_NANOS || now - _lastUpdate < PROGRESS_INTERVAL_NANOS) {
+				return;
+			}
+			_lastUpdate = now;
+			_shown = true;
+			final double fraction = total > 0 ? Math.min(1.0, (double) done / total) : 0;
+			final DoubleConsumer listener = _progressListener;
+			_publisher.execute(() -> {
+				if (!isStale(_jobGeneration)) {
+					listener.accept(fraction);
+				}
+			});
+		}
+
+		void finish () {
+			if (_shown) {
+				final DoubleConsumer listener = _progressListener;
+				_publisher.execute(() -> listener.accept(-1));
+			}
+		}
+	}
+}
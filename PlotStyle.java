@@ -0,0 +1,42 @@
+package application;
+
+/**
+ * The look of a plot, shared by PlotCanvas on screen and PlotExporter for images so both draw
+ * the same grid, axes, labels and curve colors. Nothing here touches JavaFX or AWT; colors are
+ * gray levels from 0 (black) to 1 (white) or #rrggbb strings.
+ */
+final class PlotStyle {
+	/** Grid lines closer than this many pixels are thinned out by doubling the interval. */
+	static final double MIN_GRID_PIXELS = 16;
+	static final double CURVE_WIDTH = 2;
+	static final double LABEL_FONT_SIZE = 10;
+	static final double BACKGROUND_GRAY = 1, GRID_GRAY = 0.9, AXIS_GRAY = 0.3, LABEL_GRAY = 0.4;
+	/** Curve colors, used in turn. */
+	static final String[] CURVE_COLORS = { "#f3622d", "#57b757", "#41a9c9", "#4258c9", "#9a42c8", "#c84164", "#888888" };
+
+	private PlotStyle () {
+	}
+
+	/**
+	 * Finds the grid spacing: the grid interval, doubled until lines are at least MIN_GRID_PIXELS apart.
+	 * @param gridInterval the nominal spacing of the grid lines
+	 * @param unitsPerPixel the size of one pixel along the axis
+	 * @return the spacing to draw
+	 */
+	static double gridStep (double gridInterval, double unitsPerPixel) {
+		double step = gridInterval;
+		while (step / unitsPerPixel < MIN_GRID_PIXELS) {
+			step *= 2;
+		}
+		return step;
+	}
+
+	/**
+	 * Formats a grid label, without a fraction for whole numbers.
+	 * @param value the grid coordinate
+	 * @return the label text
+	 */
+	static String format (double value) {
+		return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+	}
+}
@@ -0,0 +1,203 @@
+package application;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Caches the samples of one function as fixed-width x-tiles per resolution level, so panning only
+ * evaluates newly exposed tiles and zooming back to an earlier scale reuses its tiles.
+ * <p>
+ * Level n samples at 2^n x-units per pixel, and its tiles are TILE_PIXELS pixels wide. A viewport
+ * is drawn from the finest level that is no coarser than its own pixel size. The y-scale is
+ * derived from the x-scale through the viewport's aspect ratio, which zooming preserves; if the
+ * aspect ratio changes (the window was resized), every tile is dropped. Tiles are sampled with
+ * AdaptiveSampler without off-screen pruning, so they stay valid when the view pans vertically.
+ * Tiles are evicted least recently used first once their samples exceed the memory cap.
+ * Several caches can be sampled together, so the functions missing a tile share one fused pass.
+ */
+public class SampleTileCache {
+	/** Width of a tile in pixels at its own level. */
+	static final int TILE_PIXELS = 256;
+	/** Default memory cap for cached samples. */
+	public static final long DEFAULT_MAX_BYTES = 16L << 20;
+	/** Rough per-tile overhead in bytes: map entry, key, curve object and arrays headers. */
+	private static final int TILE_OVERHEAD = 160;
+
+	private final DoubleUnaryOperator _f;
+	private final AdaptiveSampler _sampler;
+	private final long _maxBytes;
+	private final LinkedHashMap<Long, Tile> _tiles = new LinkedHashMap<Long, Tile>(64, 0.75f, true);
+	private double _aspect = Double.NaN;
+	private long _bytes;
+	private long _hits, _misses, _evaluations;
+
+	/**
+	 * @param f the function to sample; it is only called from the thread that uses this cache
+	 * @param sampler the sampler used to fill tiles
+	 * @param maxBytes the memory cap for cached samples
+	 */
+	public SampleTileCache (DoubleUnaryOperator f, AdaptiveSampler sampler, long maxBytes) {
+		_f = f;
+		_sampler = sampler;
+		_maxBytes = maxBytes;
+	}
+
+	public SampleTileCache (DoubleUnaryOperator f, AdaptiveSampler sampler) {
+		this(f, sampler, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Returns the curve over a viewport, sampling only the tiles that are not cached.
+	 * @param minX the left edge of the viewport
+	 * @param maxX the right edge of the viewport
+	 * @param minY the bottom edge of the viewport
+	 * @param maxY the top edge of the viewport
+	 * @param width the viewport width in pixels
+	 * @param height the viewport height in pixels
+	 * @return the curve over whole tiles covering [minX, maxX]; getEvaluations() counts only new samples
+	 * @throws CancellationException if the calling thread is interrupted; tiles sampled so far stay cached
+	 */
+	public SampledCurve sample (double minX, double maxX, double minY, double maxY, int width, int height) {
+		return sample(new SampleTileCache[] { this }, minX, maxX, minY, maxY, width, height)[0];
+	}
+
+	/**
+	 * Returns the curves of several caches over one viewport. A tile missing from more than one
+	 * cache is sampled for all of them in one fused pass over a shared grid, using the sampler
+	 * of the first cache. A cache that holds the tile is not re-sampled.
+	 * @param caches the caches, one per function
+	 * @param minX the left edge of the viewport
+	 * @param maxX the right edge of the viewport
+	 * @param minY the bottom edge of the viewport
+	 * @param maxY the top edge of the viewport
+	 * @param width the viewport width in pixels
+	 * @param height the viewport height in pixels
+	 * @return the curve of each cache, in order; getEvaluations() counts only new samples
+	 * @throws CancellationException if the calling thread is interrupted; tiles sampled so far stay cached
+	 */
+	public static SampledCurve[] sample (SampleTileCache[] caches, double minX, double maxX, double minY, double maxY, int width, int height) {
+		final double xPerPixel = (maxX - minX) / width;
+		final double aspect = ((maxY - minY) / height) / xPerPixel;
+		final SampledCurve.Builder[] curves = new SampledCurve.Builder[caches.length];
+		for (int k = 0; k < caches.length; k++) {
+			final SampleTileCache cache = caches[k];
+			if (!(Math.abs(aspect / cache._aspect - 1) < 1e-6)) {
+				cache.clear();
+				cache._aspect = aspect;
+			}
+			curves[k] = new SampledCurve.Builder();
+		}
+		final int level = level(xPerPixel);
+		final double levelXPerPixel = Math.scalb(1.0, level);
+		final double tileWidth = TILE_PIXELS * levelXPerPixel;
+		final long first = (long) Math.floor(minX / tileWidth);
+		final long last = (long) Math.floor(maxX / tileWidth);
+		final Tile[] tiles = new Tile[caches.length];
+		final int[] missing = new int[caches.length];
+		for (long index = first; index <= last; index++) {
+			final Long key = key(level, index);
+			int misses = 0;
+			for (int k = 0; k < caches.length; k++) {
+				tiles[k] = caches[k]._tiles.get(key);
+				if (tiles[k] == null) {
+					missing[misses++] = k;
+				} else {
+					caches[k]._hits++;
+				}
+			}
+			if (misses > 0) {
+				if (Thread.currentThread().isInterrupted()) {
+					for (SampleTileCache cache : caches) {
+						cache.evict();
+					}
+					throw new CancellationException("Sampling interrupted");
+				}
+				final DoubleUnaryOperator[] fs = new DoubleUnaryOperator[misses];
+				for (int m = 0; m < misses; m++) {
+					fs[m] = caches[missing[m]]._f;
+				}
+				final SampledCurve[] samples = caches[0]._sampler.sample(fs, index * tileWidth, (index + 1) * tileWidth,
+						levelXPerPixel, levelXPerPixel * aspect, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, height);
+				for (int m = 0; m < misses; m++) {
+					final SampleTileCache cache = caches[missing[m]];
+					final Tile tile = new Tile(samples[m]);
+					cache._misses++;
+					cache._tiles.put(key, tile);
+					cache._bytes += tile.bytes;
+					cache._evaluations += samples[m].getEvaluations();
+					curves[missing[m]].countEvaluations(samples[m].getEvaluations());
+					tiles[missing[m]] = tile;
+				}
+			}
+			for (int k = 0; k < caches.length; k++) {
+				curves[k].addAll(tiles[k].samples);
+			}
+		}
+		final SampledCurve[] result = new SampledCurve[caches.length];
+		for (int k = 0; k < caches.length; k++) {
+			caches[k].evict();
+			result[k] = curves[k].build();
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the level whose pixel size is the largest power of two not above xPerPixel.
+	 */
+	static int level (double xPerPixel) {
+		return Math.getExponent(xPerPixel);
+	}
+
+	private static Long key (int level, long index) {
+		return ((long) level << 48) ^ (index & 0xffffffffffffL);
+	}
+
+	private void evict () {
+		final Iterator<Tile> it = _tiles.values().iterator();
+		while (_bytes > _maxBytes && it.hasNext()) {
+			_bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drops every tile. Statistics are kept.
+	 */
+	public void clear () {
+		_tiles.clear();
+		_bytes = 0;
+	}
+
+	public int getTileCount () {
+		return _tiles.size();
+	}
+
+	public long getBytes () {
+		return _bytes;
+	}
+
+	public long getHitCount () {
+		return _hits;
+	}
+
+	public long getMissCount () {
+		return _misses;
+	}
+
+	public long getEvaluations () {
+		return _evaluations;
+	}
+
+	private static final class Tile {
+		final SampledCurve samples;
+		final long bytes;
+
+		Tile (SampledCurve samples) {
+			this.samples = samples;
+			this.bytes = TILE_OVERHEAD + 16L * samples.getPointCount() + 32L * samples.getSegmentCount();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sampled curve stored as primitive x/y arrays, split into segments wherever the curve is
+ * undefined or jumps (a pole or a discontinuity). Points within a segment are in increasing x
+ * and are meant to be joined by lines; separate segments must not be joined.
+ */
+public final class SampledCurve {
+	private final List<double[]> _xs, _ys;
+	private final long _evaluations;
+
+	SampledCurve (List<double[]> xs, List<double[]> ys, long evaluations) {
+		_xs = xs;
+		_ys = ys;
+		_evaluations = evaluations;
+	}
+
+	public int getSegmentCount () {
+		return _xs.size();
+	}
+
+	/**
+	 * Getter for a segment's x-values. The array is shared and must not be modified.
+	 * @param segment the segment index
+	 * @return the x-values of the segment
+	 */
+	public double[] getXs (int segment) {
+		return _xs.get(segment);
+	}
+
+	/**
+	 * Getter for a segment's y-values. The array is shared and must not be modified.
+	 * @param segment the segment index
+	 * @return the y-values of the segment
+	 */
+	public double[] getYs (int segment) {
+		return _ys.get(segment);
+	}
+
+	/**
+	 * Getter for the total number of points
+	 * @return the number of points over all segments
+	 */
+	public int getPointCount () {
+		int count = 0;
+		for (double[] xs : _xs) {
+			count += xs.length;
+		}
+		return count;
+	}
+
+	/**
+	 * Getter for the number of times the expression was evaluated to build this curve
+	 * @return the evaluation count
+	 */
+	public long getEvaluations () {
+		return _evaluations;
+	}
+
+	/**
+	 * Collects points into segments.
+	 */
+	static final class Builder {
+		private final List<double[]> _xs = new ArrayList<double[]>(), _ys = new ArrayList<double[]>();
+		private double[] _x = new double[64], _y = new double[64];
+		private int _size;
+		private long _evaluations;
+
+		/**
+		 * Appends a point to the current segment. Non-finite points end the segment instead.
+		 */
+		void add (double x, double y) {
+			if (!Double.isFinite(y)) {
+				split();
+				return;
+			}
+			if (_size == _x.length) {
+				_x = Arrays.copyOf(_x, _size * 2);
+				_y = Arrays.copyOf(_y, _size * 2);
+			}
+			_x[_size] = x;
+			_y[_size] = y;
+			_size++;
+		}
+
+		/**
+		 * Ends the current segment; the next point starts a new one.
+		 */
+		void split () {
+			if (_size > 0) {
+				_xs.add(Arrays.copyOf(_x, _size));
+				_ys.add(Arrays.copyOf(_y, _size));
+				_size = 0;
+			}
+		}
+
+		/**
+		 * Appends all segments of another curve. Its first segment continues the current one
+		 * if it starts at the x where the current one ends. Evaluation counts are not carried over.
+		 */
+		void addAll (SampledCurve curve) {
+			for (int s = 0; s < curve.getSegmentCount(); s++) {
+				final double[] xs = curve.getXs(s), ys = curve.getYs(s);
+				final boolean continues = s == 0 && _size > 0 && _x[_size - 1] == xs[0];
+				if (!continues) {
+					split();
+				}
+				for (int i = continues ? 1 : 0; i < xs.length; i++) {
+					add(xs[i], ys[i]);
+				}
+			}
+		}
+
+		void countEvaluations (long n) {
+			_evaluations += n;
+		}
+
+		SampledCurve build () {
+			split();
+			return new SampledCurve(_xs, _ys, _evaluations);
+		}
+	}
+}
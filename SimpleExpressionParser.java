@@ -1,213 +1,369 @@
 package application;
 
 public class SimpleExpressionParser implements ExpressionParser {
+	static final int NUMBER = 0, VARIABLE = 1, FUNCTION = 2, NAME = 3, PLUS = 4, MINUS = 5,
+			TIMES = 6, DIVIDE = 7, POWER = 8, OPEN = 9, CLOSE = 10, END = 11;
+
         /*
          * Attempts to create an expression tree from the specified String.
          * Throws a ExpressionParseException if the specified string cannot be parsed.
 	 * Grammar:
-	 * S -> A | P
+	 * S -> A
 	 * A -> A+M | A-M | M
-	 * M -> M*E | M/E | E
-	 * E -> P^E | P | log(P)
-	 * P -> (S) | L | V
+	 * M -> M*U | M/U | U
+	 * U -> -U | +U | E
+	 * E -> P^U | P
+	 * P -> (S) | F(S) | L | V | N
+	 * F -> <function>, a name in FunctionRegistry such as log, sin or sqrt
 	 * L -> <float>
 	 * V -> x
+	 * N -> <name>, any other identifier, a parameter
+	 * The string is tokenized in a single pass and then parsed by precedence climbing, so
+	 * parsing takes time and memory linear in the length of the string. +, -, * and / are
+	 * left-associative and ^ is right-associative.
          * @param str the string to parse into an expression tree
          * @return the Expression object representing the parsed expression tree
          */
 	public Expression parse (String str) throws ExpressionParseException {
-		str = str.replaceAll(" ", "");
-		Expression expression = parseAdditiveExpression(str);
-		if (expression == null) {
-			throw new ExpressionParseException("Cannot parse expression: " + str);
-		}
-
+		final Parser parser = new Parser(str);
+		final Expression expression = parser.parseAdditiveExpression();
+		parser.expect(END, "Unexpected input");
 		return expression;
 	}
-	
-	protected Expression parseAdditiveExpression (String str) {
-		int count = 0;
-	    for (int i = 0; i < str.length(); i++) {
-	    	if (str.substring(i, i + 1).equals("(")) {
-	    		count++;
-	    	}
-	    	if (str.substring(i, i + 1).equals(")")) {
-	    		count--;
-	    	}
-	        if (str.substring(i, i + 1).equals("+") && count == 0) {
-	        	ParsedExpression p1 = new ParsedExpression(str.substring(i, i + 1));
-	            Expression left = parseMultiplicativeExpression(str.substring(0, i));
-	            p1.addSubexpression(left);
-	            if (str.length()-i > 1) {
-					Expression right = parseAdditiveExpression(str.substring(i + 1, str.length()));
-					p1.addSubexpression(right);
+
+	/**
+	 * Splits a string into tokens. Each token is a type, the range of the string it covers and,
+	 * for numbers, the parsed value.
+	 */
+	protected static final class Tokens {
+		/** Most characters past the end of a token that the lexer looks at, for 1e+5. */
+		static final int LOOKAHEAD = 2;
+
+		int[] types, starts, ends;
+		double[] values;
+		int size;
+
+		Tokens (String str) throws ExpressionParseException {
+			this(str.length() + 1);
+			int i = 0;
+			while (i < str.length()) {
+				i = lex(str, i);
+			}
+			add(END, str.length(), str.length(), 0);
+		}
+
+		/**
+		 * Creates an empty token list, to be filled with lex and add.
+		 * @param capacity the most tokens it will hold
+		 */
+		Tokens (int capacity) {
+			types = new int[capacity];
+			starts = new int[capacity];
+			ends = new int[capacity];
+			values = new double[capacity];
+		}
+
+		/**
+		 * Lexes the character at i: skips it if it is whitespace, otherwise adds the token
+		 * starting there. Decisions only look at most LOOKAHEAD characters past the token.
+		 * @param str the string being lexed
+		 * @param i the position to lex
+		 * @return the position after the whitespace or token
+		 */
+		int lex (String str, int i) throws ExpressionParseException {
+			final char c = str.charAt(i);
+			if (Character.isWhitespace(c)) {
+				return i + 1;
+			}
+			if (isDigit(c) || c == '.') {
+				return lexNumber(str, i);
+			}
+			if (Character.isLetter(c)) {
+				int j = i + 1;
+				while (j < str.length() && Character.isLetterOrDigit(str.charAt(j))) {
+					j++;
 				}
-	            return p1;
-	        }
-	        if (str.substring(i, i + 1).equals("-") && i!=0 && count == 0) {
-	        	if (!str.substring(i-1, i).equals("*") && !str.substring(i-1, i).equals("+")
-	        		&& !str.substring(i-1, i).equals("/") && !str.substring(i-1, i).equals("^") 
-	        		&& !str.substring(i-1, i).equals("-")) {
-	        		ParsedExpression p1 = new ParsedExpression(str.substring(i, i + 1));
-	            Expression left = parseMultiplicativeExpression(str.substring(0, i));
-	            p1.addSubexpression(left);
-	            if (str.length()-i > 1) {
-					Expression right = parseAdditiveExpression(str.substring(i + 1, str.length()));
-					p1.addSubexpression(right);
+				final String name = str.substring(i, j);
+				add(name.equals("x") ? VARIABLE : FunctionRegistry.lookup(name) != null ? FUNCTION : NAME, i, j, 0);
+				return j;
+			}
+			final int type = operator(c);
+			if (type < 0) {
+				throw new ExpressionParseException("Unexpected character '" + c + "' at position " + i, i);
+			}
+			add(type, i, i + 1, 0);
+			return i + 1;
+		}
+
+		private int lexNumber (String str, int start) throws ExpressionParseException {
+			int i = start;
+			while (i < str.length() && isDigit(str.charAt(i))) {
+				i++;
+			}
+			if (i < str.length() && str.charAt(i) == '.') {
+				i++;
+				while (i < str.length() && isDigit(str.charAt(i))) {
+					i++;
 				}
-	            return p1;
-	        	}
-	        }
-	    }
-	    return parseMultiplicativeExpression(str);
-	}
-	
-	protected Expression parseMultiplicativeExpression (String str) {
-		int count = 0;
-		for (int i = 0; i < str.length(); i++) {
-			if (str.substring(i, i + 1).equals("(")) {
-	    		count++;
-	    	}
-	    	if (str.substring(i, i + 1).equals(")")) {
-	    		count--;
-	    	}
-			if (str.substring(i, i+1).equals("*") && count == 0) {
-				ParsedExpression p1 = new ParsedExpression (str.substring(i, i+1));
-				Expression left = parseExponentialExpression(str.substring(0, i));
-				p1.addSubexpression(left);
-				if (str.length()-i > 1) {
-					Expression right = parseAdditiveExpression(str.substring(i + 1, str.length()));
-					p1.addSubexpression(right);
+			}
+			if (i - start == 1 && str.charAt(start) == '.') {
+				throw new ExpressionParseException("Malformed number at position " + start, start);
+			}
+			if (i < str.length() && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+				int j = i + 1;
+				if (j < str.length() && (str.charAt(j) == '+' || str.charAt(j) == '-')) {
+					j++;
 				}
-				return p1;
-			}
-			if (str.substring(i, i+1).equals("/") && count == 0) {
-				ParsedExpression p1 = new ParsedExpression (str.substring(i, i+1));
-				Expression left = parseExponentialExpression(str.substring(0, i));
-				p1.addSubexpression(left);
-				if (str.length()-i > 1) {
-					Expression right = parseAdditiveExpression(str.substring(i + 1, str.length()));
-					p1.addSubexpression(right);
+				if (j < str.length() && isDigit(str.charAt(j))) {
+					while (j < str.length() && isDigit(str.charAt(j))) {
+						j++;
+					}
+					i = j;
 				}
-				return p1;
+			}
+			add(NUMBER, start, i, Double.parseDouble(str.substring(start, i)));
+			return i;
+		}
+
+		void add (int type, int start, int end, double value) {
+			types[size] = type;
+			starts[size] = start;
+			ends[size] = end;
+			values[size] = value;
+			size++;
+		}
+
+		private static boolean isDigit (char c) {
+			return c >= '0' && c <= '9';
+		}
+
+		private static int operator (char c) {
+			switch (c) {
+			case '+':
+				return PLUS;
+			case '-':
+				return MINUS;
+			case '*':
+				return TIMES;
+			case '/':
+				return DIVIDE;
+			case '^':
+				return POWER;
+			case '(':
+				return OPEN;
+			case ')':
+				return CLOSE;
+			default:
+				return -1;
 			}
 		}
-		return parseExponentialExpression(str);
 	}
-	
-	protected Expression parseExponentialExpression (String str) {
-		int count = 0;
-		for (int i = 0; i < str.length(); i++) {
-			if (str.substring(i, i + 1).equals("(")) {
-	    		count++;
-	    	}
-	    	if (str.substring(i, i + 1).equals(")")) {
-	    		count--;
-	    	}
-			if (str.substring(i, i+1).equals("^") && count == 0) {
-				ParsedExpression p1 = new ParsedExpression (str.substring(i, i+1));
-				Expression left = parseParenthesesExpression(str.substring(0, i));
-				p1.addSubexpression(left);
-				if (str.length()-i > 1) {
-					Expression right = parseAdditiveExpression(str.substring(i + 1, str.length()));
-					p1.addSubexpression(right);
-				}
-				return p1;
-			}
-			if (str.length()-i >= 3 && str.substring(i, i+3).equals("log")) {
-				for (int j = i+3; j < str.length(); j++) {
-					if (str.substring(j,j+1).equals(")")) {
-						ParsedExpression p1 = new ParsedExpression ("log");
-						Expression child = parseAdditiveExpression(str.substring(i+4,j));
-						p1.addSubexpression(child);
-						return p1;
-					}
+
+	/**
+	 * Precedence-climbing parser over a token stream. Each token is consumed exactly once.
+	 */
+	protected static class Parser {
+		protected final String _str;
+		protected final Tokens _tokens;
+		protected int _next;
+
+		protected Parser (String str) throws ExpressionParseException {
+			this(str, new Tokens(str));
+		}
+
+		/**
+		 * @param str the string being parsed
+		 * @param tokens the tokens of str, ending with END
+		 */
+		protected Parser (String str, Tokens tokens) {
+			_str = str;
+			_tokens = tokens;
+		}
+
+		/**
+		 * Parses a chain of terms joined by + and -, building the tree left to right.
+		 * @return the parsed expression
+		 */
+		protected Expression parseAdditiveExpression () throws ExpressionParseException {
+			Expression left = parseMultiplicativeExpression();
+			while (peek() == PLUS || peek() == MINUS) {
+				final String op = peek() == PLUS ? "+" : "-";
+				_next++;
+				left = binary(op, left, parseMultiplicativeExpression());
+			}
+			return left;
+		}
+
+		/**
+		 * Parses a chain of factors joined by * and /, building the tree left to right.
+		 * @return the parsed expression
+		 */
+		protected Expression parseMultiplicativeExpression () throws ExpressionParseException {
+			Expression left = parseUnaryExpression();
+			while (peek() == TIMES || peek() == DIVIDE) {
+				final String op = peek() == TIMES ? "*" : "/";
+				_next++;
+				left = binary(op, left, parseUnaryExpression());
+			}
+			return left;
+		}
+
+		/**
+		 * Parses a signed factor. A minus in front of a plain number becomes a negative literal;
+		 * in front of anything else it becomes a multiplication by -1. Sign binds looser than ^,
+		 * so -x^2 is -(x^2).
+		 * @return the parsed expression
+		 */
+		protected Expression parseUnaryExpression () throws ExpressionParseException {
+			if (peek() == PLUS) {
+				_next++;
+				return parseUnaryExpression();
+			}
+			if (peek() == MINUS) {
+				_next++;
+				if (peek() == NUMBER && peekAfter() != POWER) {
+					return parseLiteralExpression(-_tokens.values[_next++]);
 				}
+				return binary("*", parseLiteralExpression(-1), parseUnaryExpression());
 			}
+			return parseExponentialExpression();
 		}
-		return parseParenthesesExpression(str);
-	}
-	
-	protected Expression parseParenthesesExpression (String str) {
-		if (str.substring(0,1).equals("(")) {
-			if (str.substring(str.length()-1,str.length()).equals(")")) {
-				if (str.length()>2) {
-				ParsedExpression parent = new ParsedExpression (str.substring(0,1) + str.substring(str.length()-1,str.length()));
-				Expression insideParent = parseAdditiveExpression(str.substring(1, str.length()-1));
-				parent.addSubexpression(insideParent);
-				return parent;
+
+		/**
+		 * Parses a power. The exponent is parsed as a signed factor, which makes ^ right-associative.
+		 * @return the parsed expression
+		 */
+		protected Expression parseExponentialExpression () throws ExpressionParseException {
+			final Expression base = parsePrimaryExpression();
+			if (peek() == POWER) {
+				_next++;
+				return binary("^", base, parseUnaryExpression());
+			}
+			return base;
+		}
+
+		/**
+		 * Parses a literal, the variable, a parameter, a function call or a parenthesized expression.
+		 * The call node is named after the function, so it is resolved as it is created.
+		 * @return the parsed expression
+		 */
+		protected Expression parsePrimaryExpression () throws ExpressionParseException {
+			final int token = _next;
+			if (peek() == FUNCTION || peek() == OPEN) {
+				final Expression reused = reuseGroup(token);
+				if (reused != null) {
+					return reused;
 				}
-				else {
-					ParsedExpression sadParent = new ParsedExpression (str.substring(0,1) + str.substring(str.length()-1,str.length()));
-					return sadParent;
+			}
+			switch (peek()) {
+			case NUMBER:
+				_next++;
+				return parseLiteralExpression(_tokens.values[token]);
+			case VARIABLE:
+				_next++;
+				return parseVariableExpression();
+			case FUNCTION:
+				_next++;
+				expect(OPEN, "Expected '(' after " + text(token));
+				final ParsedExpression call = new ParsedExpression(text(token));
+				call.addSubexpression(parseAdditiveExpression());
+				expect(CLOSE, "Expected ')'");
+				recordGroup(token, call);
+				return call;
+			case OPEN:
+				_next++;
+				final ParsedExpression parentheses = new ParsedExpression("()");
+				parentheses.addSubexpression(parseAdditiveExpression());
+				expect(CLOSE, "Expected ')'");
+				recordGroup(token, parentheses);
+				return parentheses;
+			case NAME:
+				if (peekAfter() == OPEN) {
+					throw error("Unknown function '" + text(token) + "'", token);
 				}
+				if (ParsedExpression.isNumber(text(token))) {
+					throw error("Reserved name '" + text(token) + "'", token);
+				}
+				_next++;
+				return parseParameterExpression(text(token));
+			case END:
+				throw error("Expected an expression", token);
+			default:
+				throw error("Unexpected '" + text(token) + "'", token);
 			}
 		}
-		if (ParsedExpression.isNumber(str)) {
-			return parseLiteralExpression(str);
+
+		/**
+		 * Offers a parse of the group, a function call or a parenthesized expression, that starts at
+		 * the next token. If one is returned, the parser must already have moved past its ')'.
+		 * @param open the index of the function or '(' token
+		 * @return the group's tree, or null to parse it
+		 */
+		protected Expression reuseGroup (int open) {
+			return null;
 		}
-		if (str.equals("x")) {
-			return parseVariableExpression(str);
+
+		/**
+		 * Called after a group is parsed; the parser has just consumed its ')'.
+		 * @param open the index of the function or '(' token
+		 * @param group the group's tree
+		 */
+		protected void recordGroup (int open, Expression group) {
 		}
-		return new ParsedExpression(str);
-	}
 
-	// TODO: once you implement a VariableExpression class, fix the return-type below.
-	protected ParsedExpression parseVariableExpression (String str) {
-		if (str.equals("x")) {
-			return new ParsedExpression(str);
+		protected ParsedExpression parseVariableExpression () {
+			return new ParsedExpression("x");
+		}
+
+		/**
+		 * Creates a node for a named parameter. Parameters are constants whose values are bound
+		 * after parsing, see CompiledExpression.withParameters.
+		 * @param name the parameter name
+		 * @return the parsed expression
+		 */
+		protected ParsedExpression parseParameterExpression (String name) {
+			return new ParsedExpression(name);
+		}
+
+		protected ParsedExpression parseLiteralExpression (double value) {
+			return new ParsedExpression(Double.toString(value));
 		}
-		else return null;
-	}
 
-        // TODO: once you implement a LiteralExpression class, fix the return-type below.
-	protected ParsedExpression parseLiteralExpression (String str) {
-		// From https://stackoverflow.com/questions/3543729/how-to-check-that-a-string-is-parseable-to-a-double/22936891:
-		final String Digits     = "(\\p{Digit}+)";
-		final String HexDigits  = "(\\p{XDigit}+)";
-		// an exponent is 'e' or 'E' followed by an optionally 
-		// signed decimal integer.
-		final String Exp        = "[eE][+-]?"+Digits;
-		final String fpRegex    =
-		    ("[\\x00-\\x20]*"+ // Optional leading "whitespace"
-		    "[+-]?(" +         // Optional sign character
-		    "NaN|" +           // "NaN" string
-		    "Infinity|" +      // "Infinity" string
-
-		    // A decimal floating-point string representing a finite positive
-		    // number without a leading sign has at most five basic pieces:
-		    // Digits . Digits ExponentPart FloatTypeSuffix
-		    // 
-		    // Since this method allows integer-only strings as input
-		    // in addition to strings of floating-point literals, the
-		    // two sub-patterns below are simplifications of the grammar
-		    // productions from the Java Language Specification, 2nd 
-		    // edition, section 3.10.2.
-
-		    // Digits ._opt Digits_opt ExponentPart_opt FloatTypeSuffix_opt
-		    "((("+Digits+"(\\.)?("+Digits+"?)("+Exp+")?)|"+
-
-		    // . Digits ExponentPart_opt FloatTypeSuffix_opt
-		    "(\\.("+Digits+")("+Exp+")?)|"+
-
-		    // Hexadecimal strings
-		    "((" +
-		    // 0[xX] HexDigits ._opt BinaryExponent FloatTypeSuffix_opt
-		    "(0[xX]" + HexDigits + "(\\.)?)|" +
-
-		    // 0[xX] HexDigits_opt . HexDigits BinaryExponent FloatTypeSuffix_opt
-		    "(0[xX]" + HexDigits + "?(\\.)" + HexDigits + ")" +
-
-		    ")[pP][+-]?" + Digits + "))" +
-		    "[fFdD]?))" +
-		    "[\\x00-\\x20]*");// Optional trailing "whitespace"
-
-		if (str.matches(fpRegex)) {
-			double placehold = Double.parseDouble(str);
-			str = Double.toString(placehold);
-			return new ParsedExpression(str);
-		}
-		return null;
+		/**
+		 * Consumes the next token if it has the given type.
+		 * @param type the expected token type
+		 * @param message the error to report otherwise
+		 */
+		protected void expect (int type, String message) throws ExpressionParseException {
+			if (peek() != type) {
+				throw error(message, _next);
+			}
+			_next++;
+		}
+
+		protected int peek () {
+			return _tokens.types[_next];
+		}
+
+		protected int peekAfter () {
+			return _next + 1 < _tokens.size ? _tokens.types[_next + 1] : END;
+		}
+
+		protected String text (int token) {
+			return _str.substring(_tokens.starts[token], _tokens.ends[token]);
+		}
+
+		protected ExpressionParseException error (String message, int token) {
+			final int position = _tokens.starts[token];
+			return new ExpressionParseException(message + " at position " + position, position);
+		}
+
+		private static Expression binary (String op, Expression left, Expression right) {
+			final ParsedExpression node = new ParsedExpression(op);
+			node.addSubexpression(left);
+			node.addSubexpression(right);
+			return node;
+		}
 	}
 
 	public static void main (String[] args) throws ExpressionParseException {
@@ -0,0 +1,247 @@
+package application;
+
+import static application.ExpressionCompiler.*;
+
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Forward-mode automatic differentiation over a compiled expression. Every stack slot holds a
+ * truncated Taylor series (a jet) in x instead of a single value, so one run of the program
+ * yields f(x), f'(x), ..., f^(k)(x) together. Order 1 is dual-number arithmetic. No expression
+ * tree is built; all jets live in preallocated arrays, so evaluation does not allocate.
+ * <p>
+ * The value f(x) is bit-for-bit what CompiledExpression.evaluate returns, and every operator
+ * is supported, including x^x. Functions compose with the series rule of their FunctionRegistry
+ * entry. An evaluator owns its scratch arrays and must only be used by
+ * one thread at a time.
+ */
+public final class TaylorEvaluator {
+	/** Integer exponents up to this size are expanded into repeated multiplication when the base is 0. */
+	private static final int MAX_INTEGER_POWER = 64;
+
+	private final CompiledExpression _compiled;
+	private final int _order, _width;
+	private final double[] _stack;
+	private final double[] _t1, _t2, _t3;
+	private final double[] _factorials;
+
+	/**
+	 * @param compiled the compiled expression to differentiate
+	 * @param order the highest derivative to compute, 0 for just the value
+	 */
+	public TaylorEvaluator (CompiledExpression compiled, int order) {
+		if (order < 0) {
+			throw new IllegalArgumentException("order must not be negative: " + order);
+		}
+		_compiled = compiled;
+		_order = order;
+		_width = order + 1;
+		_stack = new double[Math.max(1, compiled.getMaxStack()) * _width];
+		_t1 = new double[_width];
+		_t2 = new double[_width];
+		_t3 = new double[_width];
+		_factorials = new double[_width];
+		_factorials[0] = 1;
+		for (int n = 1; n < _width; n++) {
+			_factorials[n] = _factorials[n - 1] * n;
+		}
+	}
+
+	/**
+	 * Creates an evaluator for an expression tree.
+	 * @param expression the expression to differentiate
+	 * @param order the highest derivative to compute
+	 * @return the evaluator
+	 */
+	public static TaylorEvaluator of (Expression expression, int order) {
+		return new TaylorEvaluator(ExpressionCompiler.compile(expression), order);
+	}
+
+	public int getOrder () {
+		return _order;
+	}
+
+	/**
+	 * Computes the value and derivatives at one x.
+	 * @param x the value of the independent variable x
+	 * @param derivatives receives f^(j)(x) at index j, for j from 0 to the order
+	 */
+	public void evaluate (double x, double[] derivatives) {
+		run(x);
+		for (int n = 0; n < _width; n++) {
+			derivatives[n] = _stack[n] * _factorials[n];
+		}
+	}
+
+	/**
+	 * Computes the value and derivatives at every x in one pass.
+	 * @param xs the values of the independent variable x
+	 * @param out receives f^(j)(xs[i]) in out[j][i]; needs order + 1 rows at least as long as xs
+	 */
+	public void evaluate (double[] xs, double[][] out) {
+		if (out.length < _width) {
+			throw new IllegalArgumentException("Need " + _width + " output rows, got " + out.length);
+		}
+		for (int i = 0; i < xs.length; i++) {
+			run(xs[i]);
+			for (int n = 0; n < _width; n++) {
+				out[n][i] = _stack[n] * _factorials[n];
+			}
+		}
+	}
+
+	/**
+	 * Returns the nth derivative as a function of x. The function uses this evaluator's scratch
+	 * arrays, so it has the same one-thread restriction.
+	 * @param n which derivative, from 0 to the order
+	 * @return the nth derivative
+	 */
+	public DoubleUnaryOperator derivative (int n) {
+		if (n < 0 || n > _order) {
+			throw new IllegalArgumentException("Derivative " + n + " is outside 0.." + _order);
+		}
+		final double[] derivatives = new double[_width];
+		return x -> {
+			evaluate(x, derivatives);
+			return derivatives[n];
+		};
+	}
+
+	/**
+	 * Runs the program over jets. Slot s occupies _stack[s * width] through _stack[s * width + order].
+	 * @param x the value of the independent variable x
+	 */
+	private void run (double x) {
+		final byte[] code = _compiled.getCode();
+		final int[] args = _compiled.getArgs();
+		final double[] constants = _compiled.getConstants();
+		final double[] s = _stack;
+		final int w = _width;
+		int sp = 0;
+		for (int pc = 0; pc < code.length; pc++) {
+			final byte op = code[pc];
+			if (op == OP_CONST || op == OP_X) {
+				final int c = sp * w;
+				for (int n = 0; n < w; n++) {
+					s[c + n] = 0;
+				}
+				if (op == OP_CONST) {
+					s[c] = constants[args[pc]];
+				} else {
+					s[c] = x;
+					if (w > 1) {
+						s[c + 1] = 1;
+					}
+				}
+				sp++;
+				continue;
+			}
+			if (op >= OP_FUNCTION) {
+				final int a = (sp - 1) * w;
+				FunctionRegistry.get(op).series(s, a, _t1, _t2, _t3);
+				System.arraycopy(_t1, 0, s, a, w);
+				continue;
+			}
+			sp--;
+			final int a = (sp - 1) * w, b = sp * w;
+			switch (op) {
+			case OP_ADD:
+				for (int n = 0; n < w; n++) {
+					s[a + n] = s[a + n] + s[b + n];
+				}
+				break;
+			case OP_SUB:
+				for (int n = 0; n < w; n++) {
+					s[a + n] = s[a + n] - s[b + n];
+				}
+				break;
+			case OP_MUL:
+				multiply(s, a, s, b, _t1);
+				System.arraycopy(_t1, 0, s, a, w);
+				break;
+			case OP_DIV:
+				divide(s, a, b, _t1);
+				System.arraycopy(_t1, 0, s, a, w);
+				break;
+			case OP_POW:
+				power(s, a, b, _t1);
+				System.arraycopy(_t1, 0, s, a, w);
+				break;
+			}
+		}
+	}
+
+	/** c = a * b (Cauchy product). */
+	private void multiply (double[] sa, int a, double[] sb, int b, double[] c) {
+		for (int n = 0; n < _width; n++) {
+			double sum = sa[a] * sb[b + n];
+			for (int j = 1; j <= n; j++) {
+				sum += sa[a + j] * sb[b + n - j];
+			}
+			c[n] = sum;
+		}
+	}
+
+	/** c = a / b, from b * c = a. */
+	private void divide (double[] s, int a, int b, double[] c) {
+		final double b0 = s[b];
+		c[0] = s[a] / b0;
+		for (int n = 1; n < _width; n++) {
+			double sum = s[a + n];
+			for (int j = 1; j <= n; j++) {
+				sum -= s[b + j] * c[n - j];
+			}
+			c[n] = sum / b0;
+		}
+	}
+
+	/**
+	 * c = a ^ b. A constant exponent uses the power recurrence a * c' = r * a' * c, or repeated
+	 * multiplication when the base is 0 and the exponent a small non-negative integer. Otherwise
+	 * c = exp(b * log(a)). The value c[0] is always Math.pow(a0, b0).
+	 */
+	private void power (double[] s, int a, int b, double[] c) {
+		final double a0 = s[a], b0 = s[b];
+		boolean constantExponent = true;
+		for (int n = 1; n < _width; n++) {
+			constantExponent &= s[b + n] == 0;
+		}
+		if (constantExponent && a0 != 0) {
+			c[0] = Math.pow(a0, b0);
+			for (int n = 1; n < _width; n++) {
+				double sum = 0;
+				for (int j = 1; j <= n; j++) {
+					sum += (b0 * j - (n - j)) * s[a + j] * c[n - j];
+				}
+				c[n] = sum / (n * a0);
+			}
+		} else if (constantExponent && b0 == Math.rint(b0) && b0 >= 0 && b0 <= MAX_INTEGER_POWER) {
+			integerPower(s, a, (int) b0, c);
+		} else {
+			FunctionRegistry.logSeries(s, a, _t2);
+			multiply(s, b, _t2, 0, _t3);
+			FunctionRegistry.expSeries(_t3, 0, c);
+		}
+		c[0] = Math.pow(a0, b0);
+	}
+
+	/** c = a ^ r for a small non-negative integer r, by binary exponentiation. */
+	private void integerPower (double[] s, int a, int r, double[] c) {
+		final double[] base = _t2, tmp = _t3;
+		System.arraycopy(s, a, base, 0, _width);
+		Arrays.fill(c, 0);
+		c[0] = 1;
+		while (r > 0) {
+			if ((r & 1) != 0) {
+				multiply(c, 0, base, 0, tmp);
+				System.arraycopy(tmp, 0, c, 0, _width);
+			}
+			r >>= 1;
+			if (r > 0) {
+				multiply(base, 0, base, 0, tmp);
+				System.arraycopy(tmp, 0, base, 0, _width);
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package application;
+
+/**
+ * The fixed inputs every benchmark draws from, so results stay comparable between versions.
+ */
+final class BenchmarkCorpus {
+	/** Expressions representative of what users type. */
+	static final String[] EXPRESSIONS = {
+		"2*x+5*x*x", "(x+1)*(x-1)/(x+2)", "x^3-2*x^2+x-7", "log(x)*x^2", "2^x*x", "(x^2+1)^3", "log(x^2+1)/x"
+	};
+
+	private BenchmarkCorpus () {
+	}
+
+	/**
+	 * Joins corpus expressions with + until the text is at least the given length.
+	 * @param length the minimum length in characters
+	 * @return the expression text
+	 */
+	static String ofLength (int length) {
+		final StringBuilder text = new StringBuilder(length + 32);
+		for (int i = 0; text.length() < length; i++) {
+			if (i > 0) {
+				text.append('+');
+			}
+			text.append('(').append(EXPRESSIONS[i % EXPRESSIONS.length]).append(')');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Nests corpus expressions so the tree is depth levels of operators deep: level d is
+	 * (level d-1)*x+c or log(level d-1) with a corpus-derived constant.
+	 * @param depth the number of nesting levels
+	 * @return the expression text
+	 */
+	static String ofDepth (int depth) {
+		String text = "x";
+		for (int d = 1; d <= depth; d++) {
+			text = d % 3 == 0 ? "log(" + text + "+2)" : "(" + text + ")*x+" + d;
+		}
+		return text;
+	}
+
+	static Expression parse (String text) {
+		try {
+			return new SimpleExpressionParser().parse(text);
+		} catch (ExpressionParseException epe) {
+			throw new IllegalStateException(text, epe);
+		}
+	}
+}
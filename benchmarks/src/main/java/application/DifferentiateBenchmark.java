@@ -0,0 +1,98 @@
+package application;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and size of the 1st to 5th derivative of each corpus expression, by repeated tree
+ * differentiation, with simplification, on the hash-consed DAG and on the compact arrays. Sizes
+ * are reported as secondary "nodes" results; run with -prof gc to compare the bytes allocated
+ * per derivative (gc.alloc.rate.norm) of the tree and compact forms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DifferentiateBenchmark {
+	@Param({"1", "2", "3", "4", "5"})
+	public int order;
+
+	@Param({"0", "1", "2", "3", "4", "5", "6"})
+	public int expression;
+
+	private Expression _tree;
+	private CompactExpression _compact;
+
+	/**
+	 * Size of the last derivative built in an iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Size {
+		public long nodes;
+
+		@Setup(Level.Iteration)
+		public void reset () {
+			nodes = 0;
+		}
+	}
+
+	@Setup
+	public void setUp () {
+		_tree = BenchmarkCorpus.parse(BenchmarkCorpus.EXPRESSIONS[expression]);
+		_compact = CompactExpression.of(_tree);
+	}
+
+	@Benchmark
+	public Expression tree (Size size) {
+		Expression derivative = _tree;
+		for (int n = 0; n < order; n++) {
+			derivative = derivative.differentiate();
+		}
+		size.nodes = ExpressionCache.countNodes(derivative);
+		return derivative;
+	}
+
+	@Benchmark
+	public CompactExpression compact (Size size) {
+		CompactExpression derivative = _compact;
+		for (int n = 0; n < order; n++) {
+			derivative = derivative.differentiate();
+		}
+		size.nodes = derivative.size();
+		return derivative;
+	}
+
+	@Benchmark
+	public Expression simplified (Size size) {
+		final ExpressionSimplifier simplifier = new ExpressionSimplifier();
+		Expression derivative = simplifier.simplify(_tree);
+		for (int n = 0; n < order; n++) {
+			derivative = simplifier.simplify(derivative.differentiate());
+		}
+		size.nodes = ExpressionCache.countNodes(derivative);
+		return derivative;
+	}
+
+	@Benchmark
+	public ExpressionDag.Node dag (Size size) {
+		final ExpressionDag.Node derivative = new ExpressionDag().fromExpression(_tree).differentiate(order);
+		size.nodes = derivative.countNodes();
+		return derivative;
+	}
+}
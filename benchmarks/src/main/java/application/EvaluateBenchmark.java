@@ -0,0 +1,92 @@
+package application;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleUnaryOperator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-point evaluation cost against tree depth, for each evaluation backend. Every invocation
+ * evaluates POINTS x-values, so scores are nanoseconds per point.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvaluateBenchmark {
+	static final int POINTS = 1024;
+
+	@Param({"1", "4", "16", "64"})
+	public int depth;
+
+	private final double[] _xs = new double[POINTS], _ys = new double[POINTS];
+	private Expression _tree;
+	private CompactExpression _compact;
+	private CompiledExpression _compiled;
+	private DoubleUnaryOperator _generated;
+
+	@Setup
+	public void setUp () {
+		_tree = BenchmarkCorpus.parse(BenchmarkCorpus.ofDepth(depth));
+		_compact = CompactExpression.of(_tree);
+		_compiled = ExpressionCompiler.compile(_tree);
+		_generated = ExpressionClassGenerator.generate(_compiled);
+		for (int i = 0; i < POINTS; i++) {
+			_xs[i] = 0.5 + i * (1.0 / POINTS);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] tree () {
+		for (int i = 0; i < POINTS; i++) {
+			_ys[i] = _tree.evaluate(_xs[i]);
+		}
+		return _ys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] compact () {
+		_compact.evaluate(_xs, _ys);
+		return _ys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] compiled () {
+		for (int i = 0; i < POINTS; i++) {
+			_ys[i] = _compiled.evaluate(_xs[i]);
+		}
+		return _ys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] compiledBatch () {
+		_compiled.evaluate(_xs, _ys);
+		return _ys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] generated () {
+		for (int i = 0; i < POINTS; i++) {
+			_ys[i] = _generated.applyAsDouble(_xs[i]);
+		}
+		return _ys;
+	}
+}
@@ -0,0 +1,95 @@
+package application;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleUnaryOperator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-point cost of registry functions against the same formula written with operators only,
+ * and against the hand-written Java the generated class should match. Every invocation
+ * evaluates POINTS x-values, so scores are nanoseconds per point.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FunctionBenchmark {
+	static final int POINTS = 1024;
+
+	@Param({"x*x+x*x*x", "sin(x)*x+cos(x)", "sqrt(x)+exp(x)*abs(x)"})
+	public String expression;
+
+	private final double[] _xs = new double[POINTS], _ys = new double[POINTS];
+	private CompiledExpression _compiled;
+	private DoubleUnaryOperator _generated;
+	private int _formula;
+
+	@Setup
+	public void setUp () {
+		_compiled = ExpressionCompiler.compile(BenchmarkCorpus.parse(expression));
+		_generated = ExpressionClassGenerator.generate(_compiled);
+		_formula = expression.startsWith("x") ? 0 : expression.startsWith("sin") ? 1 : 2;
+		for (int i = 0; i < POINTS; i++) {
+			_xs[i] = 0.5 + i * (1.0 / POINTS);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] compiled () {
+		for (int i = 0; i < POINTS; i++) {
+			_ys[i] = _compiled.evaluate(_xs[i]);
+		}
+		return _ys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] compiledBatch () {
+		_compiled.evaluate(_xs, _ys);
+		return _ys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] generated () {
+		for (int i = 0; i < POINTS; i++) {
+			_ys[i] = _generated.applyAsDouble(_xs[i]);
+		}
+		return _ys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public double[] handWritten () {
+		for (int i = 0; i < POINTS; i++) {
+			final double x = _xs[i];
+			switch (_formula) {
+			case 0:
+				_ys[i] = x * x + x * x * x;
+				break;
+			case 1:
+				_ys[i] = Math.sin(x) * x + Math.cos(x);
+				break;
+			default:
+				_ys[i] = Math.sqrt(x) + Math.exp(x) * Math.abs(x);
+				break;
+			}
+		}
+		return _ys;
+	}
+}
@@ -0,0 +1,43 @@
+package application;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SimpleExpressionParser.parse time against input length; linear parsing keeps the time per
+ * character flat.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+	@Param({"16", "256", "4096", "65536"})
+	public int length;
+
+	private final SimpleExpressionParser _parser = new SimpleExpressionParser();
+	private String _text;
+
+	@Setup
+	public void setUp () {
+		_text = BenchmarkCorpus.ofLength(length);
+	}
+
+	@Benchmark
+	public Expression parse () throws ExpressionParseException {
+		return _parser.parse(_text);
+	}
+}
@@ -0,0 +1,59 @@
+package application;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of what GraphingCalculator does to draw one curve without the Canvas:
+ * look the text up, sample the default view adaptively and decimate every segment to pixels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleBenchmark {
+	private static final int WIDTH = 600, HEIGHT = 470;
+
+	@Param({"0", "1", "2", "3", "4", "5", "6"})
+	public int expression;
+
+	private final AdaptiveSampler _sampler = new AdaptiveSampler();
+	private final ExpressionCache _cache = ExpressionCache.byEntryCount(new SimpleExpressionParser(), 64);
+	private String _text;
+
+	@Setup
+	public void setUp () {
+		_text = BenchmarkCorpus.EXPRESSIONS[expression];
+	}
+
+	@Benchmark
+	public int graph () throws ExpressionParseException {
+		final CompiledExpression f = _cache.lookup(_text).getCompiled();
+		final SampledCurve curve = _sampler.sample(f, -10, 10, -10, 10, WIDTH, HEIGHT);
+		final M4Decimator decimator = new M4Decimator(-10, 10, -10, 10, WIDTH, HEIGHT);
+		int points = 0;
+		for (int s = 0; s < curve.getSegmentCount(); s++) {
+			points += decimator.decimate(curve.getXs(s), curve.getYs(s));
+		}
+		return points;
+	}
+
+	@Benchmark
+	public int graphUncached () throws ExpressionParseException {
+		final CompiledExpression f = ExpressionCompiler.compile(new SimpleExpressionParser().parse(_text));
+		return _sampler.sample(f, -10, 10, -10, 10, WIDTH, HEIGHT).getPointCount();
+	}
+}